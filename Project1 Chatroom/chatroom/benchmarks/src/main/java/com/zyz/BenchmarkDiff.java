@@ -0,0 +1,84 @@
+package com.zyz;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compare two JMH JSON result files, for example of two versions:
+ * java -cp benchmarks.jar com.zyz.BenchmarkDiff old.json new.json
+ * Prints score and allocation per operation of every benchmark found in both, and the change in percent.
+ */
+public class BenchmarkDiff {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: BenchmarkDiff <old.json> <new.json>");
+            System.exit(2);
+        }
+        Map<String, JSONObject> before = read(Path.of(args[0]));
+        Map<String, JSONObject> after = read(Path.of(args[1]));
+        System.out.printf("%-70s %14s %14s %8s %12s %12s%n", "benchmark", "old", "new", "change", "old B/op",
+                "new B/op");
+        for (Map.Entry<String, JSONObject> entry : after.entrySet()) {
+            JSONObject old = before.get(entry.getKey());
+            if (old == null) {
+                continue;
+            }
+            JSONObject oldMetric = old.getJSONObject("primaryMetric");
+            JSONObject newMetric = entry.getValue().getJSONObject("primaryMetric");
+            double oldScore = oldMetric.getDouble("score");
+            double newScore = newMetric.getDouble("score");
+            System.out.printf("%-70s %14.3f %14.3f %+7.1f%% %12.1f %12.1f  %s%n", entry.getKey(), oldScore, newScore,
+                    oldScore == 0 ? 0 : (newScore - oldScore) * 100 / oldScore, allocation(old),
+                    allocation(entry.getValue()), newMetric.getString("scoreUnit"));
+        }
+    }
+
+    /**
+     * Results by benchmark name and parameters
+     *
+     * @param file JMH JSON result file
+     * @return results
+     * @throws IOException read failed
+     */
+    private static Map<String, JSONObject> read(Path file) throws IOException {
+        Map<String, JSONObject> results = new LinkedHashMap<>();
+        JSONArray array = new JSONArray(Files.readString(file));
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject result = array.getJSONObject(i);
+            StringBuilder name = new StringBuilder(result.getString("benchmark").replace("com.zyz.", ""));
+            JSONObject params = result.optJSONObject("params");
+            if (params != null) {
+                for (Map.Entry<String, Object> param : new TreeMap<>(params.toMap()).entrySet()) {
+                    name.append(' ').append(param.getKey()).append('=').append(param.getValue());
+                }
+            }
+            results.put(name.toString(), result);
+        }
+        return results;
+    }
+
+    /**
+     * Bytes allocated per operation, from the gc profiler
+     *
+     * @param result result
+     * @return bytes, NaN if the run had no gc profiler
+     */
+    private static double allocation(JSONObject result) {
+        JSONObject secondary = result.optJSONObject("secondaryMetrics");
+        if (secondary != null) {
+            for (String key : secondary.keySet()) {
+                if (key.endsWith("gc.alloc.rate.norm")) {
+                    return secondary.getJSONObject(key).getDouble("score");
+                }
+            }
+        }
+        return Double.NaN;
+    }
+}
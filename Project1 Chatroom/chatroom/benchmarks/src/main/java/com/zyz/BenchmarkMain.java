@@ -0,0 +1,14 @@
+package com.zyz;
+
+/**
+ * Runs the benchmarks, without arguments every benchmark with the gc profiler for allocations per
+ * operation, results in jmh-result.json. Arguments are passed to JMH as they are, -h lists them.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            args = new String[]{"-prof", "gc", "-rf", "json", "-rff", "jmh-result.json"};
+        }
+        org.openjdk.jmh.Main.main(args);
+    }
+}
@@ -0,0 +1,83 @@
+package com.zyz;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Broadcast of one chat message to N logged in sessions writing to memory, from the call to the last
+ * recipient drained: the frame is encoded once, the shards of the fan-out queue it to their sessions
+ * concurrently on the room executor of the server and each session is drained as its writer would.
+ * Compare shards at a fixed room size to see fan-out time scale with the cores of the room executor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000", "5000"})
+    public int recipients;
+    @Param({"1", "4", "8"})
+    public int shards;
+    @Param({"false", "true"})
+    public boolean binary;
+    private ScheduledExecutorService executor;
+    private FanOut fanOut;
+    private ChatMessage message;
+    private long[] written;  // Bytes drained per session, so the writes are not optimized away
+    private final AtomicInteger pending = new AtomicInteger();  // Recipients still to drain
+    private volatile Thread waiter;
+
+    @Setup
+    public void setUp() {
+        executor = CreatingServer.newRoomExecutor();
+        SessionRegistry registry = new SessionRegistry(shards);
+        written = new long[recipients];
+        for (int i = 0; i < recipients; i++) {
+            int index = i;
+            // In-memory sink, drained on the shard thread that queued to it
+            Session session = new Session(() -> {
+            }, s -> drain(s, index));
+            session.setBinary(binary);
+            registry.add(session);
+            registry.login(session, "user" + i);
+        }
+        fanOut = new FanOut(registry, executor);
+        message = new ChatMessage("alice", "Hello everyone, see you at 3 pm", "12:34:56.789012", 1);
+        message.seq = 1;
+        waiter = Thread.currentThread();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private void drain(Session session, int index) {
+        byte[] data;
+        int frames = 0;
+        while ((data = session.poll()) != null) {
+            written[index] += data.length;
+            frames++;
+        }
+        session.writeDone();
+        if (frames > 0 && pending.addAndGet(-frames) == 0) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    @Benchmark
+    public long broadcast() {
+        pending.set(recipients);
+        fanOut.broadcast(Frame.chat(message), "alice");
+        while (pending.get() > 0) {
+            LockSupport.park(this);
+        }
+        return written[0];
+    }
+}
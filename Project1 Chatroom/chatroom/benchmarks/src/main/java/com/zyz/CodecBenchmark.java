@@ -0,0 +1,86 @@
+package com.zyz;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding requests and encoding messages, with the codec and binary protocol against org.json,
+ * the way every request and broadcast went before the codec.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    private final ChatCodec codec = new ChatCodec();
+    private ChatMessage message;
+    private byte[] sendMsgLine;
+    private ByteBuffer sendMsgBuffer;
+    private ByteBuffer sendMsgFrame;
+    private ByteBuffer historyRequest;
+
+    @Setup
+    public void setUp() {
+        String text = "Hello everyone, the meeting moved to 3 pm, see you in room 2. Ünïcode too.";
+        message = new ChatMessage("alice", text, "12:34:56.789012", 42);
+        message.seq = 123_456;
+        sendMsgLine = ChatCodec.sendMsgLine(text, 99);
+        // Without the line separator, as the readers hand lines out
+        sendMsgBuffer = ByteBuffer.wrap(sendMsgLine, 0, sendMsgLine.length - 1).slice();
+        sendMsgFrame = ByteBuffer.wrap(BinaryProtocol.encodeSendMsg(text, 99));
+        historyRequest = ByteBuffer.wrap("{\"api\":\"getMsgHistory\",\"data\":{\"before\":1000,\"limit\":50}}"
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public String decodeSendMsgCodec() {
+        codec.read(sendMsgBuffer, 0, sendMsgBuffer.limit());
+        return codec.message().message;
+    }
+
+    @Benchmark
+    public String decodeSendMsgJSON() {
+        JSONObject json = new JSONObject(new String(sendMsgLine, 0, sendMsgLine.length - 1, StandardCharsets.UTF_8));
+        return json.getJSONObject("data").getString("message");
+    }
+
+    @Benchmark
+    public int decodeSendMsgBinary() {
+        return BinaryProtocol.decodeChat(sendMsgFrame, 0, sendMsgFrame.limit(), codec);
+    }
+
+    @Benchmark
+    public JSONObject decodeRequestJSON() throws IOException {
+        return codec.readJSON(historyRequest, 0, historyRequest.limit());
+    }
+
+    @Benchmark
+    public byte[] encodeReceiveMsgCodec() {
+        return ChatCodec.receiveMsgLine(message);
+    }
+
+    @Benchmark
+    public byte[] encodeReceiveMsgJSON() {
+        JSONObject json = new JSONObject();
+        json.put("api", "receiveMsg");
+        json.put("data", message.toJSON());
+        return (json + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeReceiveMsgBinary() {
+        return BinaryProtocol.encode(message);
+    }
+
+    @Benchmark
+    public byte[] encodeRecord() {
+        return ChatCodec.record(message);
+    }
+}
@@ -0,0 +1,43 @@
+package com.zyz;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatch of an event to its listeners, as the client dispatches every server message to the UI
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventDispatcherBenchmark {
+    @Param({"1", "4"})
+    public int listeners;
+    private EventDispatcher dispatcher;
+    private JSONObject data;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        dispatcher = new EventDispatcher();
+        for (int i = 0; i < listeners; i++) {
+            dispatcher.registerListener("server-request", event -> this.blackhole.consume(event.getData()));
+        }
+        // Other event types registered by the client
+        for (String type : new String[]{"login-success", "server-close", "create-server-success"}) {
+            dispatcher.registerListener(type, event -> this.blackhole.consume(event));
+        }
+        data = new JSONObject().put("api", "receiveMsg").put("data", new JSONObject().put("message", "hi"));
+    }
+
+    @Benchmark
+    public void dispatch() {
+        dispatcher.dispatchEvent(new Event("server-request", data));
+    }
+}
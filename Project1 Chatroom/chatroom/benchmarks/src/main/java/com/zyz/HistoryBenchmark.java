@@ -0,0 +1,79 @@
+package com.zyz;
+
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * History of a room holding 10k or 1M messages in a temporary directory: appending a message,
+ * and reading the last page back as JSON (getMsgHistory) or as messages (missed messages at login)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+    @Param({"10000", "1000000"})
+    public int entries;
+    private Path dir;
+    private ScheduledExecutorService executor;
+    private Room room;
+    private long size;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("chatroom-history-bench");
+        executor = new ScheduledThreadPoolExecutor(1);
+        room = new Room("bench", dir, false, executor);
+        for (int i = 0; i < entries; i++) {
+            room.addHistory(new ChatMessage("user" + (i % 100), "message number " + i, "12:34:56.789012", i));
+        }
+        room.flushHistory();
+        size = room.getHistorySize();
+    }
+
+    @TearDown(Level.Iteration)
+    public void flush() {
+        // Appends are written in the background, do not let them pile up into the next iteration
+        room.flushHistory();
+        size = room.getHistorySize();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        room.close();
+        executor.shutdown();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public long append() {
+        return room.addHistory(new ChatMessage("alice", "Hello everyone, see you at 3 pm", "12:34:56.789012", 1));
+    }
+
+    @Benchmark
+    public String serializePage() {
+        JSONArray page = room.getHistoryData(size - CreatingServer.DEFAULT_HISTORY_PAGE, size);
+        return page.toString();
+    }
+
+    @Benchmark
+    public List<ChatMessage> readPage() {
+        return room.getMessages(size - CreatingServer.DEFAULT_HISTORY_PAGE, size);
+    }
+}
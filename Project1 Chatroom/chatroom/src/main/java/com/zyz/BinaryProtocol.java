@@ -0,0 +1,628 @@
+package com.zyz;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary framing of the chat protocol, negotiated at login, the text protocol stays the default.
+ * <p>
+ * Frame layout: one byte opcode, payload length as unsigned varint, payload.
+ * Numbers in the payload are unsigned varints, optional numbers are sent as value + 1 so 0 means missing,
+ * strings are a varint byte length followed by UTF-8.
+ * <p>
+ * No opcode is a printable character or a line separator, so a reader tells a frame from a text line
+ * by its first byte and accepts both at any time. Only the writer has to know what the other side speaks.
+ */
+final class BinaryProtocol {
+    static final String NAME = "binary";  // Name in the capability exchange at login
+    static final int MAX_FRAME_LENGTH = 1024 * 1024;  // Also the longest text line
+
+    // sendMsg: message, ack + 1
+    static final byte SEND_MSG = 0x01;
+    // receiveMsg: seq + 1, count, user, message, time
+    static final byte RECEIVE_MSG = 0x02;
+    // login: user, lastSeenSeq + 1, flags (ACK, BINARY, DEFLATE, ROOM), room if ROOM
+    static final byte LOGIN = 0x03;
+    // historyData: status, message count, messages as in receiveMsg, cursor JSON or empty
+    static final byte HISTORY_DATA = 0x04;
+    // serverInfo: status, userNumber, host or empty, room or empty
+    static final byte SERVER_INFO = 0x05;
+    // serverClose: no payload
+    static final byte SERVER_CLOSE = 0x06;
+    // A message deflated with the context of the connection, see Compression
+    static final byte COMPRESSED = 0x07;
+    // A message of one session on a link between nodes: session id, the text line or frame, see Relay
+    static final byte RELAY = 0x08;
+    // Any other message: its JSON text
+    static final byte JSON = 0x7F;
+
+    private static final int LOGIN_ACK = 1;
+    private static final int LOGIN_BINARY = 2;
+    private static final int LOGIN_DEFLATE = 4;
+    private static final int LOGIN_ROOM = 8;
+    static final int RELAY_OVERHEAD = 16;  // Session id of a relayed frame, at most
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Whether a byte starts a binary frame rather than a text line
+     *
+     * @param b first byte
+     * @return true for an opcode
+     */
+    static boolean isOpcode(byte b) {
+        return b >= SEND_MSG && b <= RELAY || b == JSON;
+    }
+
+    /**
+     * Whether the login request offers the binary protocol
+     *
+     * @param loginData data of the login request
+     * @return true if the client can read and write binary frames
+     */
+    static boolean isOffered(JSONObject loginData) {
+        JSONArray protocols = loginData.optJSONArray("protocols");
+        if (protocols == null) {
+            return false;
+        }
+        for (int i = 0; i < protocols.length(); i++) {
+            if (NAME.equals(protocols.optString(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* ----------------- Encoding ----------------- */
+
+    /**
+     * Encode a message, the APIs with an opcode get their compact form, any other is sent as JSON
+     *
+     * @param message message with 'api'
+     * @return frame
+     */
+    static byte[] encode(JSONObject message) {
+        // Count, then write into an array of the exact size
+        Encoder encoder = new Encoder();
+        byte opcode = put(encoder, message);
+        if (opcode == JSON) {
+            return wrapText(message.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        encoder.begin(opcode);
+        put(encoder, message);
+        return encoder.buf;
+    }
+
+    /**
+     * Put the payload of a message
+     *
+     * @param encoder encoder
+     * @param message message with 'api'
+     * @return opcode, JSON if the message has no compact form and nothing was put
+     */
+    private static byte put(Encoder encoder, JSONObject message) {
+        JSONObject data = message.optJSONObject("data");
+        switch (message.optString("api")) {
+            case "sendMsg": {
+                if (data == null) {
+                    break;
+                }
+                encoder.putString(data.optString("message"));
+                encoder.putOptional(data.optLong("ack", -1));
+                return SEND_MSG;
+            }
+            case "receiveMsg": {
+                if (data == null) {
+                    break;
+                }
+                encoder.putMessage(ChatMessage.fromJSON(data));
+                return RECEIVE_MSG;
+            }
+            case "login": {
+                if (data == null) {
+                    break;
+                }
+                encoder.putString(data.optString("user"));
+                encoder.putOptional(data.optLong("lastSeenSeq", -1));
+                int flags = (data.optBoolean("ack", false) ? LOGIN_ACK : 0) | (isOffered(data) ? LOGIN_BINARY : 0)
+                        | (Compression.isOffered(data) ? LOGIN_DEFLATE : 0) | (data.has("room") ? LOGIN_ROOM : 0);
+                encoder.putVarint(flags);
+                if (data.has("room")) {
+                    encoder.putString(data.optString("room"));
+                }
+                return LOGIN;
+            }
+            case "historyData": {
+                JSONArray messages = message.optJSONArray("data");
+                if (messages == null) {
+                    break;
+                }
+                encoder.putString(message.optString("status"));
+                encoder.putVarint(messages.length());
+                for (int i = 0; i < messages.length(); i++) {
+                    encoder.putMessage(ChatMessage.fromJSON(messages.getJSONObject(i)));
+                }
+                JSONObject cursor = message.optJSONObject("cursor");
+                encoder.putString(cursor == null ? "" : cursor.toString());
+                return HISTORY_DATA;
+            }
+            case "serverInfo": {
+                if (data == null) {
+                    break;
+                }
+                encoder.putString(message.optString("status"));
+                encoder.putVarint(Math.max(0, data.optInt("userNumber", 0)));
+                encoder.putString(data.optString("host"));
+                encoder.putString(data.optString("room"));
+                return SERVER_INFO;
+            }
+            case "serverClose": {
+                return SERVER_CLOSE;
+            }
+            default: {
+                break;
+            }
+        }
+        return JSON;
+    }
+
+    /**
+     * Encode a receiveMsg without building JSON
+     *
+     * @param message message
+     * @return frame
+     */
+    static byte[] encode(ChatMessage message) {
+        Encoder encoder = new Encoder();
+        encoder.putMessage(message);
+        encoder.begin(RECEIVE_MSG);
+        encoder.putMessage(message);
+        return encoder.buf;
+    }
+
+    /**
+     * Encode a sendMsg without building JSON
+     *
+     * @param message message
+     * @param ack     piggybacked cumulative ack, -1 if none
+     * @return frame
+     */
+    static byte[] encodeSendMsg(String message, long ack) {
+        Encoder encoder = new Encoder();
+        encoder.putString(message);
+        encoder.putOptional(ack);
+        encoder.begin(SEND_MSG);
+        encoder.putString(message);
+        encoder.putOptional(ack);
+        return encoder.buf;
+    }
+
+    /**
+     * Wrap one line of the text protocol into a JSON frame
+     *
+     * @param line UTF-8 line, a trailing line separator is dropped
+     * @return frame
+     */
+    static byte[] wrapText(byte[] line) {
+        int length = line.length;
+        while (length > 0 && (line[length - 1] == '\n' || line[length - 1] == '\r')) {
+            length--;
+        }
+        return frame(JSON, line, 0, length);
+    }
+
+    /**
+     * Frame a payload that is already encoded
+     *
+     * @param opcode  opcode
+     * @param payload payload bytes
+     * @param offset  first byte of the payload
+     * @param length  payload length
+     * @return frame
+     */
+    static byte[] frame(byte opcode, byte[] payload, int offset, int length) {
+        Encoder encoder = new Encoder();
+        encoder.pos = length;
+        encoder.begin(opcode);
+        encoder.putBytes(payload, offset, length);
+        return encoder.buf;
+    }
+
+    /**
+     * Wrap a message of a session into a relay frame
+     *
+     * @param session id of the session on the link
+     * @param message text line with its separator or binary frame, empty to end the session
+     * @param offset  first byte of the message
+     * @param length  message length
+     * @return frame
+     */
+    static byte[] relay(long session, byte[] message, int offset, int length) {
+        Encoder encoder = new Encoder();
+        encoder.putVarint(session);
+        encoder.pos += length;
+        encoder.begin(RELAY);
+        encoder.putVarint(session);
+        encoder.putBytes(message, offset, length);
+        return encoder.buf;
+    }
+
+    /**
+     * Wrap a message read from a client into a relay frame
+     *
+     * @param session id of the session on the link
+     * @param buffer  buffer holding the message, not moved
+     * @param start   first byte
+     * @param end     end of the line without its separator, or end of the frame
+     * @return frame, a text line gets its separator back
+     */
+    static byte[] relay(long session, ByteBuffer buffer, int start, int end) {
+        boolean line = !isOpcode(buffer.get(start));
+        int length = end - start + (line ? 1 : 0);
+        Encoder encoder = new Encoder();
+        encoder.putVarint(session);
+        encoder.pos += length;
+        encoder.begin(RELAY);
+        encoder.putVarint(session);
+        buffer.get(start, encoder.buf, encoder.pos, end - start);
+        if (line) {
+            encoder.buf[encoder.buf.length - 1] = '\n';
+        }
+        return encoder.buf;
+    }
+
+    /**
+     * Writes a frame in two passes over the same calls: the first only counts the payload,
+     * begin() allocates the frame and the second writes it
+     */
+    private static class Encoder {
+        private byte[] buf;  // Null while counting
+        private int pos;
+
+        /**
+         * Counting done, allocate the frame and put its header
+         *
+         * @param opcode opcode
+         */
+        void begin(byte opcode) {
+            int length = pos;
+            buf = new byte[1 + varintSize(length) + length];
+            buf[0] = opcode;
+            pos = 1;
+            putVarint(length);
+        }
+
+        void putVarint(long value) {
+            if (buf == null) {
+                pos += varintSize(value);
+                return;
+            }
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void putOptional(long value) {
+            putVarint(value < 0 ? 0 : value + 1);
+        }
+
+        void putBytes(byte[] bytes, int off, int len) {
+            if (buf != null) {
+                System.arraycopy(bytes, off, buf, pos, len);
+            }
+            pos += len;
+        }
+
+        void putString(String s) {
+            if (s == null) {
+                s = "";
+            }
+            int length = ChatCodec.utf8Length(s);
+            putVarint(length);
+            if (buf != null) {
+                ChatCodec.putUtf8(s, buf, pos);
+            }
+            pos += length;
+        }
+
+        void putMessage(ChatMessage message) {
+            putOptional(message.seq);
+            putVarint(Math.max(0, message.count));
+            putString(message.user);
+            putString(message.message);
+            putString(message.time);
+        }
+
+        private static int varintSize(long value) {
+            int size = 1;
+            while ((value & ~0x7FL) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+    }
+
+    /* ----------------- Decoding ----------------- */
+
+    /**
+     * Find the end of the frame starting in the buffer, the buffer is not moved
+     *
+     * @param buffer buffer
+     * @param start  position of the opcode
+     * @return position after the frame, -1 if it is not complete yet
+     * @throws IOException frame longer than MAX_FRAME_LENGTH or malformed length
+     */
+    static int frameEnd(ByteBuffer buffer, int start) throws IOException {
+        long length = 0;
+        int p = start + 1;
+        for (int shift = 0; ; shift += 7) {
+            if (p >= buffer.limit()) {
+                return -1;
+            }
+            if (shift > 28) {
+                throw new IOException("Malformed frame length");
+            }
+            byte b = buffer.get(p++);
+            length |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (length > MAX_FRAME_LENGTH + (buffer.get(start) == RELAY ? RELAY_OVERHEAD : 0)) {
+            throw new IOException("Frame too long: " + length);
+        }
+        return p + length <= buffer.limit() ? (int) (p + length) : -1;
+    }
+
+    /**
+     * Position of the payload of a complete frame
+     *
+     * @param buffer buffer
+     * @param start  position of the opcode
+     * @return position after the length
+     */
+    static int payloadStart(ByteBuffer buffer, int start) {
+        int p = start + 1;
+        while (buffer.get(p++) < 0) {
+            // Continuation byte of the length
+        }
+        return p;
+    }
+
+    /**
+     * Session id of a complete relay frame
+     *
+     * @param buffer buffer
+     * @param start  position of the opcode
+     * @param end    position after the frame
+     * @return session id
+     * @throws IOException malformed session id
+     */
+    static long relaySession(ByteBuffer buffer, int start, int end) throws IOException {
+        return new Decoder(buffer, payloadStart(buffer, start), end, null).getVarint();
+    }
+
+    /**
+     * Position of the relayed message in a complete relay frame
+     *
+     * @param buffer buffer
+     * @param start  position of the opcode
+     * @return position after the session id, the frame end if the session ended
+     */
+    static int relayMessageStart(ByteBuffer buffer, int start) {
+        int p = payloadStart(buffer, start);
+        while (buffer.get(p++) < 0) {
+            // Continuation byte of the session id
+        }
+        return p;
+    }
+
+    /**
+     * Decode a complete frame into the message the text protocol would carry
+     *
+     * @param buffer buffer
+     * @param start  position of the opcode
+     * @param end    position after the frame, see frameEnd
+     * @param codec  codec of the reading thread, decodes the strings
+     * @return message with 'api'
+     * @throws IOException unknown opcode or malformed payload
+     */
+    static JSONObject decode(ByteBuffer buffer, int start, int end, ChatCodec codec) throws IOException {
+        Decoder decoder = new Decoder(buffer, start + 1, end, codec);
+        int length = (int) decoder.getVarint();
+        if (decoder.pos + length != end) {
+            throw new IOException("Frame length does not match");
+        }
+        return decoder.message(buffer.get(start));
+    }
+
+    /**
+     * Decode a complete sendMsg or receiveMsg frame without building JSON
+     *
+     * @param buffer buffer
+     * @param start  position of the opcode
+     * @param end    position after the frame, see frameEnd
+     * @param codec  codec of the reading thread, the message is read into codec.message()
+     * @return ChatCodec.SEND_MSG or ChatCodec.RECEIVE_MSG if read, ChatCodec.OTHER for other or malformed frames
+     */
+    static int decodeChat(ByteBuffer buffer, int start, int end, ChatCodec codec) {
+        byte opcode = buffer.get(start);
+        if (opcode != SEND_MSG && opcode != RECEIVE_MSG) {
+            return ChatCodec.OTHER;
+        }
+        ChatMessage out = codec.message();
+        try {
+            Decoder decoder = new Decoder(buffer, start + 1, end, codec);
+            int length = (int) decoder.getVarint();
+            if (decoder.pos + length != end) {
+                return ChatCodec.OTHER;
+            }
+            if (opcode == SEND_MSG) {
+                out.message = decoder.getString();
+                out.ack = decoder.getVarint() - 1;
+            } else {
+                decoder.getMessage(out);
+            }
+            return decoder.pos == end ? (opcode == SEND_MSG ? ChatCodec.SEND_MSG : ChatCodec.RECEIVE_MSG) : ChatCodec.OTHER;
+        } catch (IOException e) {
+            return ChatCodec.OTHER;
+        }
+    }
+
+    /**
+     * Reads the payload of one frame
+     */
+    private static class Decoder {
+        private final ByteBuffer buffer;
+        private int pos;
+        private final int end;
+        private final ChatCodec codec;
+
+        Decoder(ByteBuffer buffer, int pos, int end, ChatCodec codec) {
+            this.buffer = buffer;
+            this.codec = codec;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        long getVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= end) {
+                    throw new IOException("Frame cut off");
+                }
+                byte b = buffer.get(pos++);
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        String getString() throws IOException {
+            long length = getVarint();
+            if (length > end - pos) {
+                throw new IOException("Frame cut off");
+            }
+            int n = (int) length;
+            String s = codec.string(buffer, pos, n);
+            pos += n;
+            return s;
+        }
+
+        void getMessage(ChatMessage out) throws IOException {
+            out.seq = getVarint() - 1;
+            out.count = (int) getVarint();
+            out.user = getString();
+            out.message = getString();
+            out.time = getString();
+        }
+
+        JSONObject getMessage() throws IOException {
+            ChatMessage message = new ChatMessage();
+            getMessage(message);
+            return message.toJSON();
+        }
+
+        JSONObject message(byte opcode) throws IOException {
+            JSONObject message = new JSONObject();
+            switch (opcode) {
+                case SEND_MSG: {
+                    JSONObject data = new JSONObject();
+                    data.put("message", getString());
+                    long ack = getVarint() - 1;
+                    if (ack >= 0) {
+                        data.put("ack", ack);
+                    }
+                    message.put("api", "sendMsg");
+                    message.put("data", data);
+                    break;
+                }
+                case RECEIVE_MSG: {
+                    message.put("api", "receiveMsg");
+                    message.put("data", getMessage());
+                    break;
+                }
+                case LOGIN: {
+                    JSONObject data = new JSONObject();
+                    data.put("user", getString());
+                    long lastSeen = getVarint() - 1;
+                    if (lastSeen >= 0) {
+                        data.put("lastSeenSeq", lastSeen);
+                    }
+                    long flags = getVarint();
+                    data.put("ack", (flags & LOGIN_ACK) != 0);
+                    if ((flags & LOGIN_BINARY) != 0) {
+                        data.put("protocols", new JSONArray().put(NAME));
+                    }
+                    if ((flags & LOGIN_DEFLATE) != 0) {
+                        data.put("compression", new JSONArray().put(Compression.NAME));
+                    }
+                    if ((flags & LOGIN_ROOM) != 0) {
+                        data.put("room", getString());
+                    }
+                    message.put("api", "login");
+                    message.put("data", data);
+                    break;
+                }
+                case HISTORY_DATA: {
+                    message.put("api", "historyData");
+                    message.put("status", getString());
+                    long count = getVarint();
+                    JSONArray messages = new JSONArray();
+                    for (long i = 0; i < count; i++) {
+                        messages.put(getMessage());
+                    }
+                    message.put("data", messages);
+                    String cursor = getString();
+                    if (!cursor.isEmpty()) {
+                        message.put("cursor", new JSONObject(cursor));
+                    }
+                    break;
+                }
+                case SERVER_INFO: {
+                    message.put("api", "serverInfo");
+                    message.put("status", getString());
+                    JSONObject data = new JSONObject();
+                    data.put("userNumber", (int) getVarint());
+                    String host = getString();
+                    if (!host.isEmpty()) {
+                        data.put("host", host);
+                    }
+                    String room = getString();
+                    if (!room.isEmpty()) {
+                        data.put("room", room);
+                    }
+                    message.put("data", data);
+                    break;
+                }
+                case SERVER_CLOSE: {
+                    message.put("api", "serverClose");
+                    break;
+                }
+                case JSON: {
+                    byte[] text = new byte[end - pos];
+                    buffer.get(pos, text);
+                    pos = end;
+                    return new JSONObject(new String(text, StandardCharsets.UTF_8));
+                }
+                default: {
+                    throw new IOException("Unknown opcode: " + opcode);
+                }
+            }
+            if (pos != end) {
+                throw new IOException("Frame has trailing bytes");
+            }
+            return message;
+        }
+    }
+}
@@ -0,0 +1,666 @@
+package com.zyz;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming codec for the hot path of the protocol, sendMsg and receiveMsg, in text and binary.
+ * <p>
+ * Reading scans the fields straight out of the read buffer into a reused ChatMessage, no JSON tree,
+ * no intermediate strings, only the field values themselves are allocated. Anything that is not a chat
+ * message, or not in the shape the codec expects, is left to org.json (see readJSON), so the codec
+ * never has to be complete. Writing counts the output first and fills one array of the exact size.
+ * <p>
+ * Reading uses the state of the instance, one per reading thread or connection, see local().
+ */
+final class ChatCodec {
+    static final int OTHER = 0;  // Not a chat message or not readable here, use readJSON
+    static final int SEND_MSG = 1;
+    static final int RECEIVE_MSG = 2;
+    static final int NO_API = 3;  // A bare object of message fields, as the UI sends them
+
+    private static final byte[] API = ascii("api");
+    private static final byte[] DATA = ascii("data");
+    private static final byte[] USER = ascii("user");
+    private static final byte[] MESSAGE = ascii("message");
+    private static final byte[] TIME = ascii("time");
+    private static final byte[] COUNT = ascii("count");
+    private static final byte[] SEQ = ascii("seq");
+    private static final byte[] ACK = ascii("ack");
+    private static final byte[] SEND_MSG_API = ascii("sendMsg");
+    private static final byte[] RECEIVE_MSG_API = ascii("receiveMsg");
+    private static final ThreadLocal<ChatCodec> LOCAL = ThreadLocal.withInitial(ChatCodec::new);
+    // Thrown to bail out to org.json, preallocated without a stack trace
+    private static final Malformed MALFORMED = new Malformed();
+
+    private final ChatMessage message = new ChatMessage();
+    private byte[] scratch = new byte[256];  // String bytes copied out of a direct buffer or unescaped
+    private ByteBuffer encoded = ByteBuffer.allocate(256);  // Text given as a String, see read(String)
+    private final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder();
+    private ByteBuffer in;
+    private int pos;
+    private int end;
+
+    /**
+     * Codec of the current thread, for threads that do not keep their own
+     *
+     * @return codec
+     */
+    static ChatCodec local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * The message filled by the last read, overwritten by the next one
+     *
+     * @return message
+     */
+    ChatMessage message() {
+        return message;
+    }
+
+    /* ----------------- Reading ----------------- */
+
+    /**
+     * Read a text line or binary frame into message() if it is a chat message
+     *
+     * @param buffer buffer, not moved
+     * @param start  first byte
+     * @param end    end of the line without its separator, or end of the frame
+     * @return SEND_MSG or RECEIVE_MSG if read, OTHER otherwise
+     */
+    int read(ByteBuffer buffer, int start, int end) {
+        message.clear();
+        if (start < end && BinaryProtocol.isOpcode(buffer.get(start))) {
+            return BinaryProtocol.decodeChat(buffer, start, end, this);
+        }
+        in = buffer;
+        pos = start;
+        this.end = end;
+        try {
+            skipWhitespace();
+            expect('{');
+            return readObject();
+        } catch (Malformed e) {
+            return OTHER;
+        } finally {
+            in = null;
+        }
+    }
+
+    /**
+     * Read JSON text given as a string, for requests coming from the UI
+     *
+     * @param json JSON text
+     * @return SEND_MSG, RECEIVE_MSG or NO_API if read into message(), OTHER otherwise
+     */
+    int read(String json) {
+        int needed = json.length() * 3;
+        if (encoded.capacity() < needed) {
+            encoded = ByteBuffer.allocate(needed);
+        }
+        encoded.clear();
+        utf8.reset();
+        CoderResult result = utf8.encode(CharBuffer.wrap(json), encoded, true);
+        if (result.isError()) {
+            message.clear();
+            return OTHER;
+        }
+        utf8.flush(encoded);
+        return read(encoded, 0, encoded.position());
+    }
+
+    /**
+     * Read a text line or binary frame with org.json, the path for everything read() does not take
+     *
+     * @param buffer buffer, not moved
+     * @param start  first byte
+     * @param end    end of the line without its separator, or end of the frame
+     * @return message with 'api'
+     * @throws IOException malformed binary frame
+     */
+    JSONObject readJSON(ByteBuffer buffer, int start, int end) throws IOException {
+        if (start < end && BinaryProtocol.isOpcode(buffer.get(start))) {
+            return BinaryProtocol.decode(buffer, start, end, this);
+        }
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read the members of an object, the opening brace is consumed
+     *
+     * @return kind of message
+     */
+    private int readObject() {
+        int kind = NO_API;
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return kind;
+        }
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            int keyStart = pos;
+            int keyEnd = skipString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if (matches(keyStart, keyEnd, API)) {
+                expect('"');
+                int valueStart = pos;
+                int valueEnd = skipString();
+                if (matches(valueStart, valueEnd, SEND_MSG_API)) {
+                    kind = SEND_MSG;
+                } else if (matches(valueStart, valueEnd, RECEIVE_MSG_API)) {
+                    kind = RECEIVE_MSG;
+                } else {
+                    // Not worth reading further
+                    return OTHER;
+                }
+            } else if (matches(keyStart, keyEnd, DATA) && peek() == '{') {
+                pos++;
+                if (readObject() == OTHER) {
+                    return OTHER;
+                }
+            } else if (matches(keyStart, keyEnd, USER)) {
+                message.user = readString();
+            } else if (matches(keyStart, keyEnd, MESSAGE)) {
+                message.message = readString();
+            } else if (matches(keyStart, keyEnd, TIME)) {
+                message.time = readString();
+            } else if (matches(keyStart, keyEnd, COUNT)) {
+                message.count = (int) readLong();
+            } else if (matches(keyStart, keyEnd, SEQ)) {
+                message.seq = readLong();
+            } else if (matches(keyStart, keyEnd, ACK)) {
+                message.ack = readLong();
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+            byte c = next();
+            if (c == '}') {
+                return kind;
+            }
+            if (c != ',') {
+                throw MALFORMED;
+            }
+        }
+    }
+
+    private byte peek() {
+        if (pos >= end) {
+            throw MALFORMED;
+        }
+        return in.get(pos);
+    }
+
+    private byte next() {
+        byte c = peek();
+        pos++;
+        return c;
+    }
+
+    private void expect(char c) {
+        if (next() != c) {
+            throw MALFORMED;
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte c = in.get(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private boolean matches(int start, int end, byte[] name) {
+        if (end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (in.get(start + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skip the rest of a string, the opening quote is consumed
+     *
+     * @return position of the closing quote
+     */
+    private int skipString() {
+        while (true) {
+            byte c = next();
+            if (c == '"') {
+                return pos - 1;
+            }
+            if (c == '\\') {
+                next();
+            }
+        }
+    }
+
+    private String readString() {
+        expect('"');
+        int start = pos;
+        while (true) {
+            byte c = next();
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\') {
+                return readEscapedString(start);
+            }
+        }
+        return string(in, start, pos - 1 - start);
+    }
+
+    /**
+     * Decode UTF-8 out of a buffer, a direct buffer is copied through the scratch array
+     *
+     * @param buffer buffer, not moved
+     * @param start  first byte
+     * @param length byte count
+     * @return string
+     */
+    String string(ByteBuffer buffer, int start, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+        ensureScratch(length);
+        buffer.get(start, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a string with escapes, unescaped into the scratch buffer as UTF-8
+     *
+     * @param start first byte of the string
+     * @return string
+     */
+    private String readEscapedString(int start) {
+        pos = start;
+        int n = 0;
+        while (true) {
+            ensureScratch(n + 8);
+            byte c = next();
+            if (c == '"') {
+                return new String(scratch, 0, n, StandardCharsets.UTF_8);
+            }
+            if (c != '\\') {
+                scratch[n++] = c;
+                continue;
+            }
+            byte e = next();
+            switch (e) {
+                case '"', '\\', '/' -> scratch[n++] = e;
+                case 'b' -> scratch[n++] = '\b';
+                case 'f' -> scratch[n++] = '\f';
+                case 'n' -> scratch[n++] = '\n';
+                case 'r' -> scratch[n++] = '\r';
+                case 't' -> scratch[n++] = '\t';
+                case 'u' -> {
+                    int ch = readHex();
+                    if (Character.isHighSurrogate((char) ch) && pos + 6 <= end
+                            && in.get(pos) == '\\' && in.get(pos + 1) == 'u') {
+                        pos += 2;
+                        int low = readHex();
+                        if (Character.isLowSurrogate((char) low)) {
+                            ch = Character.toCodePoint((char) ch, (char) low);
+                        } else {
+                            n = putUtf8(scratch, n, '?');
+                            ch = low;
+                        }
+                    }
+                    n = putUtf8(scratch, n, Character.isSurrogate((char) ch) && ch <= 0xFFFF ? '?' : ch);
+                }
+                default -> throw MALFORMED;
+            }
+        }
+    }
+
+    private int readHex() {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(next(), 16);
+            if (digit < 0) {
+                throw MALFORMED;
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    private long readLong() {
+        boolean negative = peek() == '-';
+        if (negative) {
+            pos++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (pos < end) {
+            byte c = in.get(pos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            pos++;
+            digits++;
+        }
+        if (digits == 0 || digits > 18 || pos < end && (in.get(pos) == '.' || in.get(pos) == 'e' || in.get(pos) == 'E')) {
+            // Not a plain long, leave it to org.json
+            throw MALFORMED;
+        }
+        return negative ? -value : value;
+    }
+
+    private void skipValue() {
+        byte c = peek();
+        if (c == '"') {
+            pos++;
+            skipString();
+            return;
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = next();
+                if (c == '"') {
+                    skipString();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+            return;
+        }
+        // Number, true, false or null
+        while (pos < end) {
+            c = in.get(pos);
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private void ensureScratch(int size) {
+        if (scratch.length < size) {
+            scratch = Arrays.copyOf(scratch, Math.max(size, scratch.length * 2));
+        }
+    }
+
+    /* ----------------- Writing ----------------- */
+
+    /**
+     * Text line of a receiveMsg
+     *
+     * @param message message
+     * @return UTF-8 line with its line separator
+     */
+    static byte[] receiveMsgLine(ChatMessage message) {
+        // Count, then write into an array of the exact size
+        Sink sink = new Sink();
+        putReceiveMsgLine(sink, message);
+        sink.begin();
+        putReceiveMsgLine(sink, message);
+        return sink.buf;
+    }
+
+    private static void putReceiveMsgLine(Sink sink, ChatMessage message) {
+        sink.ascii("{\"api\":\"receiveMsg\",\"data\":");
+        putData(sink, message);
+        sink.ascii("}\n");
+    }
+
+    /**
+     * History record of a message, receiveMsg data
+     *
+     * @param message message
+     * @return UTF-8 JSON
+     */
+    static byte[] record(ChatMessage message) {
+        Sink sink = new Sink();
+        putData(sink, message);
+        sink.begin();
+        putData(sink, message);
+        return sink.buf;
+    }
+
+    /**
+     * Text line of a sendMsg
+     *
+     * @param message message
+     * @param ack     piggybacked cumulative ack, -1 if none
+     * @return UTF-8 line with its line separator
+     */
+    static byte[] sendMsgLine(String message, long ack) {
+        Sink sink = new Sink();
+        putSendMsgLine(sink, message, ack);
+        sink.begin();
+        putSendMsgLine(sink, message, ack);
+        return sink.buf;
+    }
+
+    private static void putSendMsgLine(Sink sink, String message, long ack) {
+        sink.ascii("{\"api\":\"sendMsg\",\"data\":{\"message\":").string(message);
+        if (ack >= 0) {
+            sink.ascii(",\"ack\":").number(ack);
+        }
+        sink.ascii("}}\n");
+    }
+
+    private static void putData(Sink sink, ChatMessage message) {
+        sink.ascii("{\"user\":").string(message.user)
+                .ascii(",\"message\":").string(message.message)
+                .ascii(",\"time\":").string(message.time)
+                .ascii(",\"count\":").number(message.count);
+        if (message.seq >= 0) {
+            sink.ascii(",\"seq\":").number(message.seq);
+        }
+        sink.ascii("}");
+    }
+
+    /**
+     * Number of UTF-8 bytes of a string, an unpaired surrogate counts as '?'
+     *
+     * @param s string
+     * @return byte count
+     */
+    static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n++;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else {
+                n += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Write a string as UTF-8, the buffer must have room for utf8Length(s) bytes
+     *
+     * @param s   string
+     * @param buf buffer
+     * @param pos position to write at
+     * @return position after the string
+     */
+    static int putUtf8(String s, byte[] buf, int pos) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                pos = putUtf8(buf, pos, Character.toCodePoint(c, s.charAt(++i)));
+            } else {
+                pos = putUtf8(buf, pos, Character.isSurrogate(c) ? '?' : c);
+            }
+        }
+        return pos;
+    }
+
+    private static int putUtf8(byte[] buf, int pos, int codePoint) {
+        if (codePoint < 0x80) {
+            buf[pos++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            buf[pos++] = (byte) (0xC0 | codePoint >> 6);
+            buf[pos++] = (byte) (0x80 | codePoint & 0x3F);
+        } else if (codePoint < 0x10000) {
+            buf[pos++] = (byte) (0xE0 | codePoint >> 12);
+            buf[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            buf[pos++] = (byte) (0x80 | codePoint & 0x3F);
+        } else {
+            buf[pos++] = (byte) (0xF0 | codePoint >> 18);
+            buf[pos++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+            buf[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            buf[pos++] = (byte) (0x80 | codePoint & 0x3F);
+        }
+        return pos;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes in two passes over the same calls: the first only counts, begin() allocates and the second writes
+     */
+    private static class Sink {
+        private byte[] buf;  // Null while counting
+        private int pos;
+
+        /**
+         * Counting done, allocate the output
+         */
+        void begin() {
+            buf = new byte[pos];
+            pos = 0;
+        }
+
+        private void put(int b) {
+            if (buf != null) {
+                buf[pos] = (byte) b;
+            }
+            pos++;
+        }
+
+        Sink ascii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                put(s.charAt(i));
+            }
+            return this;
+        }
+
+        Sink number(long value) {
+            if (value < 0) {
+                put('-');
+                value = -value;
+            }
+            long divisor = 1;
+            while (value / divisor >= 10) {
+                divisor *= 10;
+            }
+            for (; divisor > 0; divisor /= 10) {
+                put((int) ('0' + value / divisor % 10));
+            }
+            return this;
+        }
+
+        /**
+         * Quoted and escaped JSON string, null as JSON null
+         */
+        Sink string(String s) {
+            if (s == null) {
+                return ascii("null");
+            }
+            put('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    put('\\');
+                    put(c);
+                } else if (c < 0x20) {
+                    put('\\');
+                    switch (c) {
+                        case '\b' -> put('b');
+                        case '\f' -> put('f');
+                        case '\n' -> put('n');
+                        case '\r' -> put('r');
+                        case '\t' -> put('t');
+                        default -> {
+                            put('u');
+                            put('0');
+                            put('0');
+                            put(Character.forDigit(c >> 4, 16));
+                            put(Character.forDigit(c & 0xF, 16));
+                        }
+                    }
+                } else if (c < 0x80) {
+                    put(c);
+                } else {
+                    int codePoint = c;
+                    if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    } else if (Character.isSurrogate(c)) {
+                        codePoint = '?';
+                    }
+                    utf8(codePoint);
+                }
+            }
+            put('"');
+            return this;
+        }
+
+        private void utf8(int codePoint) {
+            if (codePoint < 0x80) {
+                put(codePoint);
+            } else if (codePoint < 0x800) {
+                put(0xC0 | codePoint >> 6);
+                put(0x80 | codePoint & 0x3F);
+            } else if (codePoint < 0x10000) {
+                put(0xE0 | codePoint >> 12);
+                put(0x80 | codePoint >> 6 & 0x3F);
+                put(0x80 | codePoint & 0x3F);
+            } else {
+                put(0xF0 | codePoint >> 18);
+                put(0x80 | codePoint >> 12 & 0x3F);
+                put(0x80 | codePoint >> 6 & 0x3F);
+                put(0x80 | codePoint & 0x3F);
+            }
+        }
+    }
+
+    /**
+     * Input the codec does not read, org.json takes over
+     */
+    private static class Malformed extends RuntimeException {
+        Malformed() {
+            super("Not readable by the chat codec", null, false, false);
+        }
+    }
+}
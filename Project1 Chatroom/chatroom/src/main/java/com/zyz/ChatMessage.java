@@ -0,0 +1,87 @@
+package com.zyz;
+
+import org.json.JSONObject;
+
+/**
+ * A chat message as it travels in sendMsg and receiveMsg, decoded and encoded by ChatCodec without a JSON tree.
+ * A codec reuses one instance for every message it reads, a published message gets its own
+ * and is not modified afterwards, frames and the history share it.
+ */
+final class ChatMessage {
+    String user;
+    String message;
+    String time;
+    int count;
+    long seq = -1;  // Sequence number, -1 if none
+    long ack = -1;  // Piggybacked cumulative ack of a sendMsg, -1 if none
+
+    ChatMessage() {
+    }
+
+    ChatMessage(String user, String message, String time, int count) {
+        this.user = user;
+        this.message = message;
+        this.time = time;
+        this.count = count;
+    }
+
+    /**
+     * Forget the last message before reading the next one into this instance
+     */
+    void clear() {
+        user = null;
+        message = null;
+        time = null;
+        count = 0;
+        seq = -1;
+        ack = -1;
+    }
+
+    /**
+     * Copy the message, so it outlives the next read into this instance
+     *
+     * @return copy
+     */
+    ChatMessage copy() {
+        ChatMessage copy = new ChatMessage(user, message, time, count);
+        copy.seq = seq;
+        copy.ack = ack;
+        return copy;
+    }
+
+    /**
+     * The message as data of receiveMsg or a history record, for the paths that still work on JSON
+     *
+     * @return data
+     */
+    JSONObject toJSON() {
+        JSONObject data = new JSONObject();
+        data.put("user", user);
+        data.put("message", message);
+        data.put("time", time);
+        data.put("count", count);
+        if (seq >= 0) {
+            data.put("seq", seq);
+        }
+        return data;
+    }
+
+    /**
+     * Read the fields of receiveMsg data
+     *
+     * @param data data
+     * @return message
+     */
+    static ChatMessage fromJSON(JSONObject data) {
+        ChatMessage message = new ChatMessage(data.optString("user"), data.optString("message"),
+                data.optString("time"), data.optInt("count", 0));
+        message.seq = data.optLong("seq", -1);
+        message.ack = data.optLong("ack", -1);
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + seq + " " + user + ": " + message;
+    }
+}
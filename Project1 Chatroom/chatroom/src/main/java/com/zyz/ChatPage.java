@@ -94,6 +94,39 @@ public class ChatPage implements PageInterface {
         }
     }
 
+    /**
+     * Receive messages that arrived together from server, added with one layout and scroll
+     *
+     * @param messages messages in order
+     */
+    static void receiveMsgs(List<ChatMessage> messages) {
+        if (messages.size() == 1 || chatHistory == null) {
+            for (ChatMessage message : messages) {
+                receiveMsg(message.message, message.user, message.time, message.count);
+            }
+            return;
+        }
+        Runnable show = () -> {
+            List<Node> bubbles = new ArrayList<>(messages.size());
+            for (ChatMessage message : messages) {
+                bubbles.add("system".equals(message.user) ? systemBubble(message.message, message.time)
+                        : chatBubbleOthers(message.message, message.user, message.time, message.count));
+            }
+            chatHistory.getChildren().addAll(bubbles);
+            scrollToBottom();
+            chatInput.requestFocus();
+        };
+        try {
+            if (Platform.isFxApplicationThread()) {
+                show.run();
+            } else {
+                Platform.runLater(show);
+            }
+        } catch (Exception e) {
+            logger.error("Error receiving message: " + e.getMessage());
+        }
+    }
+
     /**
      * Toggle the incoming message display (excluding the current user's message)
      *
@@ -0,0 +1,60 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Headless chat server, no JavaFX is loaded. Clients, the JavaFX app included, log in over the network.
+ * <p>
+ * java -cp chatroom.jar com.zyz.ChatServer --port=8888 --mode=reactor
+ * <p>
+ * Options, as --name=value:
+ * <ul>
+ *     <li>port: port to listen on</li>
+ *     <li>mode: blocking, virtual (Java 21) or reactor, system property chatroom.server.mode by default</li>
+ *     <li>host: name of the host, shown to clients as the creator of the default room</li>
+ * </ul>
+ * Everything else is configured by the chatroom.* system properties as in the app.
+ */
+public class ChatServer {
+    private static final Logger logger = LogManager.getLogger(ChatServer.class);
+
+    public static void main(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Options are --name=value, see the ChatServer class comment: " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        String port = options.getOrDefault("port", "8888");
+        CreatingServer.ServerMode mode = CreatingServer.ServerMode.parse(
+                options.getOrDefault("mode", System.getProperty("chatroom.server.mode")));
+        String host = options.getOrDefault("host", "server");
+        AtomicBoolean failed = new AtomicBoolean();
+        CreatingServer server = new CreatingServer(port, host, mode, res -> {
+            if (res.equals("success")) {
+                logger.info("Server started in " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms");
+            } else {
+                failed.set(true);
+            }
+        });
+        // Tell the clients and flush the history on Ctrl-C or kill
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (CreatingServer.isRunning()) {
+                CreatingServer.onClose();
+            }
+        }, "server-shutdown"));
+        // Serve on this thread until the server is closed
+        server.run();
+        if (failed.get()) {
+            System.exit(1);
+        }
+    }
+}
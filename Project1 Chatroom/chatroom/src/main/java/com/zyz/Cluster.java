@@ -0,0 +1,233 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Nodes of a cluster of servers and the links from this node to the others.
+ * Every node runs with the same node list, system property chatroom.cluster.nodes (host:port of the client
+ * port of each node, comma separated), and knows its own name from chatroom.cluster.self.
+ * A node only accepts a link from a node of the list that presents the secret shared by the cluster,
+ * chatroom.cluster.secret, without one it accepts no links.
+ * A room is served by the node the hash ring assigns it to, a client connected to any other node is relayed
+ * to it over one link per pair of nodes, see Relay.
+ * The history of a room stays on the node that served it, a room moving to a new node starts a new history there.
+ */
+final class Cluster {
+    private static final Logger logger = LogManager.getLogger(Cluster.class);
+    // Points per node on the hash ring, system property chatroom.cluster.vnodes
+    static final int VIRTUAL_NODES = Integer.getInteger("chatroom.cluster.vnodes", 128);
+    // Frames queued on a link before it is closed, system property chatroom.cluster.link.capacity
+    static final int LINK_CAPACITY = Integer.getInteger("chatroom.cluster.link.capacity", 64 * 1024);
+    // Connect timeout of a link in milliseconds, system property chatroom.cluster.connect.timeout
+    static final int CONNECT_TIMEOUT = Integer.getInteger("chatroom.cluster.connect.timeout", 3_000);
+    // Sessions a node relays over its link to this one at most, system property chatroom.cluster.link.sessions
+    static final int LINK_SESSIONS = Integer.getInteger("chatroom.cluster.link.sessions", 10_000);
+    // Secret shared by the nodes, presented when linking, system property chatroom.cluster.secret
+    private static final String SECRET = System.getProperty("chatroom.cluster.secret", "");
+    private final String self;
+    private final List<String> nodes;
+    private final HashRing ring;
+    private final ConcurrentHashMap<String, Relay.Outbound> links = new ConcurrentHashMap<>();
+    private final ReentrantLock connectLock = new ReentrantLock();  // Guards connecting, never held while connecting
+    // Waiting for the link to a node being connected, one connect per node at a time
+    private final Map<String, List<BiConsumer<Relay.Outbound, IOException>>> connecting = new HashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * Create the cluster view of a node
+     *
+     * @param self  name of this node, one of the nodes
+     * @param nodes every node of the cluster
+     */
+    Cluster(String self, List<String> nodes) {
+        this.self = self;
+        this.nodes = List.copyOf(nodes);
+        this.ring = new HashRing(nodes, VIRTUAL_NODES);
+    }
+
+    /**
+     * Cluster from the system properties
+     *
+     * @param port client port of this node, names it if chatroom.cluster.self is not set
+     * @return cluster, null if this server runs alone
+     */
+    static Cluster fromProperties(int port) {
+        String list = System.getProperty("chatroom.cluster.nodes", "").trim();
+        if (list.isEmpty()) {
+            return null;
+        }
+        List<String> nodes = new ArrayList<>();
+        for (String node : list.split(",")) {
+            if (!node.isBlank()) {
+                nodes.add(node.trim());
+            }
+        }
+        String self = System.getProperty("chatroom.cluster.self");
+        if (self == null) {
+            for (String node : nodes) {
+                if (node.endsWith(":" + port)) {
+                    self = node;
+                    break;
+                }
+            }
+        }
+        if (self == null || !nodes.contains(self)) {
+            logger.error("This node is not in chatroom.cluster.nodes, run alone: " + list);
+            return null;
+        }
+        if (SECRET.isEmpty()) {
+            logger.error("chatroom.cluster.secret is not set, links from the other nodes are refused");
+        }
+        logger.info("Cluster of " + nodes.size() + " nodes, this node: " + self);
+        return new Cluster(self, nodes);
+    }
+
+    String getSelf() {
+        return self;
+    }
+
+    /**
+     * Secret this node presents when it links to another one
+     *
+     * @return secret, empty if none is set
+     */
+    String getSecret() {
+        return SECRET;
+    }
+
+    /**
+     * Whether a connection may become a link from another node, a link opens sessions without logging in
+     *
+     * @param node   node the connection claims to come from
+     * @param secret secret it presents
+     * @return true if the node is another node of the cluster and the secret is the one of the cluster
+     */
+    boolean acceptsLink(String node, String secret) {
+        if (SECRET.isEmpty() || secret == null || node == null || node.equals(self) || !nodes.contains(node)) {
+            return false;
+        }
+        return MessageDigest.isEqual(SECRET.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Node serving a room
+     *
+     * @param room room name
+     * @return node name
+     */
+    String owner(String room) {
+        return ring.owner(room);
+    }
+
+    boolean isLocal(String room) {
+        return self.equals(owner(room));
+    }
+
+    /**
+     * Link to a node, connected on first use by a thread of its own, so a node that is down never blocks
+     * the thread handling the request, a selector loop in reactor mode. Requests for a node being connected
+     * wait for the same connect.
+     *
+     * @param node node name
+     * @param then called with the link, at once if it is up, or with the error if the node can not be reached
+     */
+    void link(String node, BiConsumer<Relay.Outbound, IOException> then) {
+        Relay.Outbound link = links.get(node);
+        if (link != null && !link.isClosed()) {
+            then.accept(link, null);
+            return;
+        }
+        connectLock.lock();
+        try {
+            link = links.get(node);
+            if (link == null || link.isClosed()) {
+                if (closed) {
+                    link = null;
+                } else {
+                    List<BiConsumer<Relay.Outbound, IOException>> waiting = connecting.get(node);
+                    if (waiting == null) {
+                        waiting = new ArrayList<>();
+                        connecting.put(node, waiting);
+                        Thread connector = new Thread(() -> connect(node), "relay-connect-" + node);
+                        connector.setDaemon(true);
+                        connector.start();
+                    }
+                    waiting.add(then);
+                    return;
+                }
+            }
+        } finally {
+            connectLock.unlock();
+        }
+        if (link == null) {
+            then.accept(null, new IOException("Server closing"));
+        } else {
+            then.accept(link, null);
+        }
+    }
+
+    /**
+     * Connect to a node and hand the link, or the error, to every request waiting for it
+     *
+     * @param node node name
+     */
+    private void connect(String node) {
+        Relay.Outbound link = null;
+        IOException error = null;
+        try {
+            link = Relay.Outbound.connect(this, node);
+        } catch (IOException e) {
+            error = e;
+        }
+        List<BiConsumer<Relay.Outbound, IOException>> waiting;
+        connectLock.lock();
+        try {
+            waiting = connecting.remove(node);
+            if (link != null && closed) {
+                error = new IOException("Server closing");
+            } else if (link != null) {
+                links.put(node, link);
+            }
+        } finally {
+            connectLock.unlock();
+        }
+        if (error != null && link != null) {
+            link.close();
+            link = null;
+        }
+        for (BiConsumer<Relay.Outbound, IOException> then : waiting) {
+            then.accept(link, error);
+        }
+    }
+
+    /**
+     * A link was closed, the next session for that node connects again
+     *
+     * @param link link
+     */
+    void removed(Relay.Outbound link) {
+        links.remove(link.getNode(), link);
+    }
+
+    /**
+     * Close every link, the sessions relayed over them are closed
+     */
+    void close() {
+        closed = true;
+        for (Relay.Outbound link : links.values()) {
+            link.close();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.zyz;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection compression of the chat protocol, negotiated at login like the binary protocol.
+ * <p>
+ * Every message is deflated with the context of its connection and sync-flushed on its own, so it inflates
+ * as soon as it arrives, while keys and names repeated from earlier messages still compress. Both contexts
+ * start from a preset dictionary of protocol tokens, so even the first messages are small.
+ * The 00 00 FF FF tail of each sync flush is the same every time, it is dropped on the wire and put back
+ * before inflating.
+ * <p>
+ * A compressed message is a frame of its own opcode (see BinaryProtocol) whose payload inflates to exactly
+ * one text line or binary frame, so a reader accepts compressed and plain messages at any time.
+ * A context holds about 256KB of native memory, the client offers compression only when asked to.
+ */
+final class Compression {
+    static final String NAME = "deflate";  // Name in the capability exchange at login
+    // Compression level, system property chatroom.compression.level
+    static final int LEVEL = Integer.getInteger("chatroom.compression.level", Deflater.DEFAULT_COMPRESSION);
+    private static final byte[] SYNC_TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+    // Most frequent tokens last, they are the closest to the first message
+    private static final byte[] DICTIONARY = (
+            "{\"api\":\"close\"}{\"api\":\"serverClose\"}joined the roomleft the room"
+                    + "{\"data\":{\"userNumber\":1},\"api\":\"serverInfo\",\"status\":\"success\"}"
+                    + "{\"api\":\"getServerInfo\"}{\"api\":\"getMsgHistory\",\"data\":{\"limit\":50,\"before\":"
+                    + "{\"cursor\":{\"next\":,\"total\":,\"last\":,\"first\":},\"data\":[],\"api\":\"historyData\""
+                    + "{\"protocol\":\"binary\",\"delta\":false,\"ack\":true,\"api\":\"loginResult\",\"seq\":"
+                    + "{\"api\":\"login\",\"data\":{\"user\":\"\",\"lastSeenSeq\":,\"ack\":true,"
+                    + "\"protocols\":[\"binary\"],\"compression\":[\"deflate\"]}}"
+                    + "{\"api\":\"sendMsg\",\"data\":{\"message\":\"\",\"ack\":1}}\n"
+                    + "{\"api\":\"receiveMsg\",\"data\":{\"user\":\"system\",\"message\":\"\",\"time\":\"00:00:00.0\","
+                    + "\"count\":1,\"seq\":1}}\n"
+                    + "{\"api\":\"receiveMsg\",\"data\":{\"user\":\"\",\"message\":\"\",\"time\":\"\",\"count\":1,\"seq\":"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private Compression() {
+    }
+
+    /**
+     * Whether the login request offers compression
+     *
+     * @param loginData data of the login request
+     * @return true if the client can inflate what it reads
+     */
+    static boolean isOffered(JSONObject loginData) {
+        JSONArray compression = loginData.optJSONArray("compression");
+        if (compression == null) {
+            return false;
+        }
+        for (int i = 0; i < compression.length(); i++) {
+            if (NAME.equals(compression.optString(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bytes in and out of one direction of a connection and the time spent, read by any thread
+     */
+    abstract static class Context {
+        final ReentrantLock lock = new ReentrantLock();  // One message at a time, and not after end
+        boolean ended;  // Guarded by lock
+        private volatile long messages;
+        private volatile long plainBytes;
+        private volatile long compressedBytes;
+        private volatile long nanos;
+
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getPlainBytes() {
+            return plainBytes;
+        }
+
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        /**
+         * Time spent deflating or inflating
+         *
+         * @return nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Plain bytes per compressed byte
+         *
+         * @return ratio, 0 before the first message
+         */
+        public double getRatio() {
+            long compressed = compressedBytes;
+            return compressed == 0 ? 0 : (double) plainBytes / compressed;
+        }
+
+        void count(int plain, int compressed, long start) {
+            // Under the lock, so the counts add up
+            messages++;
+            plainBytes += plain;
+            compressedBytes += compressed;
+            nanos += System.nanoTime() - start;
+        }
+
+        /**
+         * Release the native memory, the connection is closed
+         */
+        void end() {
+            lock.lock();
+            try {
+                if (!ended) {
+                    ended = true;
+                    release();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        abstract void release();
+
+        @Override
+        public String toString() {
+            return String.format("%d messages, %d -> %d bytes (%.2fx), %.3f ms",
+                    messages, plainBytes, compressedBytes, getRatio(), nanos / 1e6);
+        }
+    }
+
+    /**
+     * Outgoing direction of a connection, messages must be compressed in the order they are written
+     */
+    static final class Deflate extends Context {
+        private final Deflater deflater = new Deflater(LEVEL, true);
+        private byte[] out = new byte[512];
+
+        Deflate() {
+            deflater.setDictionary(DICTIONARY);
+        }
+
+        /**
+         * Compress a message into a frame
+         *
+         * @param message text line or binary frame
+         * @return compressed frame, the message itself once the connection is closed
+         */
+        byte[] compress(byte[] message) {
+            lock.lock();
+            try {
+                if (ended) {
+                    return message;
+                }
+                long start = System.nanoTime();
+                deflater.setInput(message);
+                int length = 0;
+                while (true) {
+                    length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+                    if (length < out.length) {
+                        break;
+                    }
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                if (length < SYNC_TAIL.length
+                        || !Arrays.equals(out, length - SYNC_TAIL.length, length, SYNC_TAIL, 0, SYNC_TAIL.length)) {
+                    throw new IllegalStateException("Sync flush without its tail");
+                }
+                length -= SYNC_TAIL.length;
+                byte[] frame = BinaryProtocol.frame(BinaryProtocol.COMPRESSED, out, 0, length);
+                count(message.length, frame.length, start);
+                return frame;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        void release() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Incoming direction of a connection, frames must be inflated in the order they were read.
+     * The inflated message stays in a reused buffer until the next frame.
+     */
+    static final class Inflate extends Context {
+        private final Inflater inflater = new Inflater(true);
+        private byte[] in = new byte[512];
+        private byte[] buf = new byte[1024];
+        private ByteBuffer view = ByteBuffer.wrap(buf);
+        private int length;  // Last inflated message is [0, length)
+
+        Inflate() {
+            inflater.setDictionary(DICTIONARY);
+        }
+
+        /**
+         * Inflate a compressed frame
+         *
+         * @param frame buffer holding the frame, not moved
+         * @param start position of the opcode
+         * @param end   position after the frame
+         * @throws IOException corrupt data, a message too long or the connection is closed
+         */
+        void inflate(ByteBuffer frame, int start, int end) throws IOException {
+            lock.lock();
+            try {
+                if (ended) {
+                    throw new IOException("Connection closed");
+                }
+                long started = System.nanoTime();
+                int payload = BinaryProtocol.payloadStart(frame, start);
+                int compressed = end - payload;
+                if (in.length < compressed + SYNC_TAIL.length) {
+                    in = new byte[Math.max(compressed + SYNC_TAIL.length, in.length * 2)];
+                }
+                frame.get(payload, in, 0, compressed);
+                System.arraycopy(SYNC_TAIL, 0, in, compressed, SYNC_TAIL.length);
+                inflater.setInput(in, 0, compressed + SYNC_TAIL.length);
+                int n = 0;
+                try {
+                    while (true) {
+                        n += inflater.inflate(buf, n, buf.length - n);
+                        if (n < buf.length && inflater.needsInput()) {
+                            break;
+                        }
+                        if (inflater.finished()) {
+                            throw new IOException("Compressed stream ended");
+                        }
+                        if (n == buf.length) {
+                            if (buf.length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                                throw new IOException("Compressed message too long");
+                            }
+                            buf = Arrays.copyOf(buf, buf.length * 2);
+                            view = ByteBuffer.wrap(buf);
+                        }
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt compressed frame: " + e.getMessage());
+                }
+                if (n == 0 || buf[0] == BinaryProtocol.COMPRESSED) {
+                    throw new IOException("Compressed frame without a message");
+                }
+                if (!BinaryProtocol.isOpcode(buf[0])) {
+                    // A text line, without its separator
+                    while (n > 0 && (buf[n - 1] == '\n' || buf[n - 1] == '\r')) {
+                        n--;
+                    }
+                }
+                this.length = n;
+                count(n, end - start, started);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Buffer holding the last inflated message from position 0
+         *
+         * @return buffer, not to be moved
+         */
+        ByteBuffer buffer() {
+            return view;
+        }
+
+        /**
+         * Length of the last inflated message, without the line separator of a text line
+         *
+         * @return position after the message
+         */
+        int length() {
+            return length;
+        }
+
+        @Override
+        void release() {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Liveness of all sessions on one hashed timer wheel.
+ * Reads and writes only stamp the session, a timer is re-armed when it expires,
+ * so each tick only visits the sessions whose deadline falls into the current slot.
+ */
+class ConnectionSupervisor extends Thread {
+    private static final Logger logger = LogManager.getLogger(ConnectionSupervisor.class);
+    static final String PING = "{\"api\":\"ping\"}";
+    private static final int WHEEL_SIZE = 512;  // Power of two
+    private final long tickMillis;
+    private final long pingIntervalMillis;
+    private final long idleTimeoutMillis;
+    private final long retransmitTimeoutMillis;
+    private final Timer[] wheel = new Timer[WHEEL_SIZE];  // Head of the timer list of each slot
+    private final Queue<Timer> pending = new ConcurrentLinkedQueue<>();
+    private long tick;  // Slot being processed, counted since start, only touched by the supervisor thread
+    private long startTime;
+    private volatile boolean running = true;
+
+    /**
+     * Create a supervisor, intervals from system properties
+     * chatroom.ping.interval, chatroom.idle.timeout and chatroom.retransmit.timeout (milliseconds)
+     */
+    ConnectionSupervisor() {
+        this(Long.getLong("chatroom.ping.interval", 20_000), Long.getLong("chatroom.idle.timeout", 60_000),
+                Long.getLong("chatroom.retransmit.timeout", 5_000), 100);
+    }
+
+    /**
+     * Create a supervisor
+     *
+     * @param pingIntervalMillis       ping a client after this long without reading from it
+     * @param idleTimeoutMillis        evict a client after this long without reading from it
+     * @param retransmitTimeoutMillis  resend a chat message after this long without an ack
+     * @param tickMillis               wheel resolution
+     */
+    ConnectionSupervisor(long pingIntervalMillis, long idleTimeoutMillis, long retransmitTimeoutMillis, long tickMillis) {
+        super("connection-supervisor");
+        setDaemon(true);
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.idleTimeoutMillis = Math.max(idleTimeoutMillis, pingIntervalMillis);
+        this.retransmitTimeoutMillis = retransmitTimeoutMillis;
+        this.tickMillis = tickMillis;
+    }
+
+    /**
+     * Start supervising a session, O(1)
+     *
+     * @param session session
+     */
+    void watch(Session session) {
+        // Early enough to resend in time if the client turns out to ack
+        long first = Math.min(pingIntervalMillis, retransmitTimeoutMillis);
+        pending.add(new Timer(session, System.currentTimeMillis() + first));
+    }
+
+    void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        startTime = System.currentTimeMillis();
+        while (running) {
+            long deadline = startTime + (tick + 1) * tickMillis;
+            long sleep = deadline - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            Timer timer;
+            while ((timer = pending.poll()) != null) {
+                schedule(timer, tick);
+            }
+            expire(System.currentTimeMillis());
+            tick++;
+        }
+        logger.info("Connection supervisor stopped");
+    }
+
+    /**
+     * Put the timer into the slot of its deadline, slot k is processed at startTime + (k + 1) * tickMillis
+     *
+     * @param timer      timer
+     * @param firstVisit first slot still to be processed
+     */
+    private void schedule(Timer timer, long firstVisit) {
+        long ticks = Math.max(firstVisit, (timer.deadline - startTime + tickMillis - 1) / tickMillis - 1);
+        timer.rounds = (ticks - firstVisit) / WHEEL_SIZE;
+        int slot = (int) (ticks & (WHEEL_SIZE - 1));
+        timer.prev = null;
+        timer.next = wheel[slot];
+        if (wheel[slot] != null) {
+            wheel[slot].prev = timer;
+        }
+        wheel[slot] = timer;
+    }
+
+    private void unlink(Timer timer, int slot) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            wheel[slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    /**
+     * Handle the timers of the current slot
+     *
+     * @param now current time
+     */
+    private void expire(long now) {
+        int slot = (int) (tick & (WHEEL_SIZE - 1));
+        Timer timer = wheel[slot];
+        while (timer != null) {
+            Timer next = timer.next;
+            if (timer.rounds > 0) {
+                timer.rounds--;
+            } else {
+                unlink(timer, slot);
+                check(timer, now);
+            }
+            timer = next;
+        }
+    }
+
+    /**
+     * Ping, evict or re-arm an expired session timer
+     *
+     * @param timer timer
+     * @param now   current time
+     */
+    private void check(Timer timer, long now) {
+        Session session = timer.session;
+        if (session.isClosed()) {
+            return;
+        }
+        long lastRead = session.getLastRead();
+        long readIdle = now - lastRead;
+        if (readIdle >= idleTimeoutMillis) {
+            // No pong in time, the peer is dead or half-open
+            logger.info("Evict idle client, session " + session.getId() + ", idle " + readIdle + " ms");
+            session.close();
+            return;
+        }
+        long writeIdle = now - session.getLastWrite();
+        if (readIdle >= pingIntervalMillis || writeIdle >= pingIntervalMillis) {
+            // Not queued again while one waits, a client that is not reading needs only one
+            session.ping(PING);
+        }
+        if (session.isAcking()) {
+            int resent = session.retransmit(now, retransmitTimeoutMillis, (from, to) ->
+                    CreatingServer.ClientHandler.sendMissed(session, from, to));
+            if (resent > 0) {
+                logger.info("Resent " + resent + " unacked messages, session " + session.getId());
+            }
+        }
+        // Wake up again at the next ping or eviction point
+        long nextCheck = readIdle >= pingIntervalMillis ? lastRead + idleTimeoutMillis : lastRead + pingIntervalMillis;
+        // A stalled writer does not move lastWrite, count from now or the timer fires every tick
+        long nextPing = writeIdle >= pingIntervalMillis ? now + pingIntervalMillis
+                : session.getLastWrite() + pingIntervalMillis;
+        timer.deadline = Math.min(nextCheck, nextPing);
+        if (session.isAcking()) {
+            // Often enough to resend in time
+            timer.deadline = Math.min(timer.deadline, now + retransmitTimeoutMillis);
+        }
+        schedule(timer, tick + 1);
+    }
+
+    /**
+     * Timer of one session, linked into a wheel slot
+     */
+    private static class Timer {
+        private final Session session;
+        private long deadline;
+        private long rounds;
+        private Timer prev;
+        private Timer next;
+
+        Timer(Session session, long deadline) {
+            this.session = session;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -11,28 +11,111 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.*;
-import java.time.*;
 
 public class CreatingServer extends Thread {
     private static final Logger logger = LogManager.getLogger(CreatingServer.class);
     private static int port;
     private static volatile boolean running = true; // 添加一个控制变量
     private static ExecutorService threadPool;
+    private static ExecutorService writerPool;  // Drains the outbound queues of blocking connections
     private static ServerSocket serverSocket;
-    private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(10);
-    private static final CopyOnWriteArrayList<PrintWriter> printWriters = new CopyOnWriteArrayList<>();  // Store all client output streams
+    private static NioReactor reactor;
+    private final ServerMode mode;
+    private static String host;  // Username of the host, creator of the default room
+    private final Callback started;  // Told success once clients can connect, or the error
+    private static ConnectionSupervisor supervisor;  // Heartbeat and idle timeout of all clients
+    static final SessionRegistry sessions = new SessionRegistry(FanOut.defaultShardCount());  // All connected clients
+    private static ScheduledExecutorService roomExecutor;  // Fan-out and history tasks of every room
+    static volatile RoomRegistry rooms;  // Rooms of the server, null while no server is running
+    static volatile Cluster cluster;  // Other nodes serving rooms, null if this server runs alone
+    // Threads running the rooms, system property chatroom.rooms.threads, one per core by default
+    static final int ROOM_THREADS = Math.max(1,
+            Integer.getInteger("chatroom.rooms.threads", Runtime.getRuntime().availableProcessors()));
+    private static final int MAX_ROOM_PAGE = 500;
+    static final int DEFAULT_HISTORY_PAGE = 50;  // Messages per getMsgHistory page
+    private static final int MAX_HISTORY_PAGE = 500;
+    // Offer the binary protocol to clients that support it, system property chatroom.protocol.binary
+    static final boolean BINARY_PROTOCOL = Boolean.parseBoolean(System.getProperty("chatroom.protocol.binary", "true"));
+    // Compress for clients that offer it, system property chatroom.compression
+    static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("chatroom.compression", "true"));
 
     /**
-     * Create a server
+     * How the server handles client connections
+     */
+    public enum ServerMode {
+        BLOCKING,  // One pooled thread plus one handling thread per client
+        VIRTUAL,   // One virtual thread per client, blocking reads and writes, needs Java 21
+        REACTOR;   // A few selector loops on non-blocking channels
+
+        /**
+         * Parse a mode name, fall back to BLOCKING
+         *
+         * @param name mode name, case-insensitive
+         * @return server mode
+         */
+        public static ServerMode parse(String name) {
+            if (name == null) {
+                return BLOCKING;
+            }
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.error("Unknown server mode: " + name + ", use blocking mode");
+                return BLOCKING;
+            }
+        }
+    }
+
+    /**
+     * Create a server, mode from system property chatroom.server.mode
      *
      * @param p        port
      * @param username username
      */
     public CreatingServer(String p, String username) {
+        this(p, username, ServerMode.parse(System.getProperty("chatroom.server.mode")));
+    }
+
+    /**
+     * Create a server
+     *
+     * @param p        port
+     * @param username username
+     * @param mode     server mode
+     */
+    public CreatingServer(String p, String username, ServerMode mode) {
+        this(p, username, mode, null);
+    }
+
+    /**
+     * Create a server
+     *
+     * @param p        port
+     * @param username username
+     * @param mode     server mode
+     * @param started  called with "success" once clients can connect, or with the error, may be null
+     */
+    public CreatingServer(String p, String username, ServerMode mode, Callback started) {
         port = Integer.parseInt(p);
-        RoomControl.createdRoom(username);
+        this.mode = mode;
+        host = username;
+        this.started = started;
+    }
+
+    /**
+     * Report the result of starting the server
+     *
+     * @param result "success" or the error
+     */
+    private void started(String result) {
+        if (started != null) {
+            started.call(result);
+        }
     }
 
     public static boolean isRunning() {
@@ -43,19 +126,44 @@ public class CreatingServer extends Thread {
      * Thread to run the server
      */
     public void run() {
-        // Clear history data
-        HistoryData.clearHistoryData();
-        // Save history data to file when server is closed
-        Runtime.getRuntime().addShutdownHook(new Thread(HistoryData::saveHistoryToFile));
-        // Load history data from file to clear history data
-        HistoryData.loadHistoryFromFile();
-        threadPool = Executors.newFixedThreadPool(10); // Create a thread pool
+        if (mode == ServerMode.VIRTUAL) {
+            threadPool = newVirtualThreadExecutor();
+            if (threadPool == null) {
+                // Platform threads instead would only be blocking mode under another name
+                running = false;
+                started("Virtual threads need Java 21, run in blocking or reactor mode");
+                return;
+            }
+            writerPool = threadPool;
+        }
+        // Rooms found on disk are listed, their history logs are opened when someone joins
+        roomExecutor = newRoomExecutor();
+        rooms = new RoomRegistry(HistoryLog.defaultDir(), roomExecutor);
+        // Flush the history logs when the process exits
+        Runtime.getRuntime().addShutdownHook(new Thread(CreatingServer::closeRooms));
+        // The history of the default room opens on a room thread, the room is created once it is open
+        Room hostRoom = rooms.getDefault();
+        hostRoom.whenOpen(() -> {
+            HistoryData.migrateHistoryFile(hostRoom);
+            hostRoom.createdRoom(host);
+        });
+        cluster = Cluster.fromProperties(port);
+        Metrics.register();
+        supervisor = new ConnectionSupervisor();
+        supervisor.start();
+        if (mode == ServerMode.REACTOR) {
+            runReactor();
+            return;
+        }
+        if (mode == ServerMode.BLOCKING) {
+            threadPool = Executors.newFixedThreadPool(10); // Create a thread pool
+            // Cached, a writer stuck on a client that stopped reading must not hold up the others
+            writerPool = Executors.newCachedThreadPool();
+        }
         try {
             serverSocket = new ServerSocket(port);
-            Render.serverMode = true;
-            Main.dispatcher.dispatchEvent(new Event("create-server-success", "success"));
-            if (!Main.dispatcher.hasListener("server-close"))
-                Main.dispatcher.registerListener("server-close", event -> onClose());
+            logger.info("Server listening on port " + port + ", " + mode + " mode");
+            started("success");
             while (running && !serverSocket.isClosed()) {
                 try {
                     Socket clientSocket = serverSocket.accept();
@@ -68,38 +176,152 @@ public class CreatingServer extends Thread {
             }
         } catch (Exception e) {
             logger.error("Creating server error, port occupied or other error.");
-            ConnectPage.showError("Creating server error, port occupied or other error.");
+            started("Creating server error, port occupied or other error.");
             onClose(); // Close thread pool
         }
     }
 
     /**
-     * Send message to all clients, used by server mode
+     * Executor starting one virtual thread per task, needs Java 21
      *
-     * @param message  message
-     * @param username username
+     * @return executor, null if this runtime has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.error("Virtual threads not supported by Java " + Runtime.version().feature()
+                    + ", virtual mode refused");
+            return null;
+        }
+    }
+
+    /**
+     * Executor shared by all rooms, sized by ROOM_THREADS, so an idle room holds no thread
+     *
+     * @return executor
+     */
+    static ScheduledExecutorService newRoomExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(ROOM_THREADS, task -> {
+            Thread thread = new Thread(task, "room-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Flush and close the history of every room, then stop the room threads, safe to call more than once
+     */
+    private static void closeRooms() {
+        RoomRegistry registry = rooms;
+        if (registry != null) {
+            registry.close();
+        }
+        ScheduledExecutorService executor = roomExecutor;
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Serve clients on selector loops until the server is closed
+     */
+    private void runReactor() {
+        try {
+            reactor = new NioReactor(port, NioReactor.defaultLoopCount());
+        } catch (IOException e) {
+            logger.error("Creating server error, port occupied or other error.");
+            started("Creating server error, port occupied or other error.");
+            onClose();
+            return;
+        }
+        logger.info("Server listening on port " + port + ", " + mode + " mode");
+        started("success");
+        reactor.run();
+    }
+
+    /**
+     * A client connected, start broadcasting to it and watching its liveness
+     *
+     * @param session session of the client
+     */
+    static void clientConnected(Session session) {
+        sessions.add(session);
+        if (supervisor != null) {
+            supervisor.watch(session);
+        }
+    }
+
+    /**
+     * A client disconnected, forget its session and user
+     *
+     * @param session session of the client
      */
-    public static void serverSendMsg(String message, String username) {
-        JSONObject singleData = new JSONObject();
-        singleData.put("user", username);
-        singleData.put("message", message);
-        singleData.put("count", UserData.getMsgCount(username));
-        singleData.put("time", LocalTime.now().toString());
-        HistoryData.addHistoryData(singleData);
-        RoomControl.newMsgFrom(username, message);
-        UserData.addMsgCount(username);
+    static void clientDisconnected(Session session) {
+        Room room = session.getRoom();
+        if (room != null) {
+            room.leave(session);
+        }
+        Relay.Outbound relay = session.getRelay();
+        if (relay != null) {
+            relay.detach(session, false);
+        }
+        Relay.Inbound link = session.getLink();
+        if (link != null) {
+            link.closeAll();
+        }
+        if (sessions.remove(session)) {
+            logger.info("Client disconnected, user: " +
+                    (session.getUsername() != null ? session.getUsername() : "unknown"));
+        }
+    }
+
+    /**
+     * Number of users in the room of the host
+     *
+     * @return user number
+     */
+    public static int getUserNumber() {
+        RoomRegistry registry = rooms;
+        if (registry == null) {
+            return sessions.getUserNumber();
+        }
+        return registry.getDefault().getUserNumber();
+    }
+
+    /**
+     * Server info of a room, answers getServerInfo and is pushed when the members of the room change
+     *
+     * @param room room, null for a client not in a room yet
+     * @return serverInfo message
+     */
+    static JSONObject serverInfo(Room room) {
+        JSONObject response = new JSONObject();
+        response.put("api", "serverInfo");
+        response.put("status", "success");
+        JSONObject data = new JSONObject();
+        data.put("userNumber", room != null ? room.getUserNumber() : getUserNumber());
+        if (room != null) {
+            data.put("room", room.getName());
+        }
+        data.put("host", host);
+        response.put("data", data);
+        return response;
     }
 
     /**
      * Close the whole server
      */
     public static void onClose() {
-        logger.warn("Server closing, the number of client: " + printWriters.size());
+        logger.warn("Server closing, the number of client: " + sessions.getConnectionNumber());
         running = false;
-        // Close all client connections
-        for (PrintWriter pw : printWriters) {
-            pw.println("{\"api\":\"serverClose\"}");
-            pw.close();
+        // Close all client connections once the queued messages are written
+        for (Session session : sessions.connections()) {
+            session.send(new JSONObject().put("api", "serverClose"), null);
+            session.closeGracefully();
         }
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
@@ -111,6 +333,24 @@ public class CreatingServer extends Thread {
         if (threadPool != null) {
             threadPool.shutdown(); // Try to close the thread pool
         }
+        if (writerPool != null) {
+            writerPool.shutdown();  // Queued writes still complete
+        }
+        if (reactor != null) {
+            reactor.shutdown();
+            reactor = null;
+        }
+        if (supervisor != null) {
+            supervisor.shutdown();
+            supervisor = null;
+        }
+        Cluster nodes = cluster;
+        if (nodes != null) {
+            nodes.close();
+            cluster = null;
+        }
+        closeRooms();
+        Metrics.unregister();
         logger.warn("Server closed");
     }
 
@@ -119,48 +359,30 @@ public class CreatingServer extends Thread {
      */
     class ClientHandler implements Runnable {
         private final Socket clientSocket;
-        private Thread handlingThread;
 
         public ClientHandler(Socket socket) {
             this.clientSocket = socket;
         }
 
-        /**
-         * Check if the client is still connected
-         *
-         * @param out output stream
-         */
-        private void checkClientConnection(PrintWriter out) {
-            // Check if the client is still connected
-            if (clientSocket.isClosed() || !clientSocket.isConnected() || out.checkError()) {
-                // If the client is disconnected, remove the output stream from the collection
-                logger.info("Client disconnected, user: " +
-                        (UserData.isUserExist(out) ? UserData.getUser(out) : "unknown"));
-                if (UserData.isUserExist(out)) {
-                    UserData.removeUser(out);
-                }
-                handlingThread.interrupt();
-                // Stop the scheduled task
-                scheduler.shutdown();
-            }
-        }
-
         @Override
         public void run() {
             try {
-                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+                // Text lines and binary frames, see BinaryProtocol
+                MessageReader in = new MessageReader(clientSocket.getInputStream());
+                OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
+                Session session = new Session(clientSocket, s -> requestWrite(s, out));
                 // Add the output stream to the collection
-                printWriters.add(out);
+                clientConnected(session);
+                if (mode == ServerMode.VIRTUAL) {
+                    // Blocking reads only park the virtual thread, handle requests right here
+                    new handlingClientRequest(in, session).run();
+                    return;
+                }
                 // Start a new thread to handle client requests
-                handlingThread = new Thread(new handlingClientRequest(in, out));
-                handlingThread.start();
-                // Check if the client is still connected
-                scheduler.scheduleAtFixedRate(() -> checkClientConnection(out), 0, 1, TimeUnit.SECONDS);
+                new Thread(new handlingClientRequest(in, session)).start();
             } catch (Exception e) {
                 logger.error("Client connection lost: " + e.getMessage());
                 // Close the client connection
-                scheduler.shutdown();
                 try {
                     clientSocket.close();
                 } catch (IOException e2) {
@@ -169,38 +391,94 @@ public class CreatingServer extends Thread {
             }
         }
 
-        static class handlingClientRequest extends Thread {
-            BufferedReader in;
-            PrintWriter out;
+        /**
+         * Let the writer pool drain the queue of the session
+         *
+         * @param session session
+         * @param out     output stream of the socket
+         */
+        private static void requestWrite(Session session, OutputStream out) {
+            try {
+                writerPool.execute(() -> drain(session, out));
+            } catch (RejectedExecutionException e) {
+                session.close();
+            }
+        }
+
+        /**
+         * Write everything queued for the session with a single flush
+         *
+         * @param session session
+         * @param out     output stream of the socket
+         */
+        private static void drain(Session session, OutputStream out) {
+            try {
+                byte[] frame;
+                while ((frame = session.poll()) != null) {
+                    out.write(frame);
+                    Metrics.bytesOut.add(frame.length);
+                }
+                out.flush();
+            } catch (IOException e) {
+                logger.info("Write to client failed: " + e.getMessage());
+                session.close();
+                return;
+            }
+            session.writeDone();
+        }
+
+        static class handlingClientRequest implements Runnable {
+            MessageReader in;
+            Session session;
 
-            public handlingClientRequest(BufferedReader in, PrintWriter out) {
+            public handlingClientRequest(MessageReader in, Session session) {
                 logger.info("Start handling client request");
                 this.in = in;
-                this.out = out;
+                this.session = session;
             }
 
             /**
-             * Thread to handle client requests
+             * Thread to handle client requests, the session is closed when the connection ends
              */
             @Override
             public void run() {
-                String inputLine;
+                long counted = 0;
                 while (running) {
                     try {
-                        inputLine = in.readLine();
-                    } catch (IOException e) {
-                        try {
-                            Thread.sleep(1000);
-                        } catch (InterruptedException ex) {
-                            logger.error("Thread interrupted: " + ex.getMessage());
+                        if (!in.next()) {
+                            // End of stream, the client closed the connection
+                            break;
                         }
+                        Metrics.bytesIn.add(in.getBytesRead() - counted);
+                        counted = in.getBytesRead();
+                        session.touchRead();
+                        throttle(in.end() - in.start());
+                        handlingClientRequest(in.buffer(), in.start(), in.end(), in.codec(), session);
+                    } catch (IOException e) {
                         logger.error("Client request error: " + e.getMessage());
                         break;
+                    } catch (RuntimeException e) {
+                        // The bad request is consumed, go on with the next one
+                        logger.error("Client request error: " + e.getMessage());
+                    } catch (InterruptedException e) {
+                        break;
                     }
-                    if (inputLine == null) {
-                        continue;
-                    }
-                    handlingClientRequest(inputLine, out);
+                }
+                session.close();
+            }
+
+            /**
+             * Take the request from the rate limits of the client, a request over the limits waits until
+             * the client is back under them, meanwhile nothing is read so the client fills its socket buffers
+             *
+             * @param length bytes of the request
+             * @throws InterruptedException server closing
+             */
+            private void throttle(int length) throws InterruptedException {
+                long pause = session.getLimiter().acquire(length);
+                if (pause > 0) {
+                    logger.debug("Throttle client {} for {} ms", session.getUsername(), pause / 1_000_000);
+                    TimeUnit.NANOSECONDS.sleep(pause);
                 }
             }
         }
@@ -209,10 +487,76 @@ public class CreatingServer extends Thread {
          * Handle client requests
          *
          * @param inputLine input line
-         * @param out       output stream
+         * @param session   session of the client
          */
-        public static void handlingClientRequest(String inputLine, PrintWriter out) {
-            JSONObject json = new JSONObject(inputLine);
+        public static void handlingClientRequest(String inputLine, Session session) {
+            handlingClientRequest(new JSONObject(inputLine), session);
+        }
+
+        /**
+         * Handle a text line or binary frame, a chat message is read by the codec without building JSON.
+         * A compressed frame is inflated with the context of the session first.
+         * The handling time is recorded per api, see Metrics.
+         *
+         * @param buffer  buffer holding the request, not moved
+         * @param start   first byte
+         * @param end     end of the line without its separator, or end of the frame
+         * @param codec   codec of the reading thread or connection
+         * @param session session of the client
+         * @throws IOException malformed binary or compressed frame, or a compressed one without compression
+         *                     negotiated at login
+         */
+        static void handlingClientRequest(ByteBuffer buffer, int start, int end, ChatCodec codec, Session session)
+                throws IOException {
+            if (buffer.get(start) == BinaryProtocol.RELAY) {
+                Relay.Inbound link = session.getLink();
+                if (link == null) {
+                    throw new IOException("Relay frame from a client");
+                }
+                link.dispatch(buffer, start, end, codec);
+                return;
+            }
+            long began = System.nanoTime();
+            if (buffer.get(start) == BinaryProtocol.COMPRESSED) {
+                Compression.Inflate inflate = session.getInflate();
+                if (inflate == null) {
+                    throw new IOException("Compressed frame without compression negotiated");
+                }
+                inflate.inflate(buffer, start, end);
+                buffer = inflate.buffer();
+                start = 0;
+                end = inflate.length();
+            }
+            // A client whose room is served by another node is relayed there as it is
+            Relay.Outbound relay = session.getRelay();
+            if (codec.read(buffer, start, end) == ChatCodec.SEND_MSG && codec.message().message != null) {
+                if (relay != null) {
+                    relay.forward(session, buffer, start, end);
+                    Metrics.request("relay", System.nanoTime() - began);
+                } else {
+                    sendMsg(session, codec.message().message, codec.message().ack);
+                    Metrics.request("sendMsg", System.nanoTime() - began);
+                }
+                return;
+            }
+            JSONObject json = codec.readJSON(buffer, start, end);
+            String api = json.optString("api");
+            if (relay != null && Relay.isRelayed(api)) {
+                relay.forward(session, buffer, start, end);
+                Metrics.request("relay", System.nanoTime() - began);
+                return;
+            }
+            handlingClientRequest(json, session);
+            Metrics.request(api, System.nanoTime() - began);
+        }
+
+        /**
+         * Handle a client request of either protocol
+         *
+         * @param json    request with 'api'
+         * @param session session of the client
+         */
+        static void handlingClientRequest(JSONObject json, Session session) {
             String api = (String) json.get("api");
             switch (api) {
                 case "sendMsg": {
@@ -221,41 +565,93 @@ public class CreatingServer extends Thread {
                      * data: {
                      *     'api': 'sendMsg',
                      *     'data': {
-                     *         'message': 'message'
+                     *         'message': 'message',
+                     *         'ack': 41  // Optional, piggybacked cumulative ack
                      *     }
                      * }
                      */
                     JSONObject data = (JSONObject) json.get("data");
-                    String msg = (String) data.get("message");
-                    String user = UserData.getUser(out);
-                    UserData.addMsgCount(user);
-                    JSONObject singleData = new JSONObject();
-                    singleData.put("user", user);
-                    singleData.put("message", msg);
-                    int counts = UserData.getMsgCount(user);
-                    singleData.put("count", counts);
-                    String time = LocalTime.now().toString();
-                    singleData.put("time", time);
-                    HistoryData.addHistoryData(singleData);
-                    RoomControl.newMsgFrom(user, msg);
-                    if (Render.isServerMode()) {
-                        Render.receiveMsg(msg, user, time, counts);
-                    }
+                    sendMsg(session, (String) data.get("message"), data.optLong("ack", -1));
                     break;
                 }
                 case "getMsgHistory": {
                     /*
-                     * Get message history
+                     * Get message history, one page of it if data is given
                      * data: {
-                     *     'api': 'getMsgHistory'
+                     *     'api': 'getMsgHistory',
+                     *     'data': {
+                     *         'before': 120,  // Optional, page ends before this message number
+                     *         'after': 80,    // Optional, page starts after this message number
+                     *         'limit': 50     // Optional, page size
+                     *     }
                      * }
+                     * Without before and after the latest page is returned.
+                     * The response carries 'cursor': {'first', 'last', 'total', 'next'},
+                     * 'next' continues in the same direction and is missing on the last page.
+                     * Without data the whole history is returned, for older clients.
+                     * The history is read and sent on a room thread, see Room.readHistory.
                      */
                     JSONObject response = new JSONObject();
                     response.put("status", "success");
                     response.put("api", "historyData");
-                    response.put("data", HistoryData.getHistoryData());
-                    out.println(response);
-                    logger.info("getMsgHistory: " + response);
+                    Room room = session.getRoom();
+                    JSONObject page = json.optJSONObject("data");
+                    if (room == null) {
+                        response.put("data", new JSONArray());
+                        session.send(response, null);
+                        break;
+                    }
+                    room.readHistory(() -> {
+                        if (page == null) {
+                            response.put("data", room.getHistoryData(0, room.getHistorySize()));
+                        } else {
+                            putHistoryPage(response, room, page);
+                        }
+                        session.send(response, null);
+                        logger.info("getMsgHistory: " + response.getJSONArray("data").length() + " messages");
+                    });
+                    break;
+                }
+                case "searchHistory": {
+                    /*
+                     * Search the history of the room through its index, see HistoryIndex
+                     * data: {
+                     *     'api': 'searchHistory',
+                     *     'data': {
+                     *         'query': 'hello wor',  // Words, each matches the words starting with it
+                     *         'before': 1234,        // Optional, only messages before this sequence number
+                     *         'limit': 50            // Optional, page size
+                     *     }
+                     * }
+                     * The result carries 'data': [{'user', 'message', 'time', 'count', 'seq', 'score'}], the newest
+                     * matches ranked by score, and 'cursor': {'next'}, 'next' is the 'before' of the next page
+                     * and is missing on the last page. The search runs and is answered on a room thread.
+                     */
+                    JSONObject response = new JSONObject();
+                    response.put("api", "searchResult");
+                    Room room = session.getRoom();
+                    JSONObject search = json.optJSONObject("data");
+                    String query = search == null ? "" : search.optString("query").trim();
+                    if (room == null || query.isEmpty()) {
+                        response.put("status", "error");
+                        response.put("message", room == null ? "Not in a room" : "Empty query");
+                        session.send(response, null);
+                        break;
+                    }
+                    int limit = Math.max(1, Math.min(MAX_HISTORY_PAGE, search.optInt("limit", DEFAULT_HISTORY_PAGE)));
+                    long before = search.optLong("before", Long.MAX_VALUE);
+                    room.readHistory(() -> {
+                        List<JSONObject> hits = new ArrayList<>();
+                        long next = room.search(query, before, limit, hits);
+                        JSONObject cursor = new JSONObject();
+                        if (next >= 0) {
+                            cursor.put("next", next);
+                        }
+                        response.put("status", "success");
+                        response.put("data", new JSONArray(hits));
+                        response.put("cursor", cursor);
+                        session.send(response, null);
+                    });
                     break;
                 }
                 case "login": {
@@ -264,19 +660,173 @@ public class CreatingServer extends Thread {
                      * data: {
                      *     'api': 'login',
                      *     'data': {
-                     *         'user': 'username'
+                     *         'user': 'username',
+                     *         'lastSeenSeq': 41,  // Optional, every message up to this sequence number is on the client
+                     *         'ack': true,        // Optional, the client acks the messages it receives
+                     *         'protocols': ['binary'],  // Optional, protocols the client speaks besides text
+                     *         'compression': ['deflate'],  // Optional, the client inflates compressed frames
+                     *         'room': 'main'  // Optional, room to join, created if there is none, the default room otherwise
                      *     }
                      * }
+                     * The result carries 'protocol', what the server sends from then on, the result itself is text.
+                     * The result carries 'compression', 'deflate' if frames may be compressed from then on,
+                     * in both directions, otherwise 'none'.
+                     * The result carries 'room', the room joined, and 'seq', its latest sequence number,
+                     * 'delta' and 'ack'. Sequence numbers count the messages of that room.
+                     * If delta is true the messages the client missed follow as receiveMsg,
+                     * otherwise the client has to fetch the history again.
+                     * If ack is true the client gets its own messages back and unacked messages are resent.
                      */
                     JSONObject data = (JSONObject) json.get("data");
                     String user = (String) data.get("user");
-                    UserData.addUser(out, user);
+                    long lastSeen = data.optLong("lastSeenSeq", -1);
+                    boolean acks = data.optBoolean("ack", false);
+                    boolean binary = BINARY_PROTOCOL && BinaryProtocol.isOffered(data);
+                    boolean compress = COMPRESSION && Compression.isOffered(data);
                     JSONObject response = new JSONObject();
                     response.put("api", "loginResult");
+                    String name = data.optString("room", RoomRegistry.DEFAULT_ROOM);
+                    String node = ownerOf(name);
+                    Room room = null;
+                    if (node == null) {
+                        room = findRoom(name, response);
+                        if (room == null) {
+                            session.send(response, null);
+                            break;
+                        }
+                    }
+                    Session previous = sessions.login(session, user);
+                    if (previous != null) {
+                        // Same user logged in again, e.g. after a reconnect, the old connection is stale
+                        logger.info("User logged in again, close previous session " + previous.getId());
+                        previous.close();
+                    }
+                    Room current = session.getRoom();
+                    if (current != null && current != room) {
+                        current.leave(session);
+                    }
+                    Relay.Outbound relay = session.getRelay();
+                    if (relay != null) {
+                        relay.detach(session, false);
+                    }
+                    if (node != null) {
+                        // Served by another node, which answers the login
+                        relayTo(session, node, name, lastSeen, acks, binary, compress, "loginResult");
+                        break;
+                    }
+                    response.put("protocol", binary ? BinaryProtocol.NAME : "text");
+                    response.put("compression", compress ? Compression.NAME : "none");
+                    enterRoom(session, room, lastSeen, acks, true, response, () -> {
+                        // Frames queued from here on are binary
+                        session.setBinary(binary);
+                        if (compress) {
+                            session.startCompressing();
+                        }
+                    });
+                    break;
+                }
+                case "joinRoom": {
+                    /*
+                     * Move to another room, created if there is none
+                     * data: {
+                     *     'api': 'joinRoom',
+                     *     'data': {
+                     *         'room': 'games',    // Letters, digits, '_' and '-', at most 32
+                     *         'lastSeenSeq': 41   // Optional, every message of that room up to this one is on the client
+                     *     }
+                     * }
+                     * The result carries 'room', 'seq', 'delta' and 'ack' like loginResult, missed messages follow
+                     * if delta is true. The user is in one room at a time and leaves the previous one.
+                     */
+                    JSONObject data = json.optJSONObject("data");
+                    JSONObject response = new JSONObject();
+                    response.put("api", "joinResult");
+                    if (data == null) {
+                        data = new JSONObject();
+                    }
+                    changeRoom(session, json, data.optString("room", RoomRegistry.DEFAULT_ROOM),
+                            data.optLong("lastSeenSeq", -1), response);
+                    break;
+                }
+                case "leaveRoom": {
+                    /*
+                     * Leave the room for the default room
+                     * data: {
+                     *     'api': 'leaveRoom'
+                     * }
+                     * The result carries 'room', 'seq', 'delta' and 'ack' of the default room like joinResult.
+                     */
+                    JSONObject response = new JSONObject();
+                    response.put("api", "leaveResult");
+                    changeRoom(session, json, RoomRegistry.DEFAULT_ROOM, -1, response);
+                    break;
+                }
+                case "nodeLink": {
+                    /*
+                     * Link from another node of the cluster, relay frames of the clients it relays here follow
+                     * data: {
+                     *     'api': 'nodeLink',
+                     *     'data': {
+                     *         'node': 'host:port',  // Name of the other node, one of chatroom.cluster.nodes
+                     *         'secret': '...'       // chatroom.cluster.secret
+                     *     }
+                     * }
+                     * See Relay. A connection that is refused is closed.
+                     */
+                    JSONObject data = json.optJSONObject("data");
+                    JSONObject response = new JSONObject();
+                    response.put("api", "nodeLinkResult");
+                    String node = data != null ? data.optString("node", null) : null;
+                    Cluster nodes = cluster;
+                    if (nodes == null || session.getUsername() != null || session.getLink() != null
+                            || !nodes.acceptsLink(node, data.optString("secret", null))) {
+                        logger.warn("Link refused, claimed node: " + node);
+                        response.put("status", "error");
+                        response.put("message", nodes == null ? "Not in a cluster" : "Link refused");
+                        session.send(response, null);
+                        session.closeGracefully();
+                        break;
+                    }
+                    session.setLink(new Relay.Inbound(session, Cluster.LINK_SESSIONS), Cluster.LINK_CAPACITY);
+                    response.put("status", "success");
+                    logger.info("Link from node " + node);
+                    session.send(response, null);
+                    break;
+                }
+                case "listRooms": {
+                    /*
+                     * List rooms in name order, one page at a time
+                     * data: {
+                     *     'api': 'listRooms',
+                     *     'data': {
+                     *         'after': 'games',  // Optional, page starts after this room
+                     *         'limit': 50        // Optional, page size
+                     *     }
+                     * }
+                     * The result carries 'data': [{'room', 'userNumber'}] and 'cursor': {'total', 'next'},
+                     * 'next' is the 'after' of the next page and is missing on the last page.
+                     */
+                    JSONObject page = json.optJSONObject("data");
+                    String after = page == null ? null : page.optString("after", null);
+                    int limit = Math.max(1, Math.min(MAX_ROOM_PAGE,
+                            page == null ? DEFAULT_HISTORY_PAGE : page.optInt("limit", DEFAULT_HISTORY_PAGE)));
+                    RoomRegistry registry = rooms;
+                    List<Room> list = registry.list(after, limit);
+                    JSONArray result = new JSONArray();
+                    for (Room room : list) {
+                        result.put(new JSONObject().put("room", room.getName()).put("userNumber", room.getUserNumber()));
+                    }
+                    JSONObject cursor = new JSONObject();
+                    cursor.put("total", registry.size());
+                    if (list.size() == limit && !registry.list(list.get(limit - 1).getName(), 1).isEmpty()) {
+                        cursor.put("next", list.get(limit - 1).getName());
+                    }
+                    JSONObject response = new JSONObject();
+                    response.put("api", "roomList");
                     response.put("status", "success");
-                    out.println(response);
-                    logger.info("login: " + response);
-                    RoomControl.newUser(user);
+                    response.put("data", result);
+                    response.put("cursor", cursor);
+                    session.send(response, null);
                     break;
                 }
                 case "close": {
@@ -286,12 +836,49 @@ public class CreatingServer extends Thread {
                      *     'api': 'close'
                      * }
                      */
-                    String user = UserData.getUser(out);
+                    String user = session.getUsername();
                     logger.info("User quited: " + user);
-                    RoomControl.userLeft(user);
-                    UserData.removeUser(out);
-                    printWriters.remove(out);
-                    Thread.currentThread().interrupt();
+                    Room room = session.getRoom();
+                    if (user != null && room != null) {
+                        room.userLeft(user);
+                    }
+                    // Closing the session ends the reading loop of this client
+                    session.closeGracefully();
+                    break;
+                }
+                case "ack": {
+                    /*
+                     * Cumulative ack of the chat messages received
+                     * data: {
+                     *     'api': 'ack',
+                     *     'data': {
+                     *         'seq': 41  // Every message up to this sequence number arrived
+                     *     }
+                     * }
+                     */
+                    JSONObject data = json.optJSONObject("data");
+                    if (data != null) {
+                        session.ack(data.optLong("seq", -1));
+                    }
+                    break;
+                }
+                case "ping": {
+                    /*
+                     * Heartbeat from the client, answered in its protocol
+                     * data: {
+                     *     'api': 'ping'
+                     * }
+                     */
+                    session.send(new JSONObject().put("api", "pong"), null);
+                    break;
+                }
+                case "pong": {
+                    /*
+                     * Reply to the heartbeat of the server, reading it already refreshed the session
+                     * data: {
+                     *     'api': 'pong'
+                     * }
+                     */
                     break;
                 }
                 case "getServerInfo": {
@@ -301,7 +888,21 @@ public class CreatingServer extends Thread {
                      *     'api': 'getServerInfo'
                      * }
                      */
-                    out.println(getResponse());
+                    session.send(serverInfo(session.getRoom()), Room.PRESENCE_KEY);
+                    break;
+                }
+                case "getServerMetrics": {
+                    /*
+                     * Get the metrics of the server, latencies in nanoseconds, see Metrics
+                     * data: {
+                     *     'api': 'getServerMetrics'
+                     * }
+                     */
+                    JSONObject response = new JSONObject();
+                    response.put("api", "serverMetrics");
+                    response.put("status", "success");
+                    response.put("data", Metrics.snapshot());
+                    session.send(response, null);
                     break;
                 }
                 default: {
@@ -312,309 +913,427 @@ public class CreatingServer extends Thread {
         }
 
         /**
-         * Get server info
+         * A chat message from the client, stored and broadcast
          *
-         * @return server info
+         * @param session session of the client
+         * @param msg     message
+         * @param ack     piggybacked cumulative ack, -1 if none
          */
-        private static JSONObject getResponse() {
-            JSONObject response = new JSONObject();
-            response.put("api", "serverInfo");
-            response.put("status", "success");
-            JSONObject data = new JSONObject();
-            data.put("userNumber", UserData.getUserNumber());
-            data.put("host", Render.user);
-            response.put("data", data);
-            return response;
+        private static void sendMsg(Session session, String msg, long ack) {
+            if (ack >= 0) {
+                session.ack(ack);
+            }
+            String user = session.getUsername();
+            Room room = session.getRoom();
+            if (user == null || room == null) {
+                logger.error("sendMsg before login, session " + session.getId());
+                return;
+            }
+            room.newMsgFrom(user, msg, sessions.nextMsgCount(user));
         }
 
         /**
-         * Broadcast message to all clients except the specified client
+         * Look up the room of a login or joinRoom request, create it if there is none
          *
-         * @param message message
-         * @param except  except
-         * @throws IOException IOException
+         * @param name     room name, null for the default room
+         * @param response response to put the error into
+         * @return room, null if the name is invalid or there are too many rooms
          */
-        public static void broadcastMessage(String message, String except) throws IOException {
-            // Broadcast message to all clients except the specified client
-            for (PrintWriter pw : printWriters) {
-                if (pw == null || UserData.getUser(pw) == null) {
-                    printWriters.remove(pw);
-                    UserData.removeUser(pw);
-                    continue;
-                }
-                if (Objects.equals(UserData.getUser(pw), except)) {
-                    continue;
-                }
-                pw.println(message);
-                logger.info("BroadcastMessage: " + message);
+        private static Room findRoom(String name, JSONObject response) {
+            RoomRegistry registry = rooms;
+            if (name == null) {
+                return registry.getDefault();
+            }
+            try {
+                return registry.getOrCreate(name);
+            } catch (IllegalArgumentException e) {
+                response.put("status", "error");
+                response.put("message", e.getMessage());
+                return null;
             }
         }
-    }
 
-    /**
-     * History data class to manage history data
-     */
-    static class HistoryData {
-        private static JSONArray historyData = new JSONArray();
-        private static final Object lock = new Object();
+        private static boolean checkLogin(Session session, JSONObject response) {
+            if (session.getUsername() != null) {
+                return true;
+            }
+            response.put("status", "error");
+            response.put("message", "Not logged in");
+            return false;
+        }
 
         /**
-         * Add history data
+         * Node serving a room
          *
-         * @param singleData single data
+         * @param name room name
+         * @return node name, null if the room is served here or the name is invalid
          */
-        public static void addHistoryData(JSONObject singleData) {
-            synchronized (lock) {
-                historyData.put(singleData);
+        private static String ownerOf(String name) {
+            Cluster nodes = cluster;
+            if (nodes == null || !RoomRegistry.isValidName(name)) {
+                return null;
             }
+            String owner = nodes.owner(name);
+            return nodes.getSelf().equals(owner) ? null : owner;
         }
 
         /**
-         * Save history data to file
+         * Move a logged in user to a room, the previous room sees the user leave
+         *
+         * @param session  session of the user
+         * @param request  joinRoom or leaveRoom request
+         * @param name     room to join
+         * @param lastSeen last sequence number of the room the client has, -1 if none
+         * @param response joinResult or leaveResult
          */
-        public static void saveHistoryToFile() {
-            _saveHistoryToFile(historyData);
+        private static void changeRoom(Session session, JSONObject request, String name, long lastSeen,
+                                       JSONObject response) {
+            if (!checkLogin(session, response)) {
+                session.send(response, null);
+                return;
+            }
+            String node = ownerOf(name);
+            Relay.Outbound relay = session.getRelay();
+            if (node != null && relay != null && node.equals(relay.getNode())) {
+                // The node serving both rooms moves the user itself
+                relay.forward(session, request);
+                return;
+            }
+            Room room = null;
+            if (node == null) {
+                room = findRoom(name, response);
+                if (room == null) {
+                    session.send(response, null);
+                    return;
+                }
+            }
+            boolean binary = session.isBinary();
+            boolean acks = session.isAcking();
+            Room current = session.getRoom();
+            if (relay != null) {
+                Relay.Relayed entry = relay.detach(session, true);
+                if (entry != null) {
+                    binary = entry.binary;
+                    acks = entry.acks;
+                }
+            } else if (current != null && current != room) {
+                current.userLeft(session.getUsername());
+                current.leave(session);
+            }
+            if (node != null) {
+                relayTo(session, node, name, lastSeen, acks, binary, false, response.getString("api"));
+                return;
+            }
+            enterRoom(session, room, lastSeen, acks, current != room, response, () -> {
+            });
         }
 
         /**
-         * Save history data to file
+         * Relay a logged in user to the node serving its room once the link to it is up, that node answers
+         * the login made in its name
          *
-         * @param data data
+         * @param session   session of the user
+         * @param node      node serving the room
+         * @param room      room name
+         * @param lastSeen  last sequence number of the room the client has, -1 if none
+         * @param acks      the client acks the messages it receives
+         * @param binary    the client speaks the binary protocol
+         * @param compress  compress for the client once logged in
+         * @param resultApi api of the response to the client
          */
-        public static void saveHistoryToFile(JSONArray data) {
-            _saveHistoryToFile(data);
+        private static void relayTo(Session session, String node, String room, long lastSeen, boolean acks,
+                                    boolean binary, boolean compress, String resultApi) {
+            // Answered when the link is up or failed, the handling thread goes on meanwhile
+            cluster.link(node, (link, error) -> {
+                if (session.isClosed()) {
+                    return;
+                }
+                if (error != null || session.getRoom() != null || session.getRelay() != null) {
+                    // Not reachable, or the user joined another room while the link was connecting
+                    logger.error(error != null ? error.getMessage()
+                            : "Relay of " + session.getUsername() + " to node " + node + " superseded");
+                    JSONObject response = new JSONObject();
+                    response.put("api", resultApi);
+                    response.put("status", "error");
+                    response.put("message", "Room unavailable");
+                    session.send(response, null);
+                    return;
+                }
+                attach(session, link, room, lastSeen, acks, binary, compress, resultApi);
+            });
         }
 
         /**
-         * Save history data to file (path=./chat_history.json)
+         * Log a user in on the node serving its room over the link to it
          *
-         * @param historyData history data
+         * @param session   session of the user
+         * @param link      link to the node serving the room
+         * @param room      room name
+         * @param lastSeen  last sequence number of the room the client has, -1 if none
+         * @param acks      the client acks the messages it receives
+         * @param binary    the client speaks the binary protocol
+         * @param compress  compress for the client once logged in
+         * @param resultApi api of the response to the client
          */
-        private static void _saveHistoryToFile(JSONArray historyData) {
-            String filePath = "./chat_history.json";
-            synchronized (lock) {
-                try (FileWriter file = new FileWriter(filePath)) {
-                    file.write(historyData.toString(2));
-                    file.flush();
-                } catch (IOException e) {
-                    logger.error("failed to save history data to file: " + e.getMessage());
-                }
-                logger.info("history data saved to file: " + filePath);
+        private static void attach(Session session, Relay.Outbound link, String room, long lastSeen, boolean acks,
+                                   boolean binary, boolean compress, String resultApi) {
+            // The other node keeps the retransmit ring from now on
+            session.stopAcking();
+            session.getLimiter().setLimits(RateLimiter.Limits.forRoom(room));
+            JSONObject data = new JSONObject();
+            data.put("user", session.getUsername());
+            data.put("room", room);
+            data.put("ack", acks);
+            if (lastSeen >= 0) {
+                data.put("lastSeenSeq", lastSeen);
+            }
+            if (binary) {
+                data.put("protocols", new JSONArray().put(BinaryProtocol.NAME));
             }
+            link.attach(session, new JSONObject().put("api", "login").put("data", data), binary, acks, compress,
+                    resultApi);
+            logger.info("Relay " + session.getUsername() + " to node " + link.getNode() + " for room " + room);
         }
 
         /**
-         * Load history data from file (path=./chat_history.json)
+         * Add a logged in user to a room and send the response with the latest sequence number of the room.
+         * No message is published in the room meanwhile, so the missed ones and live ones neither overlap
+         * nor interleave. If the history of the room is not open the user is added on a room thread once it is,
+         * the handling thread goes on meanwhile.
          *
-         * @return history data
+         * @param session       session of the user
+         * @param room          room to join
+         * @param lastSeen      last sequence number of the room the client has, -1 if none
+         * @param acks          the client acks the messages it receives
+         * @param announce      publish the join to the room
+         * @param response      response with 'api', completed and sent
+         * @param afterResponse run once the response is queued, before the missed messages
          */
-        public static JSONArray loadHistoryFromFile() {
-            String filePath = "./chat_history.json";
-            synchronized (lock) {
-                JSONArray chat_history;
-                try (FileReader file = new FileReader(filePath)) {
-                    chat_history = new JSONArray(new JSONTokener(file));
-                    historyData = chat_history;
-                    return chat_history;
-                } catch (IOException e) {
-                    logger.error("failed to load history data from file: " + e.getMessage());
-                    return new JSONArray();
-                } catch (JSONException e) {
-                    logger.error("parse history data failed: " + e.getMessage());
-                    return new JSONArray();
+        private static void enterRoom(Session session, Room room, long lastSeen, boolean acks, boolean announce,
+                                      JSONObject response, Runnable afterResponse) {
+            room.whenOpen(() -> {
+                if (session.isClosed()) {
+                    return;
                 }
+                Room current = session.getRoom();
+                if (current != null && current != room || session.getRelay() != null) {
+                    // The user joined another room while this one was opening
+                    logger.error("Join of " + session.getUsername() + " to room " + room.getName() + " superseded");
+                    response.put("status", "error");
+                    response.put("message", "Room unavailable");
+                    session.send(response, null);
+                    return;
+                }
+                enter(session, room, lastSeen, acks, announce, response, afterResponse);
+                if (session.isClosed()) {
+                    // Disconnected while joining, after its disconnect looked for a room to leave
+                    room.leave(session);
+                }
+            });
+        }
+
+        /**
+         * Add a logged in user to a room, called with the sequencer of the room held and its history open
+         *
+         * @param session       session of the user
+         * @param room          room to join
+         * @param lastSeen      last sequence number of the room the client has, -1 if none
+         * @param acks          the client acks the messages it receives
+         * @param announce      publish the join to the room
+         * @param response      response with 'api', completed and sent
+         * @param afterResponse run once the response is queued, before the missed messages
+         */
+        private static void enter(Session session, Room room, long lastSeen, boolean acks, boolean announce,
+                                  JSONObject response, Runnable afterResponse) {
+            String user = session.getUsername();
+            if (announce) {
+                // Before the session joins, it learns about its own join from the history
+                room.newUser(user);
+            }
+            // Broadcasts still queued in the fan-out happened before this join
+            session.setJoinedBroadcast(room.getFanOut().getLastIssued());
+            room.enter(session, user);
+            long latest = room.getHistorySize() - 1;
+            boolean delta = lastSeen >= 0 && lastSeen <= latest && latest - lastSeen <= MAX_HISTORY_PAGE;
+            response.put("status", "success");
+            response.put("room", room.getName());
+            response.put("seq", latest);
+            response.put("delta", delta);
+            response.put("ack", acks);
+            if (acks) {
+                session.startAcking(delta ? lastSeen : latest);
             }
+            session.getOut().println(response);
+            afterResponse.run();
+            logger.info(response.getString("api") + ": " + response);
+            if (delta) {
+                sendMissed(session, lastSeen + 1, latest + 1);
+            }
+            // The others learn of the join with the next push, the joining client at once
+            session.send(serverInfo(room), Room.PRESENCE_KEY);
         }
 
         /**
-         * Get history data
+         * Send messages from the history a client missed, at most one page.
+         * A client that does not ack does not get its own ones, it already has them.
          *
-         * @return history data
+         * @param session session of the client
+         * @param from    first sequence number
+         * @param to      end, exclusive
          */
-        public static JSONArray getHistoryData() {
-            return historyData;
+        static void sendMissed(Session session, long from, long to) {
+            Room room = session.getRoom();
+            if (room == null) {
+                return;
+            }
+            List<ChatMessage> missed = room.getMessages(from, Math.min(to, from + MAX_HISTORY_PAGE));
+            for (ChatMessage message : missed) {
+                if (!session.isAcking() && session.getUsername().equals(message.user)) {
+                    continue;
+                }
+                session.offer(Frame.chat(message), null);
+            }
+            logger.info("Sent " + missed.size() + " missed messages to " + session.getUsername());
         }
 
         /**
-         * Clear history data
+         * Put one page of history and its cursor into a historyData response
+         *
+         * @param response response
+         * @param room     room of the client
+         * @param page     request data with before, after and limit
          */
-        public static void clearHistoryData() {
-            historyData = new JSONArray();
+        private static void putHistoryPage(JSONObject response, Room room, JSONObject page) {
+            int limit = Math.max(1, Math.min(MAX_HISTORY_PAGE, page.optInt("limit", DEFAULT_HISTORY_PAGE)));
+            long total = room.getHistorySize();
+            long from;
+            long to;
+            boolean forward = page.has("after");
+            if (forward) {
+                from = Math.max(0, Math.min(total, page.optLong("after", -1) + 1));
+                to = Math.min(total, from + limit);
+            } else {
+                to = Math.max(0, Math.min(total, page.optLong("before", total)));
+                from = Math.max(0, to - limit);
+            }
+            response.put("data", room.getHistoryData(from, to));
+            JSONObject cursor = new JSONObject();
+            cursor.put("first", from);
+            cursor.put("last", to - 1);
+            cursor.put("total", total);
+            if (forward && to < total) {
+                cursor.put("next", to - 1);
+            } else if (!forward && from > 0) {
+                cursor.put("next", from);
+            }
+            response.put("cursor", cursor);
         }
     }
 
     /**
-     * User data class to manage user data
+     * History data class to manage history data, the server history lives in the history log of each room
      */
-    static class UserData {
-        private static final HashMap<PrintWriter, String> UserMap = new HashMap<>();
+    static class HistoryData {
+        // Not synchronized, so virtual threads are not pinned while holding it during file I/O
+        private static final ReentrantLock lock = new ReentrantLock();
 
         /**
-         * Add user
-         *
-         * @param pw       print writer
-         * @param username username
+         * Make sure the server history is on disk, it is persisted as it grows so there is nothing to rewrite
          */
-        public static void addUser(PrintWriter pw, String username) {
-            UserMap.put(pw, username);
-        }
-
-        public static String getUser(PrintWriter pw) {
-            if (!UserMap.containsKey(pw)) {
-                return null;
+        public static void saveHistoryToFile() {
+            RoomRegistry registry = rooms;
+            if (registry != null) {
+                registry.flush();
             }
-            return UserMap.get(pw);
-        }
-
-        private static final HashMap<String, Integer> MsgCount = new HashMap<>();
-
-        public static void removeUser(PrintWriter pw) {
-            UserMap.remove(pw);
         }
 
-        public static void removeUser(String username) {
-            for (PrintWriter pw : UserMap.keySet()) {
-                if (UserMap.get(pw).equals(username)) {
-                    UserMap.remove(pw);
-                    break;
-                }
+        /**
+         * Move the history an older server kept in ./chat_history.json into the history log of the default room.
+         * Only done while that log is empty, so once, the file is left as it is. A file that can not be read
+         * is not migrated, the server starts with the history it has.
+         * Called with the sequencer of the room held and its history open.
+         *
+         * @param room default room
+         */
+        static void migrateHistoryFile(Room room) {
+            File file = new File("./chat_history.json");
+            if (room.getHistorySize() > 0 || !file.isFile()) {
+                return;
             }
-        }
-
-        public static boolean isUserExist(String username) {
-            for (PrintWriter pw : UserMap.keySet()) {
-                if (UserMap.get(pw).equals(username)) {
-                    return true;
+            JSONArray data;
+            lock.lock();
+            try (FileReader reader = new FileReader(file)) {
+                data = new JSONArray(new JSONTokener(reader));
+            } catch (IOException | JSONException e) {
+                logger.error("history of an older server in " + file + " not migrated: " + e.getMessage());
+                return;
+            } finally {
+                lock.unlock();
+            }
+            int migrated = 0;
+            for (int i = 0; i < data.length(); i++) {
+                JSONObject entry = data.optJSONObject(i);
+                if (entry == null) {
+                    continue;
+                }
+                ChatMessage message = ChatMessage.fromJSON(entry);
+                message.seq = -1;
+                message.ack = -1;
+                if (room.addHistory(message) >= 0) {
+                    migrated++;
                 }
             }
-            return false;
+            // Written by the drain like any message, a flush here would wait for a drain queued on this thread
+            logger.info("history of an older server migrated: " + migrated + " of " + data.length()
+                    + " messages of " + file + " into room " + room.getName());
         }
 
         /**
-         * Get message count
+         * Save history data to file
          *
-         * @param username username
-         * @return message count
+         * @param data data
          */
-        public static int getMsgCount(String username) {
-            if (!MsgCount.containsKey(username)) {
-                MsgCount.put(username, 1);
-            }
-            return MsgCount.get(username);
+        public static void saveHistoryToFile(JSONArray data) {
+            _saveHistoryToFile(data);
         }
 
         /**
-         * Add message count
+         * Save history data to file (path=./chat_history.json)
          *
-         * @param username username
+         * @param historyData history data
          */
-        public static void addMsgCount(String username) {
-            if (MsgCount.containsKey(username)) {
-                MsgCount.put(username, MsgCount.get(username) + 1);
-            } else {
-                MsgCount.put(username, 1);
-            }
-        }
-
-        public static boolean isUserExist(PrintWriter pw) {
-            return UserMap.containsKey(pw);
-        }
-
-        public static int getUserNumber() {
-            if (Render.isServerMode()) {
-                return UserMap.size() + 1;
-            }
-            return UserMap.size();
-        }
-    }
-
-    /**
-     * Room control class to manage the chatroom
-     */
-    static class RoomControl {
-        public static void newUser(String username) {
-            // New user joined
-            String time = LocalTime.now().toString();
-            JSONObject data = new JSONObject();
-            data.put("user", "system");
-            data.put("message", username + " joined the room");
-            data.put("time", time);
-            data.put("count", 0);
-            JSONObject response = new JSONObject();
-            response.put("api", "receiveMsg");
-            response.put("data", data);
-            JSONObject singleData = new JSONObject();
-            singleData.put("user", "system");
-            singleData.put("message", username + " joined the room");
-            singleData.put("count", 0);
-            singleData.put("time", time);
-            HistoryData.addHistoryData(singleData);
-            if (Render.isServerMode()) {
-                Render.receiveMsg(username + " joined the room", "system", time, 0);
-            }
-            try {
-                ClientHandler.broadcastMessage(response.toString(), username);
-            } catch (IOException e) {
-                logger.error("Failed to broadcast message to all clients: " + e.getMessage());
-            }
-        }
-
-        public static void userLeft(String username) {
-            // User left
-            JSONObject data = new JSONObject();
-            data.put("user", "system");
-            data.put("message", username + " left the room");
-            data.put("time", LocalTime.now().toString());
-            data.put("count", 0);
-            JSONObject response = new JSONObject();
-            response.put("api", "receiveMsg");
-            response.put("data", data);
-            JSONObject singleData = new JSONObject();
-            singleData.put("user", "system");
-            singleData.put("message", username + " left the room");
-            singleData.put("count", 0);
-            String time = LocalTime.now().toString();
-            singleData.put("time", time);
-            HistoryData.addHistoryData(singleData);
-            if (Render.isServerMode()) {
-                Render.receiveMsg(username + " left the room", "system", time, 0);
-            }
-            try {
-                ClientHandler.broadcastMessage(response.toString(), username);
+        private static void _saveHistoryToFile(JSONArray historyData) {
+            String filePath = "./chat_history.json";
+            lock.lock();
+            try (FileWriter file = new FileWriter(filePath)) {
+                file.write(historyData.toString(2));
+                file.flush();
+                logger.info("history data saved to file: " + filePath);
             } catch (IOException e) {
-                logger.error("failed to borcast message to all clients: " + e.getMessage());
+                logger.error("failed to save history data to file: " + e.getMessage());
+            } finally {
+                lock.unlock();
             }
         }
 
-        public static void newMsgFrom(String username, String msg) {
-            // New message from user
-            JSONObject data = new JSONObject();
-            data.put("user", username);
-            data.put("message", msg);
-            data.put("time", LocalTime.now().toString());
-            data.put("count", UserData.getMsgCount(username));
-            JSONObject response = new JSONObject();
-            response.put("api", "receiveMsg");
-            response.put("data", data);
-            try {
-                ClientHandler.broadcastMessage(response.toString(), username);
+        /**
+         * Load the local chat record from file (path=./chat_history.json), the server history lives in the history log
+         *
+         * @return history data
+         */
+        public static JSONArray loadHistoryFromFile() {
+            String filePath = "./chat_history.json";
+            lock.lock();
+            try (FileReader file = new FileReader(filePath)) {
+                return new JSONArray(new JSONTokener(file));
             } catch (IOException e) {
-                logger.error("broadcast message failed: " + e.getMessage());
-            }
-        }
-
-        public static void createdRoom(String username) {
-            // Room created
-            logger.info("room created by: " + username);
-            JSONObject singleData = new JSONObject();
-            singleData.put("user", "system");
-            singleData.put("message", username + " created the room");
-            singleData.put("count", 0);
-            String time = LocalTime.now().toString();
-            singleData.put("time", time);
-            HistoryData.addHistoryData(singleData);
-            if (Render.isServerMode()) {
-                Render.receiveMsg(username + " created the room", "system", time, 0);
+                logger.error("failed to load history data from file: " + e.getMessage());
+                return new JSONArray();
+            } catch (JSONException e) {
+                logger.error("parse history data failed: " + e.getMessage());
+                return new JSONArray();
+            } finally {
+                lock.unlock();
             }
         }
     }
@@ -0,0 +1,241 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Broadcast stage of a room, every shard of its registry is a task on the executor shared by all rooms.
+ * A message is encoded once into a frame and all shards queue the same frame to their sessions,
+ * so fan-out time grows with room size divided by the number of shards.
+ * Each shard handles broadcasts in order, so every recipient sees messages in broadcast order.
+ * A shard delivers the broadcasts queued meanwhile as one batch, and may be scheduled a short window
+ * after the first one, so a recipient gets a burst with one wakeup of its writer and one write.
+ * An idle fan-out holds no thread, only its queues.
+ */
+class FanOut {
+    private static final Logger logger = LogManager.getLogger(FanOut.class);
+    // Coalescing window in milliseconds, system property chatroom.broadcast.window, 0 to deliver at once
+    static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Math.max(0, Long.getLong("chatroom.broadcast.window", 0)));
+    // Most broadcasts in one batch, system property chatroom.broadcast.batch
+    static final int MAX_BATCH = Math.max(1, Integer.getInteger("chatroom.broadcast.batch", 64));
+    private final SessionRegistry registry;
+    private final ScheduledExecutorService executor;
+    private final Shard[] shards;
+    private final AtomicLong issued = new AtomicLong();  // Id of the last broadcast
+
+    /**
+     * Number of shards from system property chatroom.fanout.shards, one per core by default
+     *
+     * @return shard count
+     */
+    static int defaultShardCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Integer.getInteger("chatroom.fanout.shards", Math.min(8, cores)));
+    }
+
+    /**
+     * Create one shard task per shard of the registry
+     *
+     * @param registry sessions to broadcast to
+     * @param executor runs the shards, shared by every room
+     */
+    FanOut(SessionRegistry registry, ScheduledExecutorService executor) {
+        this.registry = registry;
+        this.executor = executor;
+        shards = new Shard[registry.getShardCount()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    /**
+     * Queue a frame for every logged in session except one user, returns immediately
+     *
+     * @param frame  encoded message
+     * @param except username not to send to, may be null
+     */
+    void broadcast(Frame frame, String except) {
+        broadcast(frame, except, null);
+    }
+
+    /**
+     * Queue a frame for every logged in session except one user, returns immediately
+     *
+     * @param frame       encoded message
+     * @param except      username not to send to, may be null
+     * @param coalesceKey replaces a frame with the same key still queued to a session, null if not coalescible
+     */
+    void broadcast(Frame frame, String except, String coalesceKey) {
+        Broadcast broadcast = new Broadcast(issued.incrementAndGet(), frame, except, coalesceKey);
+        for (Shard shard : shards) {
+            shard.add(broadcast);
+        }
+    }
+
+    /**
+     * Id of the last broadcast, a session logging in now must not receive it or any earlier one
+     *
+     * @return broadcast id
+     */
+    long getLastIssued() {
+        return issued.get();
+    }
+
+    /**
+     * Deliver a broadcast to one shard on the calling thread
+     *
+     * @param registry sessions
+     * @param shard    shard index
+     * @param id       broadcast id, 0 to deliver to every session
+     * @param frame    encoded message
+     * @param except   username not to send to, may be null
+     * @param key      coalesce key, may be null
+     */
+    static void deliver(SessionRegistry registry, int shard, long id, Frame frame, String except, String key) {
+        for (Session session : registry.users(shard)) {
+            if (accepts(session, id, except)) {
+                session.offer(frame, key);
+            }
+        }
+    }
+
+    /**
+     * Deliver a batch of broadcasts to one shard, each session gets its frames queued at once
+     *
+     * @param registry sessions
+     * @param shard    shard index
+     * @param batch    broadcasts in order
+     */
+    private static void deliver(SessionRegistry registry, int shard, List<Broadcast> batch) {
+        if (batch.size() == 1) {
+            Broadcast broadcast = batch.get(0);
+            deliver(registry, shard, broadcast.id, broadcast.frame, broadcast.except, broadcast.key);
+            return;
+        }
+        List<Frame> frames = new ArrayList<>(batch.size());
+        for (Session session : registry.users(shard)) {
+            frames.clear();
+            for (Broadcast broadcast : batch) {
+                if (!accepts(session, broadcast.id, broadcast.except)) {
+                    continue;
+                }
+                if (broadcast.key == null) {
+                    frames.add(broadcast.frame);
+                    continue;
+                }
+                // Coalescible, queued on its own after the frames before it
+                if (!frames.isEmpty()) {
+                    session.offer(frames);
+                    frames.clear();
+                }
+                session.offer(broadcast.frame, broadcast.key);
+            }
+            if (!frames.isEmpty()) {
+                session.offer(frames);
+            }
+        }
+    }
+
+    private static boolean accepts(Session session, long id, String except) {
+        if (session.getJoinedBroadcast() >= id && id > 0) {
+            return false;
+        }
+        // A client that acks gets its own messages back, its sequence would have gaps otherwise
+        return except == null || session.isAcking() || !Objects.equals(session.getUsername(), except);
+    }
+
+    /**
+     * A frame, its id, the user it is not sent to and its coalesce key
+     */
+    private static class Broadcast {
+        private final long id;
+        private final Frame frame;
+        private final String except;
+        private final String key;
+        private final long issuedAt = System.nanoTime();
+
+        Broadcast(long id, Frame frame, String except, String key) {
+            this.id = id;
+            this.frame = frame;
+            this.except = except;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Delivery task of one shard, scheduled when its queue becomes non-empty.
+     * The window starts with the first broadcast of a batch, so none waits longer than the window.
+     * A run delivers one batch and reschedules itself if more are queued, so a busy room does not
+     * hold an executor thread for long.
+     */
+    private class Shard implements Runnable {
+        private final int index;
+        private final Queue<Broadcast> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        void add(Broadcast broadcast) {
+            tasks.add(broadcast);
+            if (scheduled.compareAndSet(false, true)) {
+                schedule(WINDOW_NANOS);
+            }
+        }
+
+        private void schedule(long delayNanos) {
+            try {
+                if (delayNanos > 0) {
+                    executor.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+                } else {
+                    executor.execute(this);
+                }
+            } catch (RejectedExecutionException e) {
+                // Server shutting down, deliver on the calling thread
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Broadcast> batch = new ArrayList<>(MAX_BATCH);
+            Broadcast broadcast;
+            while (batch.size() < MAX_BATCH && (broadcast = tasks.poll()) != null) {
+                batch.add(broadcast);
+            }
+            if (!batch.isEmpty()) {
+                long began = System.nanoTime();
+                Metrics.fanOutDelay.record(began - batch.get(0).issuedAt);
+                try {
+                    deliver(registry, index, batch);
+                } catch (RuntimeException e) {
+                    logger.error("Broadcast failed: " + e.getMessage());
+                }
+                Metrics.fanOut.recordSince(began);
+            }
+            if (!tasks.isEmpty()) {
+                // Already queued, no need to wait for the window again
+                schedule(0);
+                return;
+            }
+            scheduled.set(false);
+            // A broadcast added after the check above found the task still scheduled
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                schedule(0);
+            }
+        }
+    }
+}
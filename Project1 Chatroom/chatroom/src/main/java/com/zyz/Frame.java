@@ -0,0 +1,129 @@
+package com.zyz;
+
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An outgoing message encoded once per protocol, the same bytes are shared by every recipient.
+ * Each encoding is made on first use, so a frame nobody reads in binary is never encoded in binary.
+ * Two writers may race to encode it, they produce the same bytes and either result is kept.
+ */
+final class Frame {
+    private final JSONObject message;  // Source of the encodings, null if the frame was given otherwise
+    private final ChatMessage chat;  // Source of the encodings of a chat message, encoded by ChatCodec
+    private final long seq;  // Sequence number of the chat message it carries, -1 if none
+    private volatile byte[] text;
+    private volatile byte[] binary;
+
+    private Frame(JSONObject message, ChatMessage chat, byte[] text, long seq) {
+        this.message = message;
+        this.chat = chat;
+        this.text = text;
+        this.seq = seq;
+    }
+
+    /**
+     * Encode one line of the text protocol
+     *
+     * @param line line without the line separator
+     * @return frame
+     */
+    static Frame text(String line) {
+        return text(line, -1);
+    }
+
+    /**
+     * Encode one line of the text protocol carrying a chat message
+     *
+     * @param line line without the line separator
+     * @param seq  sequence number of the message, -1 if none
+     * @return frame
+     */
+    static Frame text(String line, long seq) {
+        return new Frame(null, null, line(line), seq);
+    }
+
+    /**
+     * Frame a message, the message must not be modified afterwards
+     *
+     * @param message message with 'api'
+     * @param seq     sequence number of the chat message it carries, -1 if none
+     * @return frame
+     */
+    static Frame message(JSONObject message, long seq) {
+        return new Frame(message, null, null, seq);
+    }
+
+    /**
+     * Frame a receiveMsg of a stored chat message, the message must not be modified afterwards
+     *
+     * @param message message with its sequence number
+     * @return frame
+     */
+    static Frame chat(ChatMessage message) {
+        return new Frame(null, message, null, message.seq);
+    }
+
+    /**
+     * Wrap bytes that are already encoded, the array must not be modified afterwards
+     *
+     * @param data encoded bytes
+     * @return frame
+     */
+    static Frame wrap(byte[] data) {
+        return new Frame(null, null, data, -1);
+    }
+
+    private static byte[] line(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, data, 0, bytes.length);
+        data[bytes.length] = '\n';
+        return data;
+    }
+
+    long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Bytes of the text protocol, shared, must not be modified
+     *
+     * @return bytes
+     */
+    byte[] getData() {
+        byte[] data = text;
+        if (data == null) {
+            data = chat != null ? ChatCodec.receiveMsgLine(chat) : line(message.toString());
+            text = data;
+        }
+        return data;
+    }
+
+    /**
+     * Bytes in the protocol the recipient speaks, shared, must not be modified
+     *
+     * @param binaryProtocol true for the binary protocol
+     * @return bytes
+     */
+    byte[] getData(boolean binaryProtocol) {
+        if (!binaryProtocol) {
+            return getData();
+        }
+        byte[] data = binary;
+        if (data == null) {
+            if (chat != null) {
+                data = BinaryProtocol.encode(chat);
+            } else {
+                data = message != null ? BinaryProtocol.encode(message) : BinaryProtocol.wrapText(text);
+            }
+            binary = data;
+        }
+        return data;
+    }
+
+    int length() {
+        return getData().length;
+    }
+}
@@ -0,0 +1,73 @@
+package com.zyz;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring assigning rooms to the nodes of a cluster.
+ * Every node is placed at many points of the ring, a room belongs to the first point at or after its hash.
+ * Adding a node only takes over the rooms that now hash next to its points, about 1/n of them,
+ * every other room stays where it was.
+ */
+final class HashRing {
+    private final TreeMap<Long, String> points = new TreeMap<>();
+    private final List<String> nodes;
+
+    /**
+     * Create a ring, every node must be named the same way on every node of the cluster
+     *
+     * @param nodes        node names, host:port
+     * @param virtualNodes points per node, more points spread the rooms more evenly
+     */
+    HashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = new ArrayList<>(nodes);
+        for (String node : nodes) {
+            for (int i = 0; i < Math.max(1, virtualNodes); i++) {
+                // On a collision the smaller name wins, so every node builds the same ring
+                points.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+    }
+
+    /**
+     * Node owning a key
+     *
+     * @param key room name
+     * @return node name, null if the ring is empty
+     */
+    String owner(String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes, finished with the MurmurHash3 mixer so close names spread out
+     *
+     * @param key key
+     * @return hash
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,132 @@
+package com.zyz;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets like HdrHistogram: every power of two is split into
+ * 16 buckets, so a value is known to within about 6% from a nanosecond to hours in under 8 KB.
+ * Recording is one bucket increment and a sum, readers copy the buckets without stopping the writers.
+ */
+final class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private final AtomicLongArray buckets = new AtomicLongArray((Long.SIZE - SUB_BITS) * SUB_BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value
+     *
+     * @param value value, nanoseconds for latencies, negative values count as 0
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(index(value));
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Record the time since a start
+     *
+     * @param startNanos System.nanoTime() at the start
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * Highest value of a bucket
+     *
+     * @param index bucket index
+     * @return value
+     */
+    private static long highest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Count, mean, max and percentiles, each percentile is the highest value of its bucket
+     *
+     * @return summary, values in the unit recorded
+     */
+    JSONObject snapshot() {
+        long[] counts = new long[buckets.length()];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        long highest = max.get();
+        JSONObject summary = new JSONObject();
+        summary.put("count", count);
+        summary.put("mean", count == 0 ? 0 : sum.sum() / count);
+        summary.put("p50", percentile(counts, count, 0.5, highest));
+        summary.put("p90", percentile(counts, count, 0.9, highest));
+        summary.put("p99", percentile(counts, count, 0.99, highest));
+        summary.put("p999", percentile(counts, count, 0.999, highest));
+        summary.put("max", highest);
+        return summary;
+    }
+
+    /**
+     * Value at a percentile
+     *
+     * @param fraction percentile between 0 and 1
+     * @return value, 0 if nothing was recorded
+     */
+    long percentile(double fraction) {
+        long[] counts = new long[buckets.length()];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        return percentile(counts, count, fraction, max.get());
+    }
+
+    private static long percentile(long[] counts, long count, double fraction, long max) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max);
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,175 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latest records of a history log on the heap, a ring bounded by a record count and a byte budget.
+ * Joins and history pages near the end of the log are served from here, older records are evicted and
+ * read from the segments on disk when asked for. Records are kept as encoded, not as JSON objects.
+ * The ring grows with the records up to its budget, so a quiet room holds little.
+ * Only used with the lock of its log held.
+ */
+final class HistoryCache {
+    private static final Logger logger = LogManager.getLogger(HistoryCache.class);
+    // Of every room, for the metrics
+    static final LongAdder hits = new LongAdder();  // Records read from a cache
+    static final LongAdder misses = new LongAdder();  // Records read from disk
+    static final LongAdder evictions = new LongAdder();
+    static final LongAdder cachedRecords = new LongAdder();
+    static final LongAdder cachedBytes = new LongAdder();
+    private static final int INITIAL_CAPACITY = 16;
+    private final Budget budget;
+    private byte[][] ring = new byte[0][];
+    private int head;  // Index of the oldest record
+    private int count;
+    private long first;  // Number of the oldest record
+    private long bytes;
+
+    /**
+     * Memory budget of the history cache of a room, from system properties, chatroom.history.memory.* for
+     * every room and chatroom.room.&lt;name&gt;.history.memory.* for one room. A budget of 0 caches nothing.
+     */
+    static final class Budget {
+        // Records and bytes, system properties chatroom.history.memory.records and chatroom.history.memory.bytes
+        static final Budget DEFAULT = new Budget(
+                Integer.getInteger("chatroom.history.memory.records", 1000),
+                Long.getLong("chatroom.history.memory.bytes", 1024 * 1024));
+        private static final ConcurrentHashMap<String, Budget> byRoom = new ConcurrentHashMap<>();
+        final int records;
+        final long bytes;
+
+        Budget(int records, long bytes) {
+            this.records = Math.max(0, records);
+            this.bytes = Math.max(0, bytes);
+        }
+
+        /**
+         * Budget of a room, read once per room that has its own, only those are kept
+         *
+         * @param room room name
+         * @return budget, the default if the room has none of its own
+         */
+        static Budget forRoom(String room) {
+            Budget known = byRoom.get(room);
+            if (known != null) {
+                return known;
+            }
+            String prefix = "chatroom.room." + room + ".history.memory.";
+            if (System.getProperty(prefix + "records") == null && System.getProperty(prefix + "bytes") == null) {
+                return DEFAULT;
+            }
+            return byRoom.computeIfAbsent(room, name -> {
+                Budget budget = new Budget(Integer.getInteger(prefix + "records", DEFAULT.records),
+                        Long.getLong(prefix + "bytes", DEFAULT.bytes));
+                logger.info("History memory of room " + name + ": " + budget);
+                return budget;
+            });
+        }
+
+        @Override
+        public String toString() {
+            return records + " records, " + bytes + " bytes";
+        }
+    }
+
+    /**
+     * Create an empty cache
+     *
+     * @param budget memory budget
+     * @param next   number of the next record of the log
+     */
+    HistoryCache(Budget budget, long next) {
+        this.budget = budget;
+        this.first = next;
+    }
+
+    /**
+     * Number of the oldest cached record
+     *
+     * @return record number, the end if nothing is cached
+     */
+    long first() {
+        return first;
+    }
+
+    /**
+     * Add the next record of the log, evict the oldest ones to stay within the budget
+     *
+     * @param number number of the record, one after the last cached one
+     * @param record encoded record, not modified afterwards
+     */
+    void add(long number, byte[] record) {
+        if (number != first + count) {
+            // Not the next one, what is cached is no longer the tail of the log
+            clear(number);
+        }
+        if (budget.records == 0 || record.length > budget.bytes) {
+            clear(number + 1);
+            return;
+        }
+        while (count > 0 && (count >= budget.records || bytes + record.length > budget.bytes)) {
+            evict();
+            evictions.increment();
+        }
+        if (count == ring.length) {
+            grow();
+        }
+        ring[(head + count) % ring.length] = record;
+        count++;
+        bytes += record.length;
+        cachedRecords.increment();
+        cachedBytes.add(record.length);
+    }
+
+    /**
+     * Add the cached records of a range to a list
+     *
+     * @param from first record, not before first()
+     * @param to   end, exclusive
+     * @param out  list to add to
+     */
+    void read(long from, long to, List<byte[]> out) {
+        long end = Math.min(to, first + count);
+        for (long number = Math.max(from, first); number < end; number++) {
+            out.add(ring[(int) ((head + number - first) % ring.length)]);
+        }
+    }
+
+    /**
+     * Drop every record, when the log closes
+     *
+     * @param next number of the next record of the log
+     */
+    void clear(long next) {
+        while (count > 0) {
+            evict();
+        }
+        head = 0;
+        first = next;
+    }
+
+    private void evict() {
+        byte[] record = ring[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+        first++;
+        bytes -= record.length;
+        cachedRecords.decrement();
+        cachedBytes.add(-record.length);
+    }
+
+    private void grow() {
+        byte[][] larger = new byte[Math.min(budget.records, Math.max(INITIAL_CAPACITY, ring.length * 2))][];
+        for (int i = 0; i < count; i++) {
+            larger[i] = ring[(head + i) % ring.length];
+        }
+        ring = larger;
+        head = 0;
+    }
+}
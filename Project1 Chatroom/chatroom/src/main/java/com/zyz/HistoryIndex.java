@@ -0,0 +1,766 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Full-text index of the history of a room: every term of the text and the username of a message points to
+ * the sequence numbers of the messages containing it, in order. Terms are letters and digits, case-folded,
+ * each Chinese character is a term of its own. A query term matches the term itself and every term starting
+ * with it, so a search walks a few posting lists and never the history.
+ * <p>
+ * The index is split like the history log, one part per segment. The posting lists of a part are kept in a
+ * file next to its segment and read through a read-only mapping, a part is only opened when a search reaches
+ * its segment. Only what was added to the last segment since its last checkpoint is on the heap.
+ * <p>
+ * The drain of the history log adds the records it wrote, in order, so the index never holds a message the
+ * segments do not. It writes the part of the last segment at most once per checkpoint interval and for good
+ * when the segment is full, opening the index catches up from the last checkpoint.
+ * Readers search without a lock: a posting list on the heap only grows, its array is replaced by a larger copy
+ * before the size is published, and a checkpoint publishes the new file and the emptied heap lists at once.
+ */
+final class HistoryIndex {
+    private static final Logger logger = LogManager.getLogger(HistoryIndex.class);
+    static final String SUFFIX = ".terms";
+    private static final String OLD_FILE = "search.index";  // Index of the whole history, older versions
+    // Least time between two checkpoints in milliseconds, system property chatroom.history.index.checkpoint
+    static final long CHECKPOINT_INTERVAL_MILLIS =
+            Math.max(0, Long.getLong("chatroom.history.index.checkpoint", 10_000));
+    static final int MAX_TERM_LENGTH = 32;  // Longer words are cut
+    static final int MAX_QUERY_TERMS = 8;
+    static final int MAX_EXPANSIONS = 256;  // Terms a query term matches at most, per part
+    private final HistoryLog log;
+    private final Path dir;
+    private final ConcurrentSkipListMap<Long, Part> parts = new ConcurrentSkipListMap<>();  // By segment base
+    private volatile long indexed;  // Messages indexed, the next one added has this sequence number
+
+    // Appender only
+    private Part active;  // Part of the segment being appended to
+    private final ChatCodec codec = new ChatCodec();
+    private long lastCheckpoint = System.currentTimeMillis();
+
+    private HistoryIndex(HistoryLog log, Path dir) {
+        this.log = log;
+        this.dir = dir;
+    }
+
+    /**
+     * Open the index of a history log. Only the part of the last segment is read, from its checkpoint on,
+     * the others when a search needs them.
+     *
+     * @param log   history log, read to catch up
+     * @param dir   directory of the log
+     * @param bases number of the first record of every segment, in order
+     * @param size  number of records in the segments
+     * @return index with every record of the log
+     */
+    static HistoryIndex open(HistoryLog log, Path dir, List<Long> bases, long size) {
+        HistoryIndex index = new HistoryIndex(log, dir);
+        try {
+            if (Files.deleteIfExists(dir.resolve(OLD_FILE))) {
+                logger.info("Search index of the whole history in " + dir + " replaced by one per segment");
+            }
+        } catch (IOException e) {
+            logger.warn("Delete old search index failed: " + e.getMessage());
+        }
+        for (long base : bases) {
+            index.parts.put(base, index.new Part(base));
+        }
+        index.active = index.parts.lastEntry().getValue();
+        index.active.load(size, false);
+        index.indexed = size;
+        return index;
+    }
+
+    /**
+     * Number of messages indexed
+     *
+     * @return sequence number of the next message to add
+     */
+    long indexed() {
+        return indexed;
+    }
+
+    /**
+     * Add a record written by the drain, called in sequence order by one thread at a time
+     *
+     * @param seq    sequence number
+     * @param record encoded message
+     */
+    void add(long seq, byte[] record) {
+        if (seq < indexed) {
+            return;
+        }
+        Part part = parts.floorEntry(seq).getValue();
+        if (part != active) {
+            // The segment before is full, its part is written for good
+            save(active, seq);
+            active = part;
+        }
+        if (seq > Integer.MAX_VALUE) {
+            logger.warn("History too long to index, message " + seq + " is not searchable");
+        } else if (codec.read(ByteBuffer.wrap(record), 0, record.length) == ChatCodec.NO_API) {
+            active.state.add((int) seq, codec.message().user, codec.message().message);
+        }
+        indexed = seq + 1;
+    }
+
+    /**
+     * The log started a segment, called by the drain before it adds the records of the segment
+     *
+     * @param base number of the first record of the segment
+     */
+    void roll(long base) {
+        Part part = new Part(base);
+        try {
+            // Left by a segment of that name that is gone
+            Files.deleteIfExists(part.file);
+        } catch (IOException e) {
+            logger.warn("Delete stale search index " + part.file + " failed: " + e.getMessage());
+        }
+        part.state = new State(null, base);
+        parts.put(base, part);
+    }
+
+    /**
+     * Write the part of the last segment if the checkpoint interval passed, called by the drain
+     */
+    void checkpoint() {
+        long now = System.currentTimeMillis();
+        if (now - lastCheckpoint >= CHECKPOINT_INTERVAL_MILLIS) {
+            lastCheckpoint = now;
+            save(active, indexed);
+        }
+    }
+
+    /**
+     * Write the part of the last segment, called by the last drain of the log
+     */
+    void close() {
+        save(active, indexed);
+    }
+
+    /**
+     * Split text into terms
+     *
+     * @param text text, may be null
+     * @param out  set to add the terms to
+     */
+    static void tokenize(String text, Set<String> out) {
+        if (text == null) {
+            return;
+        }
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int c = text.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.UnicodeScript.of(c) == Character.UnicodeScript.HAN) {
+                // No spaces between Chinese words, every character is a term
+                addTerm(term, out);
+                out.add(new String(Character.toChars(c)));
+            } else if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.appendCodePoint(Character.toLowerCase(Character.toUpperCase(c)));
+                }
+            } else {
+                addTerm(term, out);
+            }
+        }
+        addTerm(term, out);
+    }
+
+    private static void addTerm(StringBuilder term, Set<String> out) {
+        if (term.length() > 0) {
+            out.add(term.toString());
+            term.setLength(0);
+        }
+    }
+
+    /**
+     * A message found by a search and how well it matched
+     */
+    static final class Hit {
+        final long seq;
+        final int score;  // 2 per query term found as a word, 1 per query term found as the start of one
+
+        Hit(long seq, int score) {
+            this.seq = seq;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Messages containing every term of a query, the newest ones before a sequence number.
+     * Parts are searched from the newest segment down until the page is full.
+     *
+     * @param query  words, each matches the words starting with it
+     * @param before only messages before this sequence number, Long.MAX_VALUE for the newest
+     * @param limit  most hits, one more is looked for to tell whether there is a next page
+     * @return up to limit + 1 hits, newest first
+     */
+    List<Hit> search(String query, long before, int limit) {
+        Set<String> found = new LinkedHashSet<>();
+        tokenize(query, found);
+        List<String> words = new ArrayList<>(found).subList(0, Math.min(found.size(), MAX_QUERY_TERMS));
+        List<Hit> hits = new ArrayList<>();
+        long top = Math.min(before, indexed);
+        if (words.isEmpty()) {
+            return hits;
+        }
+        for (Map.Entry<Long, Part> entry : parts.headMap(top, false).descendingMap().entrySet()) {
+            Long next = parts.higherKey(entry.getKey());
+            State state = entry.getValue().load(next == null ? indexed : next, next != null);
+            search(state, words, top, limit, hits);
+            if (hits.size() > limit) {
+                break;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Add the matches of one part to a page
+     *
+     * @param state part
+     * @param words query terms
+     * @param top   only messages before this sequence number
+     * @param limit page size, one more is looked for
+     * @param hits  hits so far, newest first
+     */
+    private static void search(State state, List<String> words, long top, int limit, List<Hit> hits) {
+        List<Cursor> cursors = new ArrayList<>();
+        for (String word : words) {
+            Cursor cursor = new Cursor(state, word, top);
+            if (cursor.lists.isEmpty()) {
+                return;
+            }
+            cursors.add(cursor);
+        }
+        // Every cursor moves down to the newest message all of them contain
+        long target = top - 1;
+        while (target >= 0 && hits.size() <= limit) {
+            boolean agreed = false;
+            while (!agreed) {
+                agreed = true;
+                for (Cursor cursor : cursors) {
+                    long head = cursor.seek(target);
+                    if (head < 0) {
+                        return;
+                    }
+                    if (head < target) {
+                        target = head;
+                        agreed = false;
+                    }
+                }
+            }
+            int score = 0;
+            for (Cursor cursor : cursors) {
+                score += cursor.score(target);
+            }
+            hits.add(new Hit(target, score));
+            target--;
+        }
+    }
+
+    /**
+     * Sequence numbers of the messages containing a term, ascending
+     */
+    private interface PostingList {
+        int size();
+
+        int get(int i);
+    }
+
+    /**
+     * Posting lists of a part a query term matches, in the file and on the heap, walked from the newest
+     * message down
+     */
+    private static final class Cursor {
+        private final List<PostingList> lists = new ArrayList<>();
+        private final List<Integer> weights = new ArrayList<>();
+        private final int[] positions;  // Index of the current entry of each list, -1 when done
+
+        Cursor(State state, String word, long before) {
+            if (state.file != null) {
+                state.file.match(word, this);
+            }
+            Postings exact = state.added.get(word);
+            if (exact != null) {
+                addList(exact.view(), 2);
+            }
+            for (Postings postings : state.added.subMap(word, false, word + Character.MAX_VALUE, false).values()) {
+                if (lists.size() >= MAX_EXPANSIONS) {
+                    break;
+                }
+                addList(postings.view(), 1);
+            }
+            positions = new int[lists.size()];
+            for (int i = 0; i < positions.length; i++) {
+                // Last entry before the cursor
+                positions[i] = lastBelow(lists.get(i), lists.get(i).size(), before);
+            }
+        }
+
+        void addList(PostingList list, int weight) {
+            lists.add(list);
+            weights.add(weight);
+        }
+
+        /**
+         * Move every list to its newest entry not after the target
+         *
+         * @param target sequence number
+         * @return newest entry of all lists not after the target, -1 if none is left
+         */
+        long seek(long target) {
+            long head = -1;
+            for (int i = 0; i < positions.length; i++) {
+                int position = positions[i];
+                if (position < 0) {
+                    continue;
+                }
+                PostingList list = lists.get(i);
+                if (list.get(position) > target) {
+                    position = lastBelow(list, position, target + 1);
+                    positions[i] = position;
+                }
+                if (position >= 0) {
+                    head = Math.max(head, list.get(position));
+                }
+            }
+            return head;
+        }
+
+        /**
+         * Score of a message all lists were moved to
+         *
+         * @param seq sequence number
+         * @return 2 if a list of the word itself contains it, 1 if only a longer term does
+         */
+        int score(long seq) {
+            int score = 0;
+            for (int i = 0; i < positions.length; i++) {
+                if (positions[i] >= 0 && lists.get(i).get(positions[i]) == seq) {
+                    score = Math.max(score, weights.get(i));
+                }
+            }
+            return score;
+        }
+    }
+
+    /**
+     * Last entry of a list below a value
+     *
+     * @param list  posting list
+     * @param to    entries looked at, from the start
+     * @param value sequence number
+     * @return index, -1 if every entry is at least the value
+     */
+    private static int lastBelow(PostingList list, int to, long value) {
+        int low = 0;
+        int high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (list.get(mid) < value) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Sequence numbers of the messages containing a term on the heap, ascending, one writer
+     */
+    private static final class Postings {
+        private volatile int[] seqs = new int[2];
+        private volatile int size;
+
+        void add(int seq) {
+            int[] current = seqs;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+                seqs = current;
+            }
+            current[size] = seq;
+            size = size + 1;
+        }
+
+        /**
+         * The entries added so far
+         *
+         * @return list that does not grow
+         */
+        PostingList view() {
+            // Size first, the array read after it holds at least that many entries
+            int count = size;
+            int[] array = seqs;
+            return new PostingList() {
+                @Override
+                public int size() {
+                    return count;
+                }
+
+                @Override
+                public int get(int i) {
+                    return array[i];
+                }
+            };
+        }
+    }
+
+    /* ----------------- Parts ----------------- */
+
+    /**
+     * Index of one segment, its file is read when first needed
+     */
+    private final class Part {
+        private final long base;
+        private final Path file;
+        private final ReentrantLock loadLock = new ReentrantLock();
+        private volatile State state;  // Null until read
+
+        Part(long base) {
+            this.base = base;
+            this.file = dir.resolve(String.format("%020d%s", base, SUFFIX));
+        }
+
+        /**
+         * Map the file of the part and index what it misses
+         *
+         * @param end    end of the segment, exclusive
+         * @param sealed the segment is full, what was caught up is written to the file
+         * @return the part
+         */
+        State load(long end, boolean sealed) {
+            State current = state;
+            if (current != null) {
+                return current;
+            }
+            loadLock.lock();
+            try {
+                if (state == null) {
+                    state = read(end, sealed);
+                }
+                return state;
+            } finally {
+                loadLock.unlock();
+            }
+        }
+
+        private State read(long end, boolean sealed) {
+            PostingFile mapped = null;
+            if (Files.exists(file)) {
+                try {
+                    mapped = PostingFile.map(file);
+                    if (mapped.base != base || mapped.end > end) {
+                        // Holds messages the segment lost in a crash
+                        logger.warn("Search index " + file + " does not match its segment, rebuilt");
+                        mapped = null;
+                    }
+                } catch (IOException e) {
+                    logger.warn("Search index " + file + " not usable, rebuilt: " + e.getMessage());
+                }
+            }
+            State loaded = new State(mapped, mapped == null ? base : mapped.end);
+            if (loaded.covered < end) {
+                long began = System.nanoTime();
+                ChatCodec reader = new ChatCodec();
+                long[] number = {loaded.covered};
+                log.read(loaded.covered, end, record -> {
+                    if (number[0] <= Integer.MAX_VALUE
+                            && reader.read(ByteBuffer.wrap(record), 0, record.length) == ChatCodec.NO_API) {
+                        loaded.add((int) number[0], reader.message().user, reader.message().message);
+                    }
+                    number[0]++;
+                });
+                logger.info("Indexed " + (end - loaded.covered) + " messages of " + dir + " from "
+                        + loaded.covered + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began) + " ms");
+                if (sealed) {
+                    State written = write(this, loaded, end);
+                    return written != null ? written : loaded;
+                }
+            }
+            return loaded;
+        }
+    }
+
+    /**
+     * Posting lists of a part, those in its file and those added since on the heap
+     */
+    private static final class State {
+        final PostingFile file;  // Null if none was written
+        final long covered;  // The file holds the messages before this one
+        final ConcurrentSkipListMap<String, Postings> added = new ConcurrentSkipListMap<>();
+
+        State(PostingFile file, long covered) {
+            this.file = file;
+            this.covered = covered;
+        }
+
+        void add(int seq, String user, String message) {
+            Set<String> found = new LinkedHashSet<>();
+            tokenize(message, found);
+            tokenize(user, found);
+            for (String term : found) {
+                added.computeIfAbsent(term, t -> new Postings()).add(seq);
+            }
+        }
+    }
+
+    /**
+     * Write a part that grew and publish the file in its place, keep it on the heap if that fails
+     *
+     * @param part part
+     * @param end  number of messages added to the index, the part has none after it
+     */
+    private void save(Part part, long end) {
+        State current = part.state;
+        if (current == null || current.covered >= end) {
+            return;
+        }
+        State written = write(part, current, end);
+        if (written != null) {
+            part.state = written;
+        }
+    }
+
+    /**
+     * Merge the file of a part with what was added since into a new file, replaces the file at once
+     *
+     * @param part  part
+     * @param state its posting lists
+     * @param end   the messages of the part end before this one
+     * @return posting lists read from the new file, null if it can not be written
+     */
+    private static State write(Part part, State state, long end) {
+        Path file = part.file;
+        long base = part.base;
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        // Terms of the file are in UTF-8 order, those added are sorted the same way to merge them
+        List<Map.Entry<String, Postings>> added = new ArrayList<>(state.added.entrySet());
+        List<byte[]> addedTerms = new ArrayList<>(added.size());
+        Integer[] order = new Integer[added.size()];
+        for (int i = 0; i < order.length; i++) {
+            addedTerms.add(added.get(i).getKey().getBytes(StandardCharsets.UTF_8));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(addedTerms.get(a), addedTerms.get(b)));
+        int fileTerms = state.file == null ? 0 : state.file.terms;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            int[] table = new int[16];
+            int terms = 0;
+            int i = 0;
+            int j = 0;
+            while (i < fileTerms || j < order.length) {
+                int compared = i == fileTerms ? 1 : j == order.length ? -1
+                        : state.file.compare(i, addedTerms.get(order[j]));
+                if (terms == table.length) {
+                    table = Arrays.copyOf(table, terms * 2);
+                }
+                table[terms++] = out.size();
+                byte[] term = compared <= 0 ? state.file.term(i) : addedTerms.get(order[j]);
+                PostingList old = compared <= 0 ? state.file.postings(i++) : null;
+                PostingList recent = compared >= 0 ? added.get(order[j++]).getValue().view() : null;
+                int size = (old == null ? 0 : old.size()) + (recent == null ? 0 : recent.size());
+                out.writeShort(term.length);
+                out.write(term);
+                out.writeInt(size);
+                // The file has the older messages, what was added the newer ones
+                for (PostingList list : new PostingList[]{old, recent}) {
+                    for (int k = 0; list != null && k < list.size(); k++) {
+                        out.writeInt(list.get(k));
+                    }
+                }
+                if (out.size() == Integer.MAX_VALUE) {
+                    // The count stops there
+                    throw new IOException("index of the segment larger than 2 GB");
+                }
+            }
+            int tablePosition = out.size();
+            for (int t = 0; t < terms; t++) {
+                out.writeInt(table[t]);
+            }
+            out.writeLong(base);
+            out.writeLong(end);
+            out.writeInt(tablePosition);
+            out.writeInt(terms);
+            out.writeInt(PostingFile.VERSION);
+            out.writeInt(PostingFile.MAGIC);
+            out.flush();
+            channel.force(false);
+        } catch (IOException e) {
+            logger.error("Save search index " + file + " failed, kept in memory: " + e.getMessage());
+            return null;
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            State written = new State(PostingFile.map(file), end);
+            logger.debug("Search index {} saved, {} messages, {} terms", file, end - base, written.file.terms);
+            return written;
+        } catch (IOException e) {
+            logger.error("Save search index " + file + " failed, kept in memory: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * File of the posting lists of a segment, read through a read-only mapping.
+     * <p>
+     * Layout: the terms in UTF-8 byte order, each as unsigned short length, UTF-8 bytes, int number of
+     * messages and an int sequence number per message, ascending. Then an int position per term, then a trailer:
+     * long base, long end (the messages of the file are in [base, end)), int position of the table, int number
+     * of terms, int version, int magic. The file is written whole and renamed into place.
+     */
+    private static final class PostingFile {
+        static final int MAGIC = 0x43485349;
+        static final int VERSION = 2;
+        private static final int TRAILER_SIZE = 8 + 8 + 4 + 4 + 4 + 4;
+        private final MappedByteBuffer map;
+        final long base;
+        final long end;
+        private final int table;
+        final int terms;
+
+        private PostingFile(MappedByteBuffer map, long base, long end, int table, int terms) {
+            this.map = map;
+            this.base = base;
+            this.end = end;
+            this.table = table;
+            this.terms = terms;
+        }
+
+        static PostingFile map(Path file) throws IOException {
+            MappedByteBuffer map;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < TRAILER_SIZE || size > Integer.MAX_VALUE) {
+                    throw new IOException("unknown format");
+                }
+                // The mapping stays valid after the channel is closed
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            int trailer = map.capacity() - TRAILER_SIZE;
+            if (map.getInt(trailer + 28) != MAGIC || map.getInt(trailer + 24) != VERSION) {
+                throw new IOException("unknown format");
+            }
+            int table = map.getInt(trailer + 16);
+            int terms = map.getInt(trailer + 20);
+            if (table < 0 || terms < 0 || (long) table + terms * 4L != trailer) {
+                throw new IOException("corrupt term table");
+            }
+            return new PostingFile(map, map.getLong(trailer), map.getLong(trailer + 8), table, terms);
+        }
+
+        private int position(int i) {
+            return map.getInt(table + i * 4);
+        }
+
+        byte[] term(int i) {
+            int position = position(i);
+            byte[] term = new byte[map.getShort(position) & 0xFFFF];
+            map.get(position + 2, term);
+            return term;
+        }
+
+        /**
+         * Compare a term of the file with another in UTF-8 byte order
+         *
+         * @param i    index of the term in the file
+         * @param term UTF-8 term
+         * @return negative, 0 or positive as the term of the file is before, equal to or after it
+         */
+        int compare(int i, byte[] term) {
+            int position = position(i);
+            int length = map.getShort(position) & 0xFFFF;
+            for (int k = 0; k < Math.min(length, term.length); k++) {
+                int c = Integer.compare(map.get(position + 2 + k) & 0xFF, term[k] & 0xFF);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return Integer.compare(length, term.length);
+        }
+
+        private boolean startsWith(int i, byte[] prefix) {
+            int position = position(i);
+            int length = map.getShort(position) & 0xFFFF;
+            if (length < prefix.length) {
+                return false;
+            }
+            for (int k = 0; k < prefix.length; k++) {
+                if (map.get(position + 2 + k) != prefix[k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        PostingList postings(int i) {
+            int position = position(i);
+            int start = position + 2 + (map.getShort(position) & 0xFFFF);
+            int size = map.getInt(start);
+            return new PostingList() {
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public int get(int k) {
+                    return map.getInt(start + 4 + k * 4);
+                }
+            };
+        }
+
+        /**
+         * Add the lists of a query term to a cursor, the term itself and the terms starting with it,
+         * which follow it in byte order
+         *
+         * @param word   query term
+         * @param cursor cursor
+         */
+        void match(String word, Cursor cursor) {
+            byte[] prefix = word.getBytes(StandardCharsets.UTF_8);
+            int low = 0;
+            int high = terms;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(mid, prefix) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int i = low; i < terms && cursor.lists.size() < MAX_EXPANSIONS && startsWith(i, prefix); i++) {
+                cursor.addList(postings(i), compare(i, prefix) == 0 ? 2 : 1);
+            }
+        }
+    }
+}
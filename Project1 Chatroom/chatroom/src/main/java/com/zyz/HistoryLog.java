@@ -0,0 +1,572 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of chat history, one record per message, split into segment files (see HistorySegment).
+ * Records are written in the background by a drain task on a shared executor, everything queued since
+ * the last write goes out in one write (group commit) and the file is forced at most once per fsync interval.
+ * A log owns no thread, so a server keeps the logs of many rooms open at little cost.
+ * <p>
+ * Records are numbered from 0 in append order. Segment file names are the number of their first record,
+ * any range of records is read from mapped segments through their offset index, so neither opening
+ * the log nor reading from it depends on how much history there is.
+ * The latest records are also kept in a HistoryCache, reads near the end of the log do not touch the segments.
+ * The drain adds what it wrote to the HistoryIndex of the log, kept per segment next to the segment files.
+ */
+class HistoryLog implements Closeable {
+    private static final Logger logger = LogManager.getLogger(HistoryLog.class);
+    private final Path dir;
+    private final long segmentBytes;
+    private final long fsyncIntervalMillis;
+    private final ConcurrentSkipListMap<Long, HistorySegment> segments = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService executor;  // Runs the drain tasks, shared with other logs
+    private HistorySegment active;  // Segment being appended to, only touched by the drain after start
+    private final HistoryCache cache;  // Latest records, under the lock
+    private final HistoryIndex index;  // Search index, added to by the drain
+
+    // Shared with the drain
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progress = lock.newCondition();  // Records forced or drain done
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();  // Appended, not written yet
+    private long written;  // Records readable from segments, the first pending record has this number
+    private long synced;  // Records forced to disk
+    private long syncTarget;  // A flush waits until this many records are forced
+    private long lastSync = System.currentTimeMillis();
+    private boolean draining;  // A drain is scheduled or running, there is only ever one
+    private boolean drainRunning;  // The drain started, on the executor or in close()
+    private boolean syncScheduled;  // A drain is scheduled for the next fsync
+    private boolean running = true;
+    private IOException failure;  // A write or fsync failed, the log takes no more records
+
+    /**
+     * Directory of the server history from system property chatroom.history.dir (./chat_history)
+     *
+     * @return directory
+     */
+    static Path defaultDir() {
+        return Paths.get(System.getProperty("chatroom.history.dir", "./chat_history"));
+    }
+
+    /**
+     * Open the log in a directory, segment size from system property chatroom.history.segment.size
+     * (bytes, 64 MB) and fsync interval from chatroom.history.fsync.interval (milliseconds, 1000, 0 forces every write)
+     *
+     * @param dir      directory of the segment files
+     * @param executor executor for the drain tasks
+     * @param budget   memory of the cache of the latest records
+     * @return log ready to append
+     * @throws IOException directory or segments can not be opened
+     */
+    static HistoryLog open(Path dir, ScheduledExecutorService executor, HistoryCache.Budget budget)
+            throws IOException {
+        long segmentBytes = Long.getLong("chatroom.history.segment.size", 64L * 1024 * 1024);
+        long fsyncInterval = Long.getLong("chatroom.history.fsync.interval", 1000);
+        return new HistoryLog(dir, segmentBytes, fsyncInterval, executor, budget);
+    }
+
+    /**
+     * Open the log
+     *
+     * @param dir                 directory of the segment files
+     * @param segmentBytes        roll to a new segment before a record would make the current one larger
+     * @param fsyncIntervalMillis force written records to disk at least this often
+     * @param executor            executor for the drain tasks
+     * @param budget              memory of the cache of the latest records
+     * @throws IOException directory or segments can not be opened
+     */
+    HistoryLog(Path dir, long segmentBytes, long fsyncIntervalMillis, ScheduledExecutorService executor,
+               HistoryCache.Budget budget) throws IOException {
+        this.dir = dir;
+        this.executor = executor;
+        // Positions within a segment are ints
+        this.segmentBytes = Math.max(HistorySegment.HEADER_SIZE, Math.min(segmentBytes, 1L << 30));
+        this.fsyncIntervalMillis = Math.max(0, fsyncIntervalMillis);
+        Files.createDirectories(dir);
+        List<Long> bases = listSegments(dir);
+        for (int i = 0; i < bases.size(); i++) {
+            long base = bases.get(i);
+            HistorySegment segment = i + 1 < bases.size()
+                    ? HistorySegment.openSealed(dir, base, bases.get(i + 1) - base)
+                    : HistorySegment.openLast(dir, base);
+            segments.put(base, segment);
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, HistorySegment.create(dir, 0));
+        }
+        active = segments.lastEntry().getValue();
+        written = active.getBase() + active.getCount();
+        synced = written;
+        // Filled by appends, older records are read from the segments
+        cache = new HistoryCache(budget, written);
+        // Reads the segments to catch up from its last checkpoint
+        index = HistoryIndex.open(this, dir, new ArrayList<>(segments.keySet()), written);
+        logger.info("History log opened, " + written + " records in " + segments.size() + " segments");
+    }
+
+    /**
+     * Search index of the log, it has every record written to the segments
+     *
+     * @return index
+     */
+    HistoryIndex index() {
+        return index;
+    }
+
+    /**
+     * First record numbers of the segment files in the directory, in order
+     *
+     * @param dir directory
+     * @return segment bases
+     * @throws IOException directory can not be listed
+     */
+    private static List<Long> listSegments(Path dir) throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + HistorySegment.SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - HistorySegment.SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Not a history segment, ignored: " + name);
+                }
+            }
+        }
+        bases.sort(null);
+        return bases;
+    }
+
+    /**
+     * Queue a record, returns at once, the drain writes it with the next group
+     *
+     * @param record JSON of one message
+     * @return number of the record
+     */
+    long append(String record) {
+        return append(number -> record);
+    }
+
+    /**
+     * Queue a record that contains its own number, returns at once
+     *
+     * @param record builds the JSON of one message from the number it gets
+     * @return number of the record, -1 if the log is closed
+     */
+    long append(LongFunction<String> record) {
+        return appendRecord(number -> record.apply(number).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queue an encoded record that contains its own number, returns at once
+     *
+     * @param record builds the UTF-8 JSON of one message from the number it gets, not called if the log is
+     *               closed or stopped, the number would be given again to the next record
+     * @return number of the record, -1 if the log is closed
+     */
+    long appendRecord(LongFunction<byte[]> record) {
+        long began = System.nanoTime();
+        lock.lock();
+        try {
+            if (!running || failure != null) {
+                logger.error("History log " + (running ? "stopped" : "closed") + ", record dropped");
+                return -1;
+            }
+            long number = written + pending.size();
+            byte[] encoded = record.apply(number);
+            pending.add(encoded);
+            cache.add(number, encoded);
+            requestDrain();
+            return number;
+        } finally {
+            lock.unlock();
+            Metrics.historyAppend.recordSince(began);
+        }
+    }
+
+    /**
+     * Number of records, including those not written yet
+     *
+     * @return record count
+     */
+    long size() {
+        lock.lock();
+        try {
+            return written + pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read a range of records in order. The latest records are read from the cache, records not written
+     * yet and no longer cached from the queue, the others from the segments.
+     *
+     * @param from     first record
+     * @param to       end, exclusive
+     * @param consumer called with every record
+     */
+    void read(long from, long to, Consumer<byte[]> consumer) {
+        List<byte[]> queued = new ArrayList<>();
+        long readable;
+        lock.lock();
+        try {
+            long cached = Math.max(from, cache.first());
+            readable = Math.min(written, cached);
+            long end = Math.min(to, cached);
+            long number = written;
+            for (byte[] record : pending) {
+                if (number >= end) {
+                    break;
+                }
+                if (number >= from) {
+                    queued.add(record);
+                }
+                number++;
+            }
+            int fromQueue = queued.size();
+            cache.read(cached, to, queued);
+            HistoryCache.hits.add(queued.size() - fromQueue);
+        } finally {
+            lock.unlock();
+        }
+        long end = Math.min(to, readable);
+        if (from < end) {
+            HistoryCache.misses.add(end - from);
+        }
+        if (from < end) {
+            Map.Entry<Long, HistorySegment> first = segments.floorEntry(from);
+            for (HistorySegment segment : segments.tailMap(first == null ? 0L : first.getKey()).values()) {
+                long base = segment.getBase();
+                if (base >= end) {
+                    break;
+                }
+                try {
+                    segment.read(Math.max(0, from - base), end - base, consumer);
+                } catch (IOException e) {
+                    logger.error("Read history segment failed: " + e.getMessage());
+                    return;
+                }
+            }
+        }
+        queued.forEach(consumer);
+    }
+
+    /**
+     * Wait until every record appended so far is written and forced to disk
+     */
+    void flush() {
+        lock.lock();
+        try {
+            long target = written + pending.size();
+            syncTarget = Math.max(syncTarget, target);
+            requestDrain();
+            while (synced < target && draining) {
+                progress.await(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write and force what is queued, then seal the active segment, safe to call more than once
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (!running) {
+                return;
+            }
+            running = false;
+            try {
+                while (drainRunning) {
+                    progress.await(100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // The last drain runs here, nothing schedules another one. A drain still queued on the executor
+            // is not waited for, this may be its only thread, it finds nothing left to do when it runs.
+            draining = true;
+            drain();
+            cache.clear(written);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            active.seal();
+        } catch (IOException e) {
+            logger.error("Error closing history segment", e);
+        }
+        index.close();
+        logger.info("History log closed, " + written + " records");
+    }
+
+    /**
+     * Schedule a drain unless one is pending, called with the lock held
+     */
+    private void requestDrain() {
+        if (draining || !running) {
+            return;
+        }
+        draining = true;
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // Executor shut down, close() writes what is left
+            draining = false;
+        }
+    }
+
+    /**
+     * Write every queued record and force them when due. Only one drain runs at a time,
+     * it schedules another one for the next fsync if records are left unforced.
+     */
+    private void drain() {
+        lock.lock();
+        try {
+            if (!draining || drainRunning) {
+                // Queued before close() drained the log
+                return;
+            }
+            drainRunning = true;
+            while (true) {
+                long now = System.currentTimeMillis();
+                boolean closing = !running;
+                if (!pending.isEmpty()) {
+                    // Everything queued so far is one group
+                    List<byte[]> batch = new ArrayList<>(pending);
+                    long first = written;
+                    lock.unlock();
+                    long began = System.nanoTime();
+                    int done;
+                    Buffers buffers = Buffers.take();
+                    try {
+                        done = write(batch, buffers);
+                        for (int i = 0; i < done; i++) {
+                            index.add(first + i, batch.get(i));
+                        }
+                    } finally {
+                        Buffers.release(buffers);
+                        Metrics.historyWrite.recordSince(began);
+                        lock.lock();
+                    }
+                    for (int i = 0; i < done; i++) {
+                        pending.poll();
+                    }
+                    // Only what is in the segments counts, numbers stay the positions of the records
+                    written += done;
+                    if (done < batch.size()) {
+                        stop();
+                    }
+                } else if (written > synced
+                        && (closing || syncTarget > synced || now - lastSync >= fsyncIntervalMillis)) {
+                    long target = written;
+                    lock.unlock();
+                    IOException error = null;
+                    try {
+                        active.force();
+                        index.checkpoint();
+                    } catch (IOException e) {
+                        error = e;
+                    } finally {
+                        lock.lock();
+                    }
+                    if (error != null && failure == null) {
+                        // What was written may not be on disk, appending behind it could hide the loss
+                        failure = error;
+                        stop();
+                    }
+                    lastSync = now;
+                    synced = target;
+                } else {
+                    if (written > synced && !syncScheduled && !closing) {
+                        // Drain again in time for the next fsync
+                        syncScheduled = true;
+                        try {
+                            executor.schedule(this::syncDue,
+                                    Math.max(1, lastSync + fsyncIntervalMillis - now), TimeUnit.MILLISECONDS);
+                        } catch (RejectedExecutionException e) {
+                            syncScheduled = false;
+                        }
+                    }
+                    draining = false;
+                    drainRunning = false;
+                    progress.signalAll();
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            draining = false;
+            drainRunning = false;
+            progress.signalAll();
+            logger.error("History drain failed: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A write or fsync failed: drop what is queued and take no more records, called with the lock held.
+     * The room still reads what was written, the log recovers its segments the next time it is opened.
+     */
+    private void stop() {
+        logger.error("History log " + dir + " stopped after " + written + " records, "
+                + pending.size() + " queued records lost: " + failure);
+        pending.clear();
+        // Cached records after the failed one were never written
+        cache.clear(written);
+    }
+
+    private void syncDue() {
+        lock.lock();
+        try {
+            syncScheduled = false;
+            requestDrain();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Buffers to encode a group of records, borrowed by a drain while it writes and shared by every log.
+     * Not thread-local: the last drain of a log runs on whatever thread closes it, a virtual thread of
+     * a client included, and must not leave buffers behind on it. A log owns none while idle.
+     */
+    private static class Buffers {
+        // Idle buffers, about one set per thread that drains at the same time
+        private static final ConcurrentLinkedQueue<Buffers> idle = new ConcurrentLinkedQueue<>();
+        private static final AtomicInteger idleCount = new AtomicInteger();
+        private static final int MAX_IDLE = Runtime.getRuntime().availableProcessors();
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer records = ByteBuffer.allocate(64 * 1024);
+        private final ByteBuffer entries = ByteBuffer.allocate(64 * 1024);
+
+        static Buffers take() {
+            Buffers buffers = idle.poll();
+            if (buffers == null) {
+                return new Buffers();
+            }
+            idleCount.decrementAndGet();
+            return buffers;
+        }
+
+        static void release(Buffers buffers) {
+            // More drains at once than usual, let the extra ones go
+            if (idleCount.incrementAndGet() <= MAX_IDLE) {
+                idle.offer(buffers);
+            } else {
+                idleCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Encode a group of records and write it with one write per segment, roll segments on the way.
+     * A failed write ends the group, the failure is kept and nothing after it is written.
+     *
+     * @param batch   records
+     * @param buffers buffers borrowed by the drain
+     * @return number of records written, from the start of the group
+     */
+    private int write(List<byte[]> batch, Buffers buffers) {
+        ByteBuffer entries = buffers.entries;
+        buffers.records.clear();
+        entries.clear();
+        int done = 0;
+        int n = 0;
+        try {
+            for (byte[] record : batch) {
+                if (!active.fits(record.length, segmentBytes, buffers.records.position())) {
+                    done += writeBuffered(n, buffers);
+                    n = 0;
+                    roll();
+                }
+                if (buffers.records.remaining() < HistorySegment.HEADER_SIZE + record.length) {
+                    done += writeBuffered(n, buffers);
+                    n = 0;
+                    if (buffers.records.capacity() < HistorySegment.HEADER_SIZE + record.length) {
+                        buffers.records = ByteBuffer.allocate(HistorySegment.HEADER_SIZE + record.length);
+                    }
+                }
+                if (!entries.hasRemaining()) {
+                    done += writeBuffered(n, buffers);
+                    n = 0;
+                }
+                if ((active.getCount() + n) % HistorySegment.INDEX_INTERVAL == 0) {
+                    entries.putInt(active.getSize() + buffers.records.position());
+                }
+                buffers.crc.reset();
+                buffers.crc.update(record);
+                buffers.records.putInt(record.length).putInt((int) buffers.crc.getValue()).put(record);
+                n++;
+            }
+            done += writeBuffered(n, buffers);
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                failure = e;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Write the buffered records to the active segment
+     *
+     * @param n       number of buffered records
+     * @param buffers buffers holding them
+     * @return n
+     * @throws IOException write failed, the segment did not publish them
+     */
+    private int writeBuffered(int n, Buffers buffers) throws IOException {
+        if (n == 0) {
+            return 0;
+        }
+        try {
+            active.write(buffers.records.flip(), n, buffers.entries.flip());
+        } finally {
+            buffers.records.clear();
+            buffers.entries.clear();
+        }
+        return n;
+    }
+
+    private void roll() {
+        try {
+            HistorySegment next = HistorySegment.create(dir, active.getBase() + active.getCount());
+            active.seal();
+            segments.put(next.getBase(), next);
+            active = next;
+            index.roll(next.getBase());
+        } catch (IOException e) {
+            logger.error("Roll history segment failed, keep appending to the current one: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * One segment of the history log: a data file of records and a sparse offset index.
+ * <p>
+ * Data file layout, record after record: int payload length, int CRC32 of the payload, payload.
+ * Index file layout: int position of every INDEX_INTERVAL-th record of the segment,
+ * so record r is found by reading entry r / INDEX_INTERVAL and skipping r % INDEX_INTERVAL records.
+ * <p>
+ * Both files are read through read-only mappings, nothing of the segment is kept on the heap.
+ * Only the appender writes, readers never see records beyond the published count.
+ */
+class HistorySegment {
+    private static final Logger logger = LogManager.getLogger(HistorySegment.class);
+    static final String SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+    static final int HEADER_SIZE = 8;
+    static final int INDEX_INTERVAL = 64;
+    private static final int INDEX_ENTRY_SIZE = 4;
+    static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;  // A larger length means a torn record
+    private final long base;  // Number of the first record
+    private final Path path;
+    private final Path indexPath;
+    private volatile long count;  // Records published to readers
+    private volatile int size;  // Bytes of the published records
+
+    // Writing, appender only
+    private FileChannel data;
+    private FileChannel index;
+
+    // Mappings, remapped when the segment grew past them
+    private final ReentrantLock mapLock = new ReentrantLock();
+    private MappedByteBuffer dataMap;
+    private MappedByteBuffer indexMap;
+
+    private HistorySegment(Path dir, long base) {
+        this.base = base;
+        this.path = dir.resolve(String.format("%020d%s", base, SUFFIX));
+        this.indexPath = dir.resolve(String.format("%020d%s", base, INDEX_SUFFIX));
+    }
+
+    /**
+     * Create an empty segment open for appending
+     *
+     * @param dir  directory
+     * @param base number of the first record
+     * @return segment
+     * @throws IOException files can not be created
+     */
+    static HistorySegment create(Path dir, long base) throws IOException {
+        HistorySegment segment = new HistorySegment(dir, base);
+        segment.data = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segment.index = FileChannel.open(segment.indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segment.data.truncate(0);
+        segment.index.truncate(0);
+        return segment;
+    }
+
+    /**
+     * Open a full segment, its record count is known from the first record of the next one.
+     * The index is only rebuilt if it does not match.
+     *
+     * @param dir   directory
+     * @param base  number of the first record
+     * @param count number of records
+     * @return segment
+     * @throws IOException files can not be read
+     */
+    static HistorySegment openSealed(Path dir, long base, long count) throws IOException {
+        HistorySegment segment = new HistorySegment(dir, base);
+        long indexSize = Files.exists(segment.indexPath) ? Files.size(segment.indexPath) : -1;
+        if (indexSize != entriesFor(count) * INDEX_ENTRY_SIZE) {
+            logger.warn("History index " + segment.indexPath.getFileName() + " does not match, rebuild");
+            segment.recover(0, 0);
+        } else {
+            segment.count = count;
+            segment.size = (int) Files.size(segment.path);
+        }
+        return segment;
+    }
+
+    /**
+     * Open the last segment for appending. Only the records after the last index entry are checked,
+     * a torn tail left by a crash is cut off, so opening takes the same time for any history size.
+     *
+     * @param dir  directory
+     * @param base number of the first record
+     * @return segment
+     * @throws IOException files can not be opened
+     */
+    static HistorySegment openLast(Path dir, long base) throws IOException {
+        HistorySegment segment = new HistorySegment(dir, base);
+        segment.data = FileChannel.open(segment.path, StandardOpenOption.WRITE);
+        segment.index = FileChannel.open(segment.indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        long entries = segment.index.size() / INDEX_ENTRY_SIZE;
+        long dataSize = segment.data.size();
+        int position = 0;
+        if (entries > 0) {
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            try (FileChannel in = FileChannel.open(segment.indexPath, StandardOpenOption.READ)) {
+                in.read(entry, (entries - 1) * INDEX_ENTRY_SIZE);
+            }
+            position = entry.flip().remaining() == INDEX_ENTRY_SIZE ? entry.getInt() : -1;
+        }
+        if (entries == 0 || position < 0 || position > dataSize) {
+            segment.recover(0, 0);
+        } else {
+            segment.recover((entries - 1) * INDEX_INTERVAL, position);
+        }
+        segment.data.position(segment.size);
+        segment.index.position(entriesFor(segment.count) * INDEX_ENTRY_SIZE);
+        return segment;
+    }
+
+    private static long entriesFor(long count) {
+        return (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+    }
+
+    /**
+     * Check the records from a known good one to the end, rewrite their index entries
+     * and cut off everything after the last valid record
+     *
+     * @param first    number of the known good record within the segment
+     * @param position its position
+     * @throws IOException read or write failed
+     */
+    private void recover(long first, int position) throws IOException {
+        long dataSize = Files.size(path);
+        long records = first;
+        int valid = position;
+        ByteBuffer entries = ByteBuffer.allocate(64 * INDEX_ENTRY_SIZE);
+        long entryPosition = first / INDEX_INTERVAL * INDEX_ENTRY_SIZE;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, dataSize);
+            CRC32 crc = new CRC32();
+            while (valid + HEADER_SIZE <= dataSize) {
+                int length = map.getInt(valid);
+                if (length < 0 || length > MAX_RECORD_SIZE || valid + HEADER_SIZE + (long) length > dataSize) {
+                    break;
+                }
+                crc.reset();
+                crc.update(map.slice(valid + HEADER_SIZE, length));
+                if ((int) crc.getValue() != map.getInt(valid + 4)) {
+                    break;
+                }
+                if (records % INDEX_INTERVAL == 0) {
+                    if (!entries.hasRemaining()) {
+                        entryPosition += writeFully(out, entries.flip(), entryPosition);
+                        entries.clear();
+                    }
+                    entries.putInt(valid);
+                }
+                valid += HEADER_SIZE + length;
+                records++;
+            }
+            entryPosition += writeFully(out, entries.flip(), entryPosition);
+            out.truncate(entryPosition);
+        }
+        if (valid < dataSize) {
+            logger.warn("History segment " + path.getFileName() + " has a torn tail, truncated " + (dataSize - valid) + " bytes");
+            try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                out.truncate(valid);
+            }
+        }
+        count = records;
+        size = valid;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    long getBase() {
+        return base;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Whether a record fits without passing the segment size, an empty segment takes any record
+     *
+     * @param length       payload length
+     * @param segmentBytes maximum segment size
+     * @param pending      bytes written after the published size
+     * @return true if it fits
+     */
+    boolean fits(int length, long segmentBytes, int pending) {
+        return count == 0 && pending == 0 || (long) size + pending + HEADER_SIZE + length <= segmentBytes;
+    }
+
+    /**
+     * Append encoded records and their index entries, then publish them to readers
+     *
+     * @param records  encoded records
+     * @param n        number of records
+     * @param entries  index entries of the records, may be empty
+     * @throws IOException write failed
+     */
+    void write(ByteBuffer records, int n, ByteBuffer entries) throws IOException {
+        int length = records.remaining();
+        while (records.hasRemaining()) {
+            data.write(records);
+        }
+        while (entries.hasRemaining()) {
+            index.write(entries);
+        }
+        size += length;
+        count += n;
+    }
+
+    /**
+     * Force written records to disk, the index can be rebuilt and is not forced
+     *
+     * @throws IOException fsync failed
+     */
+    void force() throws IOException {
+        data.force(false);
+    }
+
+    /**
+     * Stop appending, the segment stays readable
+     *
+     * @throws IOException close failed
+     */
+    void seal() throws IOException {
+        if (data != null) {
+            data.force(false);
+            data.close();
+            index.close();
+            data = null;
+            index = null;
+        }
+    }
+
+    /**
+     * Read a range of published records from mapped memory
+     *
+     * @param from     first record within the segment
+     * @param to       end within the segment, exclusive
+     * @param consumer called with every payload
+     * @throws IOException mapping failed
+     */
+    void read(long from, long to, Consumer<byte[]> consumer) throws IOException {
+        to = Math.min(to, count);
+        if (from >= to) {
+            return;
+        }
+        ByteBuffer dataView = mapData(size);
+        ByteBuffer indexView = mapIndex(entriesFor(to));
+        int position = indexView.getInt((int) (from / INDEX_INTERVAL) * INDEX_ENTRY_SIZE);
+        for (long skip = from % INDEX_INTERVAL; skip > 0; skip--) {
+            position += HEADER_SIZE + dataView.getInt(position);
+        }
+        for (long record = from; record < to; record++) {
+            int length = dataView.getInt(position);
+            byte[] payload = new byte[length];
+            dataView.get(position + HEADER_SIZE, payload);
+            consumer.accept(payload);
+            position += HEADER_SIZE + length;
+        }
+    }
+
+    private ByteBuffer mapData(int needed) throws IOException {
+        mapLock.lock();
+        try {
+            if (dataMap == null || dataMap.capacity() < needed) {
+                dataMap = map(path, Files.size(path));
+            }
+            return dataMap;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    private ByteBuffer mapIndex(long entries) throws IOException {
+        mapLock.lock();
+        try {
+            if (indexMap == null || indexMap.capacity() < entries * INDEX_ENTRY_SIZE) {
+                indexMap = map(indexPath, Files.size(indexPath));
+            }
+            return indexMap;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    private static MappedByteBuffer map(Path file, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+}
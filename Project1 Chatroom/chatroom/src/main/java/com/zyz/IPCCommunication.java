@@ -31,17 +31,7 @@ public class IPCCommunication {
     }
 
     public void getHistoryData(JSONObject data, Callback callback) {
-        Event event = new Event("get-history-data", null, callback);
-        dispatcher.dispatchEvent(event);
-    }
-
-    public void getServerInfo(Callback callback) {
-        Event event = new Event("get-server-info", null, callback);
-        dispatcher.dispatchEvent(event);
-    }
-
-    public void serverSendMsg(String message) {
-        Event event = new Event("server-send-msg", message);
+        Event event = new Event("get-history-data", data, callback);
         dispatcher.dispatchEvent(event);
     }
 
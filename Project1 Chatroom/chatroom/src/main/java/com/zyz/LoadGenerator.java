@@ -0,0 +1,602 @@
+package com.zyz;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Headless load generator, many simulated clients speaking the chat protocol to one server or the nodes
+ * of a cluster. Every chat message carries the time it was sent, each member of the room that receives it
+ * records the delivery latency, senders and receivers share this process and its clock.
+ * <p>
+ * java -cp chatroom.jar com.zyz.LoadGenerator --target=localhost:8888 --clients=1000 --rate=1 --duration=60
+ * <p>
+ * Options, as --name=value:
+ * <ul>
+ *     <li>target: host:port of the server, comma separated to spread clients over several nodes</li>
+ *     <li>clients: number of clients, rooms: number of rooms they are spread over, 0 for the default room</li>
+ *     <li>rate: chat messages per second per client, profile: constant, poisson or burst,
+ *     burst: messages per burst</li>
+ *     <li>size: bytes of a chat message, protocol: text or binary</li>
+ *     <li>history and info: getMsgHistory and getServerInfo per second per client</li>
+ *     <li>churn: reconnects per second per client, roomChurn: room changes per second per client</li>
+ *     <li>ramp: seconds to connect all clients in, warmup: seconds not counted, duration: seconds measured</li>
+ *     <li>out: results are written to out.json (summary) and out.csv (one row per second)</li>
+ * </ul>
+ * The summary also has the memory and threads of the first target before the clients connect and at the end
+ * of the measurement, from getServerMetrics, and what they grew by per connection.
+ */
+public class LoadGenerator {
+    private static final String PREFIX = "load ";  // Chat messages of the generator start with it and the send time
+    private static final int CONNECT_TIMEOUT = 10_000;
+    private final Map<String, String> options;
+    private final List<InetSocketAddress> targets = new ArrayList<>();
+    private final int clientCount;
+    private final int rooms;
+    private final double rate;
+    private final String profile;
+    private final int burst;
+    private final int size;
+    private final boolean binary;
+    private final double historyRate;
+    private final double infoRate;
+    private final double churn;
+    private final double roomChurn;
+    private final int ramp;
+    private final int warmup;
+    private final int duration;
+    private final String out;
+    private final ScheduledExecutorService scheduler;
+    private final List<Client> clients = new ArrayList<>();
+    private volatile boolean running = true;
+    private volatile boolean measuring;
+
+    // Counters run from the start, the summary takes the difference over the measured part
+    private final Histogram latency = new Histogram();  // Measured part only
+    private final Histogram connectTime = new Histogram();
+    private volatile Histogram secondLatency = new Histogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();  // Closed by the server or the network
+    private final LongAdder errorResponses = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();  // Measured, by api
+    private final AtomicInteger connected = new AtomicInteger();
+
+    LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        for (String target : option("target", "localhost:8888").split(",")) {
+            int colon = target.lastIndexOf(':');
+            targets.add(new InetSocketAddress(target.substring(0, colon).trim(),
+                    Integer.parseInt(target.substring(colon + 1).trim())));
+        }
+        clientCount = Integer.parseInt(option("clients", "100"));
+        rooms = Integer.parseInt(option("rooms", "1"));
+        rate = Double.parseDouble(option("rate", "1"));
+        profile = option("profile", "poisson");
+        burst = Math.max(1, Integer.parseInt(option("burst", "10")));
+        size = Math.max(32, Integer.parseInt(option("size", "64")));
+        binary = "binary".equals(option("protocol", "text"));
+        historyRate = Double.parseDouble(option("history", "0.01"));
+        infoRate = Double.parseDouble(option("info", "0.01"));
+        churn = Double.parseDouble(option("churn", "0"));
+        roomChurn = Double.parseDouble(option("roomChurn", "0"));
+        ramp = Integer.parseInt(option("ramp", "5"));
+        warmup = Integer.parseInt(option("warmup", "5"));
+        duration = Integer.parseInt(option("duration", "30"));
+        out = option("out", "load-result");
+        AtomicInteger count = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), task -> {
+            Thread thread = new Thread(task, "load-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        scheduler = executor;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Options are --name=value, see the LoadGenerator class comment: " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Connect the clients over the ramp, run the warmup and the measurement, then write the results
+     *
+     * @throws IOException results can not be written
+     * @throws InterruptedException interrupted
+     */
+    void run() throws IOException, InterruptedException {
+        JSONObject serverBefore = serverMetrics();
+        long rampNanos = TimeUnit.SECONDS.toNanos(ramp);
+        for (int i = 0; i < clientCount; i++) {
+            Client client = new Client(i);
+            clients.add(client);
+            scheduler.schedule(client::start, clientCount == 0 ? 0 : rampNanos * i / clientCount, TimeUnit.NANOSECONDS);
+        }
+        List<String> rows = new ArrayList<>();
+        rows.add("second,connected,sent,delivered,responses,errors,disconnects,p50_us,p99_us,max_us");
+        long[] last = counters();
+        long[] from = last;
+        int total = ramp + warmup + duration;
+        for (int second = 1; second <= total; second++) {
+            if (second == ramp + warmup + 1) {
+                // Measure from here, the summary only counts this part
+                measuring = true;
+                from = last;
+            }
+            Thread.sleep(1000);
+            Histogram histogram = secondLatency;
+            secondLatency = new Histogram();
+            long[] now = counters();
+            JSONObject summary = histogram.snapshot();
+            rows.add(second + "," + connected.get() + "," + (now[0] - last[0]) + "," + (now[1] - last[1]) + ","
+                    + (now[3] - last[3]) + "," + (now[4] - last[4]) + "," + (now[5] - last[5]) + ","
+                    + summary.getLong("p50") / 1000 + "," + summary.getLong("p99") / 1000 + ","
+                    + summary.getLong("max") / 1000);
+            last = now;
+            System.out.println("[" + second + "s] connected " + connected.get() + ", delivered/s "
+                    + rows.get(rows.size() - 1).split(",")[3] + ", p99 " + summary.getLong("p99") / 1000 + " us"
+                    + (measuring ? "" : " (not measured)"));
+        }
+        JSONObject serverAfter = serverMetrics();
+        running = false;
+        measuring = false;
+        scheduler.shutdownNow();
+        for (Client client : clients) {
+            client.close();
+        }
+        JSONObject result = summary(from, last);
+        if (serverBefore != null && serverAfter != null) {
+            result.put("server", server(serverBefore, serverAfter));
+        }
+        Files.writeString(Path.of(out + ".json"), result.toString(2));
+        Files.write(Path.of(out + ".csv"), rows);
+        System.out.println(result.toString(2));
+    }
+
+    /**
+     * Current counters: sent, delivered, requests, responses, errors and disconnects
+     *
+     * @return counters
+     */
+    private long[] counters() {
+        return new long[]{sent.sum(), delivered.sum(), requests.sum(), responses.sum(),
+                errorResponses.sum() + connectFailures.sum(), disconnects.sum()};
+    }
+
+    /**
+     * Results of the measured part, connects are counted from the start as most happen in the ramp
+     *
+     * @param from counters when the measurement started
+     * @param to   counters when it ended
+     * @return summary, latencies in microseconds
+     */
+    private JSONObject summary(long[] from, long[] to) {
+        long sentCount = to[0] - from[0];
+        long deliveredCount = to[1] - from[1];
+        long requestCount = to[2] - from[2];
+        long errorCount = to[4] - from[4];
+        JSONObject result = new JSONObject();
+        result.put("options", new JSONObject(options));
+        result.put("seconds", duration);
+        result.put("clients", clientCount);
+        result.put("sent", sentCount);
+        result.put("delivered", deliveredCount);
+        result.put("sentPerSecond", sentCount / (double) Math.max(1, duration));
+        result.put("deliveredPerSecond", deliveredCount / (double) Math.max(1, duration));
+        result.put("requests", requestCount);
+        result.put("responses", to[3] - from[3]);
+        result.put("connects", connects.sum());
+        result.put("connectFailures", connectFailures.sum());
+        result.put("disconnects", to[5] - from[5]);
+        JSONObject errorsByApi = new JSONObject();
+        errors.forEach((api, count) -> errorsByApi.put(api, count.sum()));
+        result.put("errors", errorsByApi);
+        long attempts = sentCount + requestCount;
+        result.put("errorRate", attempts == 0 ? 0 : errorCount / (double) attempts);
+        result.put("latencyMicros", micros(latency.snapshot()));
+        result.put("connectMicros", micros(connectTime.snapshot()));
+        return result;
+    }
+
+    /**
+     * Metrics of the first target, over a connection of its own that does not log in
+     *
+     * @return metrics, null if the server does not answer them
+     */
+    private JSONObject serverMetrics() {
+        try (Socket socket = new Socket()) {
+            socket.connect(targets.get(0), CONNECT_TIMEOUT);
+            socket.setSoTimeout(CONNECT_TIMEOUT);
+            OutputStream stream = socket.getOutputStream();
+            stream.write("{\"api\":\"getServerMetrics\"}\n".getBytes(StandardCharsets.UTF_8));
+            stream.flush();
+            MessageReader in = new MessageReader(socket.getInputStream());
+            while (in.next()) {
+                JSONObject message = in.codec().readJSON(in.buffer(), in.start(), in.end());
+                if ("serverMetrics".equals(message.optString("api"))) {
+                    return message.getJSONObject("data");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("No server metrics: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Memory and threads of the server before and after, and their growth per connection
+     *
+     * @param before metrics before the clients connected
+     * @param after  metrics at the end of the measurement
+     * @return server summary
+     */
+    private static JSONObject server(JSONObject before, JSONObject after) {
+        JSONObject result = new JSONObject();
+        JSONObject memoryBefore = before.optJSONObject("memory");
+        JSONObject memoryAfter = after.optJSONObject("memory");
+        long connections = after.optLong("sessions") - before.optLong("sessions");
+        result.put("connections", connections);
+        result.put("before", memoryBefore);
+        result.put("after", memoryAfter);
+        if (memoryBefore != null && memoryAfter != null && connections > 0) {
+            JSONObject perConnection = new JSONObject();
+            for (String key : memoryAfter.keySet()) {
+                perConnection.put(key, (memoryAfter.getLong(key) - memoryBefore.getLong(key)) / (double) connections);
+            }
+            result.put("perConnection", perConnection);
+        }
+        return result;
+    }
+
+    private static JSONObject micros(JSONObject nanos) {
+        JSONObject micros = new JSONObject();
+        for (String key : nanos.keySet()) {
+            micros.put(key, key.equals("count") ? nanos.getLong(key) : nanos.getLong(key) / 1000);
+        }
+        return micros;
+    }
+
+    private void error(String api) {
+        errorResponses.increment();
+        if (measuring) {
+            errors.computeIfAbsent(api, k -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Delay until the next event of a Poisson process
+     *
+     * @param perSecond events per second
+     * @return nanoseconds
+     */
+    private static long exponential(double perSecond) {
+        return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) / perSecond * 1e9);
+    }
+
+    private String roomOf(int index) {
+        return rooms <= 0 ? null : "load-" + (index % rooms);
+    }
+
+    /**
+     * One simulated client, its requests are scheduled on the shared scheduler and it has its own reader thread
+     */
+    private class Client {
+        private final int index;
+        private final String name;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private volatile Socket socket;
+        private volatile OutputStream output;
+        private volatile AtomicBoolean open = new AtomicBoolean();  // Of the current connection
+        private volatile boolean binaryProtocol;
+        private volatile String room;
+        private int sequence;
+
+        Client(int index) {
+            this.index = index;
+            this.name = "load" + index;
+            this.room = roomOf(index);
+        }
+
+        /**
+         * Connect and log in, then start sending
+         */
+        void start() {
+            if (!connect()) {
+                return;
+            }
+            if (rate > 0) {
+                schedule(this::chat, profile.equals("burst") ? exponential(rate / burst) : exponential(rate));
+            }
+            if (historyRate > 0) {
+                schedule(this::history, exponential(historyRate));
+            }
+            if (infoRate > 0) {
+                schedule(this::info, exponential(infoRate));
+            }
+            if (churn > 0) {
+                schedule(this::reconnect, exponential(churn));
+            }
+            if (roomChurn > 0 && rooms > 1) {
+                schedule(this::changeRoom, exponential(roomChurn));
+            }
+        }
+
+        private void schedule(Runnable task, long delayNanos) {
+            if (!running) {
+                return;
+            }
+            try {
+                scheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RuntimeException e) {
+                // Shutting down
+            }
+        }
+
+        /**
+         * Open the connection and wait for the login result
+         *
+         * @return true if logged in
+         */
+        private boolean connect() {
+            long began = System.nanoTime();
+            Socket opened = new Socket();
+            try {
+                opened.setTcpNoDelay(true);
+                opened.connect(targets.get(index % targets.size()), CONNECT_TIMEOUT);
+                opened.setSoTimeout(CONNECT_TIMEOUT);
+                OutputStream stream = new BufferedOutputStream(opened.getOutputStream());
+                MessageReader in = new MessageReader(opened.getInputStream());
+                JSONObject data = new JSONObject().put("user", name);
+                if (room != null) {
+                    data.put("room", room);
+                }
+                if (binary) {
+                    data.put("protocols", new JSONArray().put(BinaryProtocol.NAME));
+                }
+                stream.write((new JSONObject().put("api", "login").put("data", data) + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                stream.flush();
+                JSONObject result;
+                do {
+                    if (!in.next()) {
+                        throw new IOException("Closed before login");
+                    }
+                    result = read(in);
+                } while (!"loginResult".equals(result.optString("api")));
+                if (!"success".equals(result.optString("status"))) {
+                    throw new IOException("Login failed: " + result.optString("message"));
+                }
+                opened.setSoTimeout(0);
+                binaryProtocol = BinaryProtocol.NAME.equals(result.optString("protocol"));
+                AtomicBoolean live = new AtomicBoolean(true);
+                socket = opened;
+                output = stream;
+                open = live;
+                connected.incrementAndGet();
+                // Connects are counted during the ramp too
+                connectTime.recordSince(began);
+                connects.increment();
+                Thread reader = new Thread(null, () -> read(live, in), name + "-reader", 256 * 1024);
+                reader.setDaemon(true);
+                reader.start();
+                return true;
+            } catch (IOException | RuntimeException e) {
+                connectFailures.increment();
+                try {
+                    opened.close();
+                } catch (IOException ignored) {
+                    // Already failed
+                }
+                return false;
+            }
+        }
+
+        private JSONObject read(MessageReader in) throws IOException {
+            ByteBuffer buffer = in.buffer();
+            if (BinaryProtocol.isOpcode(buffer.get(in.start()))) {
+                return BinaryProtocol.decode(buffer, in.start(), in.end(), in.codec());
+            }
+            return in.codec().readJSON(buffer, in.start(), in.end());
+        }
+
+        /**
+         * Read until the connection closes, chat messages are read without building JSON
+         *
+         * @param live cleared by whoever closes the connection first
+         * @param in   reader of the socket
+         */
+        private void read(AtomicBoolean live, MessageReader in) {
+            ChatCodec codec = in.codec();
+            try {
+                while (in.next()) {
+                    if (codec.read(in.buffer(), in.start(), in.end()) == ChatCodec.RECEIVE_MSG) {
+                        received(codec.message().message);
+                        continue;
+                    }
+                    JSONObject message = read(in);
+                    String api = message.optString("api");
+                    if (api.equals("ping")) {
+                        write("{\"api\":\"pong\"}");
+                        continue;
+                    }
+                    responses.increment();
+                    if ("error".equals(message.optString("status"))) {
+                        error(api);
+                    } else if (api.equals("joinResult")) {
+                        room = message.optString("room", room);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Counted below unless we closed it
+            }
+            if (live.compareAndSet(true, false)) {
+                connected.decrementAndGet();
+                if (running) {
+                    disconnects.increment();
+                }
+            }
+        }
+
+        private void received(String message) {
+            if (message == null || !message.startsWith(PREFIX)) {
+                return;
+            }
+            long sentAt = 0;
+            for (int i = PREFIX.length(); i < message.length(); i++) {
+                char c = message.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                sentAt = sentAt * 10 + (c - '0');
+            }
+            long nanos = System.nanoTime() - sentAt;
+            secondLatency.record(nanos);
+            delivered.increment();
+            if (measuring) {
+                latency.record(nanos);
+            }
+        }
+
+        private void chat() {
+            int count = profile.equals("burst") ? burst : 1;
+            for (int i = 0; i < count && running; i++) {
+                StringBuilder text = new StringBuilder(size).append(PREFIX).append(System.nanoTime())
+                        .append(' ').append(name).append(' ').append(sequence++).append(' ');
+                while (text.length() < size) {
+                    text.append('x');
+                }
+                String message = text.toString();
+                if (write(binaryProtocol ? BinaryProtocol.encodeSendMsg(message, -1)
+                        : ChatCodec.sendMsgLine(message, -1))) {
+                    sent.increment();
+                }
+            }
+            long delay = switch (profile) {
+                case "constant" -> (long) (1e9 / rate);
+                case "burst" -> exponential(rate / burst);
+                default -> exponential(rate);
+            };
+            schedule(this::chat, delay);
+        }
+
+        private void history() {
+            request(new JSONObject().put("api", "getMsgHistory")
+                    .put("data", new JSONObject().put("limit", CreatingServer.DEFAULT_HISTORY_PAGE)));
+            schedule(this::history, exponential(historyRate));
+        }
+
+        private void info() {
+            request(new JSONObject().put("api", "getServerInfo"));
+            schedule(this::info, exponential(infoRate));
+        }
+
+        private void changeRoom() {
+            String target = roomOf(ThreadLocalRandom.current().nextInt(rooms));
+            request(new JSONObject().put("api", "joinRoom").put("data", new JSONObject().put("room", target)));
+            schedule(this::changeRoom, exponential(roomChurn));
+        }
+
+        /**
+         * Leave and log in again, as a client on a flaky network or a user coming back
+         */
+        private void reconnect() {
+            close();
+            if (running && connect()) {
+                schedule(this::reconnect, exponential(churn));
+            }
+        }
+
+        private void request(JSONObject request) {
+            if (write(binaryProtocol ? BinaryProtocol.encode(request)
+                    : (request + "\n").getBytes(StandardCharsets.UTF_8))) {
+                requests.increment();
+            }
+        }
+
+        private void write(String line) {
+            write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Write a request, a failed write closes the connection
+         *
+         * @param data line or frame
+         * @return true if written
+         */
+        private boolean write(byte[] data) {
+            OutputStream stream = output;
+            if (stream == null) {
+                return false;
+            }
+            writeLock.lock();
+            try {
+                stream.write(data);
+                stream.flush();
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        void close() {
+            Socket current = socket;
+            if (current == null) {
+                return;
+            }
+            if (open.compareAndSet(true, false)) {
+                connected.decrementAndGet();
+            }
+            writeLock.lock();
+            try {
+                output = null;
+                current.close();
+            } catch (IOException e) {
+                // Closing anyway
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+}
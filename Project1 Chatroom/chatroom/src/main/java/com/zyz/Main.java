@@ -9,10 +9,17 @@ import org.json.JSONObject;
 import java.io.*;
 import java.net.ConnectException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.TreeSet;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Main {
     // Create a new EventDispatcher instance
@@ -21,6 +28,21 @@ public class Main {
     public static final IPCCommunication ipc = new IPCCommunication(dispatcher);
     private static final Logger logger = LogManager.getLogger(Main.class);
     private static JSONArray historyData;
+    private static String syncedWith;  // Server and user lastSeenSeq belongs to
+    // Delivery of chat messages, acked to the server in batches
+    private static final int ACK_BATCH = 16;  // Ack at once after this many messages
+    private static final long ACK_DELAY_MILLIS = 200;  // Otherwise ack this long after the first unacked one
+    private static final ReentrantLock ackLock = new ReentrantLock();
+    // Offer compression at login, for slow links, system property chatroom.compression.offer
+    private static final boolean OFFER_COMPRESSION = Boolean.getBoolean("chatroom.compression.offer");
+    private static long lastSeenSeq = -1;  // Every message up to this sequence number was received
+    private static final TreeSet<Long> seenAhead = new TreeSet<>();  // Received after a gap, resent ones fill it
+    private static int unacked;  // Messages received since the last ack
+    private static final ScheduledExecutorService ackTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ack-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Connection class to store the connection status and socket
@@ -28,18 +50,63 @@ public class Main {
     private static class Connection {
         public static boolean connected = false;
         public static Socket socket;
-        public static PrintWriter toServer;
-        public static BufferedReader fromServer;
+        public static OutputStream output;  // Text lines and binary frames, written under sendLock
+        public static MessageReader fromServer;  // Text lines and binary frames, see BinaryProtocol
         public static String address;
         public static String port;
+        public static boolean deltaSync = false;  // Server sends only the missed messages after login
+        public static boolean acking = false;  // Server expects acks and resends what is not acked
+        public static volatile boolean binary = false;  // Requests go out as binary frames, agreed at login
+        public static final ReentrantLock sendLock = new ReentrantLock();  // Keeps text and binary writes in order
+        public static Compression.Deflate deflate;  // Compresses requests once the server agrees, under sendLock
+        public static Compression.Inflate inflate;  // Inflates compressed frames, used by the reading thread
 
-        public static void setConnection(Socket socket, PrintWriter toServer, BufferedReader fromServer, String address, String port) {
+        public static void setConnection(Socket socket, OutputStream output, MessageReader fromServer, String address, String port) {
             Connection.socket = socket;
-            Connection.toServer = toServer;
+            Connection.output = output;
             Connection.fromServer = fromServer;
             Connection.address = address;
             Connection.port = port;
         }
+
+        /**
+         * Report what compression saved and cost on the connection, then free its contexts
+         */
+        public static void endCompression() {
+            sendLock.lock();
+            try {
+                if (deflate != null || inflate != null) {
+                    logger.info("Compression, sent: " + (deflate != null ? deflate : "none")
+                            + ", received: " + (inflate != null ? inflate : "none"));
+                }
+                if (deflate != null) {
+                    deflate.end();
+                    deflate = null;
+                }
+                if (inflate != null) {
+                    inflate.end();
+                    inflate = null;
+                }
+            } finally {
+                sendLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write a text line or binary frame to the server, compressed if agreed at login
+     *
+     * @param data line with its separator or frame
+     * @throws IOException write failed
+     */
+    private static void writeToServer(byte[] data) throws IOException {
+        Connection.sendLock.lock();
+        try {
+            Connection.output.write(Connection.deflate != null ? Connection.deflate.compress(data) : data);
+            Connection.output.flush();
+        } finally {
+            Connection.sendLock.unlock();
+        }
     }
 
     /**
@@ -57,11 +124,32 @@ public class Main {
             if (api.equals("close")) {
                 logger.info("Close connection to server");
             }
-            PrintWriter out = Connection.toServer;
             JSONObject json = new JSONObject();
             json.put("api", api);
             json.put("data", data);
-            out.println(json);
+            writeToServer(Connection.binary
+                    ? BinaryProtocol.encode(json) : (json + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            logger.error("Failed to send request to server: " + e.getMessage());
+            Connection.connected = false;
+            Render.ConnectionLost();
+        }
+    }
+
+    /**
+     * Send a chat message, encoded by the codec without building JSON
+     *
+     * @param message message
+     * @param ack     piggybacked cumulative ack, -1 if none
+     */
+    private static void sendMsgToServer(String message, long ack) {
+        try {
+            if (!Connection.connected) {
+                logger.error("Not connected to server, failed to send request to server.");
+                throw new ConnectException();
+            }
+            writeToServer(Connection.binary
+                    ? BinaryProtocol.encodeSendMsg(message, ack) : ChatCodec.sendMsgLine(message, ack));
         } catch (Exception e) {
             logger.error("Failed to send request to server: " + e.getMessage());
             Connection.connected = false;
@@ -93,13 +181,47 @@ public class Main {
 
         @Override
         public void run() {
+            // Chat messages read from one burst of the server, shown together
+            List<ChatMessage> received = new ArrayList<>();
             while (Connection.connected) {
                 try {
-                    String data = Connection.fromServer.readLine();
-                    if (data != null) {
-                        dispatcher.dispatchEvent(new Event("server-request", data));
+                    MessageReader reader = Connection.fromServer;
+                    if (!reader.next()) {
+                        // End of stream, a server that goes away says serverClose first
+                        logger.info("Connection closed by server");
+                        receiveMsgs(received);
+                        if (Connection.connected) {
+                            Connection.connected = false;
+                            Render.ConnectionLost();
+                        }
+                        break;
+                    }
+                    ChatCodec codec = reader.codec();
+                    ByteBuffer buffer = reader.buffer();
+                    int start = reader.start();
+                    int end = reader.end();
+                    if (buffer.get(start) == BinaryProtocol.COMPRESSED) {
+                        if (Connection.inflate == null) {
+                            Connection.inflate = new Compression.Inflate();
+                        }
+                        Connection.inflate.inflate(buffer, start, end);
+                        buffer = Connection.inflate.buffer();
+                        start = 0;
+                        end = Connection.inflate.length();
                     }
+                    if (codec.read(buffer, start, end) == ChatCodec.RECEIVE_MSG) {
+                        // Chat messages skip JSON and the event bus
+                        received.add(codec.message().copy());
+                        if (!reader.hasBuffered()) {
+                            receiveMsgs(received);
+                        }
+                        continue;
+                    }
+                    receiveMsgs(received);
+                    JSONObject data = codec.readJSON(buffer, start, end);
+                    dispatcher.dispatchEvent(new Event("server-request", data));
                 } catch (Exception e) {
+                    received.clear();
                     logger.error("Failed to read data from server: " + e.getMessage());
                     Connection.connected = false;
                     if(dispatcher.hasListener("login-success"))
@@ -113,6 +235,75 @@ public class Main {
         }
     }
 
+    /**
+     * Show chat messages from the server and keep them in the local history
+     *
+     * @param messages messages in order, emptied afterwards
+     */
+    private static void receiveMsgs(List<ChatMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        messages.removeIf(data -> {
+            if (data.seq >= 0 && !markReceived(data.seq)) {
+                logger.info("Duplicate message " + data.seq + " ignored");
+                return true;
+            }
+            // Own message sent back for the ack sequence, already shown
+            return Render.user != null && Render.user.equals(data.user);
+        });
+        if (!messages.isEmpty()) {
+            Render.receiveMsgs(new ArrayList<>(messages));
+            for (ChatMessage data : messages) {
+                addHistoryMsg(data.user, data.message, data.time, data.count);
+            }
+        }
+        messages.clear();
+    }
+
+    /**
+     * Record a received chat message
+     *
+     * @param seq sequence number
+     * @return false if the message was received before
+     */
+    private static boolean markReceived(long seq) {
+        ackLock.lock();
+        try {
+            if (seq <= lastSeenSeq || !seenAhead.add(seq)) {
+                return false;
+            }
+            while (seenAhead.remove(lastSeenSeq + 1)) {
+                lastSeenSeq++;
+            }
+            unacked++;
+            if (unacked >= ACK_BATCH) {
+                sendAck();
+            } else if (unacked == 1) {
+                ackTimer.schedule(Main::sendAck, ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        } finally {
+            ackLock.unlock();
+        }
+    }
+
+    /**
+     * Send the cumulative ack if something is unacked
+     */
+    private static void sendAck() {
+        ackLock.lock();
+        try {
+            if (unacked == 0 || !Connection.connected || !Connection.acking) {
+                return;
+            }
+            unacked = 0;
+            sendRequestToServer("ack", new JSONObject().put("seq", lastSeenSeq));
+        } finally {
+            ackLock.unlock();
+        }
+    }
+
     /**
      * Add history message to historyData
      *
@@ -143,29 +334,37 @@ public class Main {
     /* ----------------- Event Listeners ----------------- */
 
     /**
-     * Create server event listener
+     * Create server event listener, the server runs in this process and the host logs in to it like any client
      */
     public static class createServer implements EventListener {
         @Override
         public void onEvent(Event event) {
-            dispatcher.registerListener("server-send-msg", new serverSendMsg());
             if ("create-server".equals(event.getType())) {
                 JSONObject json = new JSONObject(event.getData().toString());
                 logger.info("creating server: " + json);
                 String port = json.get("port").toString();
                 String username = json.get("user").toString();
-                new Thread(new CreatingServer(port, username)).start();
-                logger.info("server thread created");
                 clearHistoryData();
-                dispatcher.registerListener("create-server-success", new EventListener() {
-                    @Override
-                    public void onEvent(Event event1) {
-                        if (event1.getType().equals("create-server-success")) {
-                            event.getCallback().call("success");
-                        }
-                        dispatcher.unregisterListener("create-server-success", this);
+                new Thread(new CreatingServer(port, username,
+                        CreatingServer.ServerMode.parse(System.getProperty("chatroom.server.mode")), res -> {
+                    if (!res.equals("success")) {
+                        event.getCallback().call(res);
+                        return;
                     }
-                });
+                    // Not on the server thread, it goes on to accept the login
+                    new Thread(() -> {
+                        JSONObject login = new JSONObject().put("address", "localhost").put("port", port)
+                                .put("user", username);
+                        try {
+                            dispatcher.dispatchEvent(new Event("login", login, event.getCallback()));
+                        } catch (RuntimeException e) {
+                            logger.error("host login failed: " + e.getMessage());
+                            CreatingServer.onClose();
+                            event.getCallback().call("login to the server failed");
+                        }
+                    }, "host-login").start();
+                })).start();
+                logger.info("server thread created");
             }
         }
     }
@@ -178,7 +377,12 @@ public class Main {
         public void onEvent(Event event) {
             if ("get-history-data".equals(event.getType())) {
                 logger.info("get history data from server");
-                sendRequestToServer("getMsgHistory", new JSONObject());
+                // Only one page, the latest one unless the request says otherwise
+                JSONObject page = event.getData() instanceof JSONObject data ? data : new JSONObject();
+                if (!page.has("limit")) {
+                    page.put("limit", CreatingServer.DEFAULT_HISTORY_PAGE);
+                }
+                sendRequestToServer("getMsgHistory", page);
                 dispatcher.registerListener("history-data", new EventListener() {
                     @Override
                     public void onEvent(Event event1) {
@@ -193,37 +397,6 @@ public class Main {
         }
     }
 
-    /**
-     * Get server info event listener
-     */
-    public static class getServerInfo implements EventListener {
-        @Override
-        public void onEvent(Event event) {
-            logger.info("get server info");
-            if ("get-server-info".equals(event.getType())) {
-                if (Render.isServerMode()) {
-                    if (!CreatingServer.isRunning())
-                        event.getCallback().call(new JSONObject().put("userNumber", -1).toString());
-                    event.getCallback().call(
-                            new JSONObject().put("userNumber", CreatingServer.UserData.getUserNumber()).toString()
-                    );
-                    return;
-                }
-                if (!Connection.connected) {
-                    event.getCallback().call(new JSONObject().put("userNumber", -1).toString());
-                    return;
-                }
-                sendRequestToServer("getServerInfo", new JSONObject());
-                if (dispatcher.hasListener("server-info")) return;
-                dispatcher.registerListener("server-info", event1 -> {
-                    if (event1.getType().equals("server-info")) {
-                        event.getCallback().call(event1.getData().toString());
-                    }
-                });
-            }
-        }
-    }
-
     /**
      * Leave room event listener
      */
@@ -235,11 +408,10 @@ public class Main {
             if ("leave-room".equals(event.getType())) {
                 try {
                     onClose.shutdownConnection();
+                    CreatingServer.HistoryData.saveHistoryToFile(historyData);
                     if (Render.isServerMode()) {
                         CreatingServer.HistoryData.saveHistoryToFile();
                         dispatcher.dispatchEvent(new Event("server-close", "close"));
-                    } else {
-                        CreatingServer.HistoryData.saveHistoryToFile(historyData);
                     }
                 } catch (IOException e) {
                     logger.error("failed to close socket: " + e.getMessage());
@@ -248,25 +420,6 @@ public class Main {
         }
     }
 
-    /**
-     * Server send message event listener
-     */
-    public static class serverSendMsg implements EventListener {
-        @Override
-        public void onEvent(Event event) {
-            if ("server-send-msg".equals(event.getType())) {
-                if (!Render.isServerMode()) {
-                    logger.error("not server mode, but server send msg");
-                }
-                logger.info("server send msg: " + event.getData().toString());
-                JSONObject json = new JSONObject(event.getData().toString());
-                String user = json.get("user").toString();
-                String message = json.get("message").toString();
-                CreatingServer.serverSendMsg(message, user);
-            }
-        }
-    }
-
     /**
      * Load local chat record event listener
      */
@@ -277,6 +430,8 @@ public class Main {
                 // read local chat record
                 logger.info("load local chat record");
                 historyData = CreatingServer.HistoryData.loadHistoryFromFile();
+                // Not the history of any connection, the next login fetches again
+                syncedWith = null;
                 event.getCallback().call(historyData.toString());
             }
         }
@@ -290,9 +445,26 @@ public class Main {
         public void onEvent(Event event) {
             if ("send-message".equals(event.getType())) {
                 // 处理事件
-                logger.info("send-message, data: " + event.getData().toString());
-                sendRequestToServer("sendMsg", new JSONObject(event.getData().toString()));
-                addHistoryMsg(Render.user, new JSONObject(event.getData().toString()).get("message").toString(), LocalTime.now().toString(), ChatPage.messageCount);
+                ChatCodec codec = ChatCodec.local();
+                String message;
+                if (codec.read(event.getData().toString()) != ChatCodec.OTHER && codec.message().message != null) {
+                    message = codec.message().message;
+                } else {
+                    message = new JSONObject(event.getData().toString()).get("message").toString();
+                }
+                long ack = -1;
+                if (Connection.acking) {
+                    // Piggyback the ack
+                    ackLock.lock();
+                    try {
+                        ack = lastSeenSeq;
+                        unacked = 0;
+                    } finally {
+                        ackLock.unlock();
+                    }
+                }
+                sendMsgToServer(message, ack);
+                addHistoryMsg(Render.user, message, LocalTime.now().toString(), ChatPage.messageCount);
             }
         }
     }
@@ -312,10 +484,12 @@ public class Main {
         private static void shutdownConnection() throws IOException {
             if (Connection.socket != null) {
                 sendRequestToServer("close", new JSONObject());
+                // Before the reading thread sees the end of the stream, it is not a lost connection
+                Connection.connected = false;
                 Connection.socket.shutdownInput();
                 Connection.socket.shutdownOutput();
                 Connection.socket.close();
-                Connection.connected = false;
+                Connection.endCompression();
                 logger.info("socket closed");
             }
         }
@@ -335,10 +509,14 @@ public class Main {
                 try {
                     logger.info("connecting");
                     Socket socket = new Socket(address, Integer.parseInt(port));
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                    MessageReader in = new MessageReader(socket.getInputStream());
                     try {
+                        // Contexts of the last connection do not carry over
+                        Connection.endCompression();
                         Main.Connection.setConnection(socket, out, in, address, port);
+                        // Text until the server agrees to binary
+                        Connection.binary = false;
                         Connection.connected = true;
                         logger.info("connected");
                     } catch (Exception e) {
@@ -355,9 +533,15 @@ public class Main {
                         @Override
                         public void onEvent(Event event1) {
                             if (event1.getType().equals("login-success") && event1.getData().toString().equals("success")) {
-                                clearHistoryData();
-                                Render.setUser(user);
-                                Render.getHistoryData();
+                                if (Connection.deltaSync) {
+                                    // Keep the local copy, the missed messages follow
+                                    Render.setUser(user);
+                                    Render.loadHistoryData(historyData);
+                                } else {
+                                    clearHistoryData();
+                                    Render.setUser(user);
+                                    Render.getHistoryData();
+                                }
                                 event.getCallback().call("success");
                             } else {
                                 event.getCallback().call(event1.getData().toString());
@@ -365,7 +549,27 @@ public class Main {
                             dispatcher.unregisterListener("login-success", this);
                         }
                     });
-                    sendRequestToServer("login", new JSONObject().put("user", user));
+                    JSONObject request = new JSONObject().put("user", user).put("ack", true)
+                            .put("protocols", new JSONArray().put(BinaryProtocol.NAME));
+                    if (OFFER_COMPRESSION) {
+                        request.put("compression", new JSONArray().put(Compression.NAME));
+                    }
+                    String server = address + ":" + port + "/" + user;
+                    ackLock.lock();
+                    try {
+                        if (!server.equals(syncedWith)) {
+                            lastSeenSeq = -1;
+                            seenAhead.clear();
+                            syncedWith = server;
+                        }
+                        if (lastSeenSeq >= 0) {
+                            request.put("lastSeenSeq", lastSeenSeq);
+                        }
+                        unacked = 0;
+                    } finally {
+                        ackLock.unlock();
+                    }
+                    sendRequestToServer("login", request);
 
                 } catch (Exception e) {
                     logger.error("failed to login: " + e.getMessage());
@@ -379,7 +583,8 @@ public class Main {
         @Override
         public void onEvent(Event event) {
             if ("server-request".equals(event.getType())) {
-                JSONObject json = new JSONObject(event.getData().toString());
+                JSONObject json = event.getData() instanceof JSONObject message
+                        ? message : new JSONObject(event.getData().toString());
                 String api;
                 try {
                     api = json.get("api").toString();
@@ -390,13 +595,34 @@ public class Main {
                 }
                 switch (api) {
                     case "receiveMsg": {
-                        JSONObject data = new JSONObject(json.get("data").toString());
-                        logger.info(data.toString());
-                        Render.receiveMsg(data.get("message").toString(), data.get("user").toString(), data.get("time").toString(), Integer.parseInt(data.get("count").toString()));
-                        addHistoryMsg(data.get("user").toString(), data.get("message").toString(), data.get("time").toString(), Integer.parseInt(data.get("count").toString()));
+                        // Only if the codec could not read it
+                        receiveMsgs(new ArrayList<>(List.of(ChatMessage.fromJSON(json.getJSONObject("data")))));
                         break;
                     }
                     case "loginResult": {
+                        Connection.deltaSync = json.optBoolean("delta", false);
+                        Connection.acking = json.optBoolean("ack", false);
+                        Connection.binary = BinaryProtocol.NAME.equals(json.optString("protocol"));
+                        if (Compression.NAME.equals(json.optString("compression"))) {
+                            Connection.sendLock.lock();
+                            try {
+                                if (Connection.deflate == null) {
+                                    Connection.deflate = new Compression.Deflate();
+                                }
+                            } finally {
+                                Connection.sendLock.unlock();
+                            }
+                        }
+                        if (!Connection.deltaSync && json.has("seq")) {
+                            // History up to here is fetched, live messages follow
+                            ackLock.lock();
+                            try {
+                                lastSeenSeq = json.getLong("seq");
+                                seenAhead.clear();
+                            } finally {
+                                ackLock.unlock();
+                            }
+                        }
                         if (json.get("status").equals("success")) {
                             dispatcher.dispatchEvent(new Event("login-success", "success"));
                         } else {
@@ -414,9 +640,9 @@ public class Main {
                         break;
                     }
                     case "serverInfo": {
+                        // Pushed by the server whenever the members of the room change
                         if (json.get("status").equals("success")) {
-                            JSONObject data = json.getJSONObject("data");
-                            dispatcher.dispatchEvent(new Event("server-info", data));
+                            Render.updateHeader(json.getJSONObject("data"));
                         } else {
                             logger.error("failed to get server info: " + json.get("status"));
                         }
@@ -426,6 +652,14 @@ public class Main {
                         Render.leaveRoom();
                         break;
                     }
+                    case "ping": {
+                        // Heartbeat from server, answer so it keeps the connection
+                        sendRequestToServer("pong", new JSONObject());
+                        break;
+                    }
+                    case "pong": {
+                        break;
+                    }
                     default: {
                         logger.error("Unknown api: " + json);
                         break;
@@ -439,20 +673,19 @@ public class Main {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             if (Render.isServerMode()) {
                 CreatingServer.HistoryData.saveHistoryToFile();
-            } else {
-                CreatingServer.HistoryData.saveHistoryToFile(historyData);
             }
+            CreatingServer.HistoryData.saveHistoryToFile(historyData);
         }));
         historyData = CreatingServer.HistoryData.loadHistoryFromFile();
         dispatcher.registerListener("load-local-chat-record", new loadLocalChatRecord());
         dispatcher.registerListener("leave-room", new leaveRoom());
-        dispatcher.registerListener("get-server-info", new getServerInfo());
         dispatcher.registerListener("get-history-data", new getHistoryData());
         dispatcher.registerListener("on-close", new onClose());
         dispatcher.registerListener("send-message", new sendMessage());
         dispatcher.registerListener("server-request", new handleServerRequest());
         dispatcher.registerListener("login", new login());
         dispatcher.registerListener("create-server", new createServer());
+        dispatcher.registerListener("server-close", event -> CreatingServer.onClose());
         // Initialize the renderer
         logger.info("Render started");
         Render.setIPC(ipc);
@@ -0,0 +1,172 @@
+package com.zyz;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Blocking reader of text lines and binary frames (see BinaryProtocol) with its own reused buffer.
+ * A message is handed out as a range of the buffer, valid until the next call, and read with
+ * the codec of the reader, so a connection reads without allocating per message.
+ */
+final class MessageReader {
+    private final InputStream in;
+    private final ChatCodec codec = new ChatCodec();
+    private byte[] buf = new byte[8 * 1024];
+    private ByteBuffer view = ByteBuffer.wrap(buf);
+    private int pos;  // Unread bytes are [pos, limit)
+    private int limit;
+    private int start;  // Last message is [start, end)
+    private int end;
+    private long bytesRead;  // Everything read from the stream
+
+    /**
+     * Create a reader
+     *
+     * @param in unbuffered stream, the reader buffers itself
+     */
+    MessageReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the next message, empty lines are skipped
+     *
+     * @return false at the end of the stream
+     * @throws IOException read failed, message longer than MAX_FRAME_LENGTH or malformed frame
+     */
+    boolean next() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                return false;
+            }
+            if (BinaryProtocol.isOpcode(buf[pos])) {
+                int frameEnd;
+                while ((frameEnd = BinaryProtocol.frameEnd(view, pos)) < 0) {
+                    if (!fill()) {
+                        throw new EOFException("Frame cut off");
+                    }
+                }
+                start = pos;
+                end = frameEnd;
+                pos = frameEnd;
+                return true;
+            }
+            int scanned = 0;  // Bytes after pos known not to be a line separator
+            int lineEnd;
+            while (true) {
+                int i = pos + scanned;
+                while (i < limit && buf[i] != '\n') {
+                    i++;
+                }
+                if (i < limit) {
+                    lineEnd = i;
+                    break;
+                }
+                scanned = i - pos;
+                if (!fill()) {
+                    // Last line without a separator
+                    lineEnd = limit;
+                    break;
+                }
+            }
+            start = pos;
+            end = lineEnd > pos && buf[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            pos = Math.min(lineEnd + 1, limit);
+            if (end > start) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Whether the next message is already buffered whole, so next() returns it without reading the stream
+     *
+     * @return true if a whole message is buffered
+     */
+    boolean hasBuffered() {
+        if (pos == limit) {
+            return false;
+        }
+        if (BinaryProtocol.isOpcode(buf[pos])) {
+            try {
+                return BinaryProtocol.frameEnd(view, pos) >= 0;
+            } catch (IOException e) {
+                return true;  // next() fails at once
+            }
+        }
+        for (int i = pos; i < limit; i++) {
+            if (buf[i] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move the unread bytes to the front and read more, grow the buffer if it is full
+     *
+     * @return false at the end of the stream
+     * @throws IOException read failed or message too long
+     */
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+            view.limit(limit);
+        }
+        if (limit == buf.length) {
+            if (buf.length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                throw new IOException("Message too long");
+            }
+            buf = Arrays.copyOf(buf, buf.length * 2);
+            view = ByteBuffer.wrap(buf);
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            return false;
+        }
+        limit += n;
+        bytesRead += n;
+        view.limit(limit);
+        return true;
+    }
+
+    /**
+     * Buffer holding the last message
+     *
+     * @return buffer, not to be moved
+     */
+    ByteBuffer buffer() {
+        return view;
+    }
+
+    int start() {
+        return start;
+    }
+
+    int end() {
+        return end;
+    }
+
+    /**
+     * Bytes read from the stream so far, including separators and what is still buffered
+     *
+     * @return byte count
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Codec to read the messages of this reader with
+     *
+     * @return codec
+     */
+    ChatCodec codec() {
+        return codec;
+    }
+}
@@ -0,0 +1,259 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the server, always on: counters are LongAdders and latencies go to Histograms, so recording
+ * never takes a lock. Gauges such as sessions and queue depths are read when a snapshot is taken.
+ * Published as the MBean com.zyz:type=ChatServer and through the getServerMetrics api.
+ */
+final class Metrics {
+    private static final Logger logger = LogManager.getLogger(Metrics.class);
+    private static final String OBJECT_NAME = "com.zyz:type=ChatServer";
+    private static final int MAX_APIS = 64;  // Unknown api names of clients all count as "other"
+    private static final ConcurrentHashMap<String, Histogram> requests = new ConcurrentHashMap<>();
+    static final LongAdder bytesIn = new LongAdder();  // Read from clients and other nodes
+    static final LongAdder bytesOut = new LongAdder();  // Written to them
+    static final Histogram fanOut = new Histogram();  // Delivering a batch of broadcasts to one shard
+    static final Histogram fanOutDelay = new Histogram();  // From broadcast to delivery of its batch
+    static final Histogram historyAppend = new Histogram();  // Queueing a record in a history log
+    static final Histogram historyWrite = new Histogram();  // Writing a group of records to a segment
+    private static final long started = System.currentTimeMillis();
+
+    private Metrics() {
+    }
+
+    /**
+     * Record the handling time of a request
+     *
+     * @param api   api of the request
+     * @param nanos handling time
+     */
+    static void request(String api, long nanos) {
+        Histogram histogram = requests.get(api);
+        if (histogram == null) {
+            histogram = requests.computeIfAbsent(requests.size() < MAX_APIS ? api : "other",
+                    name -> new Histogram());
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Everything at this moment, latencies in nanoseconds
+     *
+     * @return metrics
+     */
+    static JSONObject snapshot() {
+        JSONObject data = new JSONObject();
+        data.put("uptime", System.currentTimeMillis() - started);
+        data.put("sessions", CreatingServer.sessions.getConnectionNumber());
+        data.put("users", CreatingServer.sessions.getUserNumber());
+        RoomRegistry registry = CreatingServer.rooms;
+        data.put("rooms", registry == null ? 0 : registry.size());
+        long queued = 0;
+        int maxQueue = 0;
+        long dropped = 0;
+        for (Session session : CreatingServer.sessions.connections()) {
+            int depth = session.getQueueDepth();
+            queued += depth;
+            maxQueue = Math.max(maxQueue, depth);
+            dropped += session.getDroppedCount();
+        }
+        data.put("queuedFrames", queued);
+        data.put("maxQueueDepth", maxQueue);
+        data.put("droppedFrames", dropped);
+        data.put("throttled", RateLimiter.getTotalThrottledCount());
+        data.put("bytesIn", bytesIn.sum());
+        data.put("bytesOut", bytesOut.sum());
+        JSONObject apis = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(requests).entrySet()) {
+            apis.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        data.put("requests", apis);
+        data.put("fanOut", fanOut.snapshot());
+        data.put("fanOutDelay", fanOutDelay.snapshot());
+        data.put("historyAppend", historyAppend.snapshot());
+        data.put("historyWrite", historyWrite.snapshot());
+        JSONObject cache = new JSONObject();
+        cache.put("hits", HistoryCache.hits.sum());
+        cache.put("misses", HistoryCache.misses.sum());
+        cache.put("evictions", HistoryCache.evictions.sum());
+        cache.put("records", HistoryCache.cachedRecords.sum());
+        cache.put("bytes", HistoryCache.cachedBytes.sum());
+        data.put("historyCache", cache);
+        data.put("memory", memory());
+        return data;
+    }
+
+    /**
+     * Memory and threads of the process, to compare what a connection costs in each server mode
+     *
+     * @return heapUsed, heapAfterGc (live heap at the end of the last collection of each pool), nonHeapUsed,
+     * rss (resident bytes, -1 where /proc is missing) and threads (platform threads, virtual ones not counted)
+     */
+    static JSONObject memory() {
+        JSONObject memory = new JSONObject();
+        long afterGc = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage collected = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && collected != null) {
+                afterGc += collected.getUsed();
+            }
+        }
+        memory.put("heapUsed", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        memory.put("heapAfterGc", afterGc);
+        memory.put("nonHeapUsed", ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage().getUsed());
+        memory.put("rss", residentBytes());
+        memory.put("threads", ManagementFactory.getThreadMXBean().getThreadCount());
+        return memory;
+    }
+
+    private static long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    // VmRSS:    123456 kB
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+    /**
+     * Publish the metrics on the platform MBean server, replaces an earlier registration
+     */
+    static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            try {
+                server.registerMBean(new MBean(), name);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(name);
+                server.registerMBean(new MBean(), name);
+            }
+        } catch (JMException e) {
+            logger.error("Register metrics MBean failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the MBean when the server closes
+     */
+    static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.error("Unregister metrics MBean failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Attributes of the MBean, read when asked
+     */
+    private static class MBean implements ServerMetricsMXBean {
+        @Override
+        public int getConnectedSessions() {
+            return CreatingServer.sessions.getConnectionNumber();
+        }
+
+        @Override
+        public int getLoggedInUsers() {
+            return CreatingServer.sessions.getUserNumber();
+        }
+
+        @Override
+        public int getRooms() {
+            RoomRegistry registry = CreatingServer.rooms;
+            return registry == null ? 0 : registry.size();
+        }
+
+        @Override
+        public long getQueuedFrames() {
+            long queued = 0;
+            for (Session session : CreatingServer.sessions.connections()) {
+                queued += session.getQueueDepth();
+            }
+            return queued;
+        }
+
+        @Override
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        @Override
+        public long getThrottled() {
+            return RateLimiter.getTotalThrottledCount();
+        }
+
+        @Override
+        public long getHistoryCacheHits() {
+            return HistoryCache.hits.sum();
+        }
+
+        @Override
+        public long getHistoryCacheMisses() {
+            return HistoryCache.misses.sum();
+        }
+
+        @Override
+        public long getHistoryCacheEvictions() {
+            return HistoryCache.evictions.sum();
+        }
+
+        @Override
+        public long getHistoryCacheBytes() {
+            return HistoryCache.cachedBytes.sum();
+        }
+
+        @Override
+        public Map<String, Long> getRequestCounts() {
+            Map<String, Long> counts = new TreeMap<>();
+            requests.forEach((api, histogram) -> counts.put(api, histogram.getCount()));
+            return counts;
+        }
+
+        @Override
+        public Map<String, Long> getRequestP99Nanos() {
+            Map<String, Long> p99 = new TreeMap<>();
+            requests.forEach((api, histogram) -> p99.put(api, histogram.percentile(0.99)));
+            return p99;
+        }
+
+        @Override
+        public String getSnapshot() {
+            return snapshot().toString();
+        }
+    }
+}
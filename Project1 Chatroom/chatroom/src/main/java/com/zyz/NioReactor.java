@@ -0,0 +1,517 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selector based reactor, serves the chat protocol on non-blocking channels.
+ * One acceptor (the calling thread) hands connections round-robin to a few selector loops.
+ * A client over its rate limits is paused: its channel is not read until it is back under them.
+ */
+class NioReactor {
+    private static final Logger logger = LogManager.getLogger(NioReactor.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;  // Shared by all connections of one loop
+    // A longer line or frame closes the connection, a relay frame carries a whole frame and its header
+    private static final int MAX_LINE_LENGTH = BinaryProtocol.MAX_FRAME_LENGTH + 2 * BinaryProtocol.RELAY_OVERHEAD;
+    private static final int WRITE_BATCH = 64;  // Most queued frames handed to one gathering write
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final SelectorLoop[] loops;
+    private volatile boolean running = true;
+
+    /**
+     * Create a reactor bound to the port
+     *
+     * @param port      port
+     * @param loopCount number of selector loops
+     * @throws IOException port occupied or other error
+     */
+    NioReactor(int port, int loopCount) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        loops = new SelectorLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new SelectorLoop(i);
+            loops[i].start();
+        }
+        logger.info("Reactor listening on port " + port + " with " + loopCount + " selector loops");
+    }
+
+    /**
+     * Default number of selector loops, a few are enough for thousands of connections
+     *
+     * @return loop count
+     */
+    static int defaultLoopCount() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Accept connections until shutdown, blocks the calling thread
+     */
+    void run() {
+        int next = 0;
+        while (running) {
+            try {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid() || !key.isAcceptable()) {
+                        continue;
+                    }
+                    SocketChannel channel;
+                    while ((channel = serverChannel.accept()) != null) {
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        loops[next].register(channel);
+                        next = (next + 1) % loops.length;
+                    }
+                }
+            } catch (ClosedSelectorException | ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                logger.error("Accept failed: " + e.getMessage());
+                try {
+                    // Out of file descriptors or similar, back off instead of spinning
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+        }
+        logger.info("Reactor acceptor stopped");
+    }
+
+    /**
+     * Stop accepting, close every connection and stop the selector loops
+     */
+    void shutdown() {
+        running = false;
+        try {
+            acceptSelector.close();
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.error("Error closing server channel", e);
+        }
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * One selector thread serving many connections
+     */
+    private static class SelectorLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        // Connections not read until their time, only touched by the loop thread
+        private final PriorityQueue<Connection> paused =
+                new PriorityQueue<>(Comparator.comparingLong(connection -> connection.resumeAt));
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ChatCodec codec = new ChatCodec();  // Reads requests straight out of the buffers
+        private volatile boolean running = true;
+
+        SelectorLoop(int index) throws IOException {
+            super("reactor-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * Hand over an accepted channel, registered on the loop thread
+         *
+         * @param channel channel
+         */
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Ask the loop thread to flush the connection
+         *
+         * @param connection connection
+         */
+        void requestWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(pauseTimeout());
+                    registerPending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    }
+                    flushPending();
+                    resumeDue();
+                } catch (IOException e) {
+                    logger.error("Selector loop error: " + e.getMessage());
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection connection) {
+                    connection.session.close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.error("Error closing selector", e);
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    CreatingServer.clientConnected(connection.session);
+                    logger.info("Incoming client connected.");
+                } catch (IOException e) {
+                    logger.error("Register client failed: " + e.getMessage());
+                }
+            }
+        }
+
+        private void flushPending() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                flush(connection);
+            }
+        }
+
+        /**
+         * Milliseconds until the first paused connection is due
+         *
+         * @return select timeout, 0 to wait for events only
+         */
+        private long pauseTimeout() {
+            Connection first = paused.peek();
+            if (first == null) {
+                return 0;
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(first.resumeAt - System.nanoTime() + 999_999));
+        }
+
+        /**
+         * Stop reading a connection for a while, what it sent meanwhile stays in the socket buffers
+         *
+         * @param connection connection
+         * @param nanos      pause
+         */
+        private void pause(Connection connection, long nanos) {
+            logger.debug("Throttle client {} for {} ms", connection.session.getUsername(), nanos / 1_000_000);
+            connection.resumeAt = System.nanoTime() + nanos;
+            connection.paused = true;
+            connection.updateInterest();
+            paused.add(connection);
+        }
+
+        /**
+         * Read the paused connections that are due again, starting with what was read before the pause
+         */
+        private void resumeDue() {
+            long now = System.nanoTime();
+            Connection connection;
+            while ((connection = paused.peek()) != null && connection.resumeAt - now <= 0) {
+                paused.poll();
+                connection.paused = false;
+                if (!connection.channel.isOpen()) {
+                    continue;
+                }
+                try {
+                    connection.updateInterest();
+                } catch (CancelledKeyException e) {
+                    connection.session.close();
+                    continue;
+                }
+                if (connection.partial != null) {
+                    consume(connection, connection.partial);
+                }
+            }
+        }
+
+        /**
+         * Read what is available and dispatch every complete line
+         *
+         * @param connection connection
+         */
+        private void read(Connection connection) {
+            readBuffer.clear();
+            int n;
+            try {
+                n = connection.channel.read(readBuffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                connection.session.close();
+                return;
+            }
+            connection.session.touchRead();
+            Metrics.bytesIn.add(n);
+            readBuffer.flip();
+            ByteBuffer source = readBuffer;
+            if (connection.partial != null) {
+                // Continue the incomplete line or frame from the last read
+                source = connection.appendPartial(readBuffer);
+                if (source == null) {
+                    logger.error("Line too long, client dropped");
+                    connection.session.close();
+                    return;
+                }
+            }
+            consume(connection, source);
+        }
+
+        /**
+         * Dispatch every complete line or frame, until the client goes over its rate limits
+         *
+         * @param connection connection
+         * @param source     buffer positioned at the first unread byte
+         */
+        private void consume(Connection connection, ByteBuffer source) {
+            int start = source.position();
+            int i = start;
+            while (i < source.limit()) {
+                long pause = 0;
+                if (i == start && BinaryProtocol.isOpcode(source.get(i))) {
+                    // A binary frame, see BinaryProtocol
+                    int end;
+                    try {
+                        end = BinaryProtocol.frameEnd(source, start);
+                    } catch (IOException e) {
+                        logger.error("Bad frame, client dropped: " + e.getMessage());
+                        connection.session.close();
+                        return;
+                    }
+                    if (end < 0) {
+                        break;
+                    }
+                    pause = dispatch(connection, source, start, end);
+                    start = end;
+                    i = end;
+                } else if (source.get(i) != '\n') {
+                    i++;
+                    continue;
+                } else {
+                    int end = i;
+                    if (end > start && source.get(end - 1) == '\r') {
+                        end--;
+                    }
+                    if (end > start) {
+                        pause = dispatch(connection, source, start, end);
+                    }
+                    start = i + 1;
+                    i = start;
+                }
+                if (!connection.channel.isOpen()) {
+                    return;
+                }
+                if (pause > 0) {
+                    pause(connection, pause);
+                    break;
+                }
+            }
+            source.position(start);
+            connection.keepPartial(source);
+        }
+
+        /**
+         * Handle one request and take it from the rate limits of the client
+         *
+         * @param connection connection
+         * @param source     buffer holding the request
+         * @param start      first byte
+         * @param end        end of the request
+         * @return nanoseconds to pause the connection, 0 to go on
+         */
+        private long dispatch(Connection connection, ByteBuffer source, int start, int end) {
+            try {
+                CreatingServer.ClientHandler.handlingClientRequest(source, start, end, codec, connection.session);
+            } catch (IOException e) {
+                logger.error("Bad frame, client dropped: " + e.getMessage());
+                connection.session.close();
+            } catch (RuntimeException e) {
+                logger.error("Client request error: " + e.getMessage());
+            }
+            return connection.session.getLimiter().acquire(end - start);
+        }
+
+        /**
+         * Write queued frames of the session until its queue is empty or the socket buffer is full.
+         * Frames queued together, a broadcast batch for example, go out in one gathering write.
+         *
+         * @param connection connection
+         */
+        private void flush(Connection connection) {
+            if (!connection.channel.isOpen()) {
+                return;
+            }
+            ByteBuffer[] writing = connection.writing;
+            try {
+                while (true) {
+                    if (connection.writingFrom == connection.writingTo) {
+                        int count = 0;
+                        byte[] frame;
+                        while (count < WRITE_BATCH && (frame = connection.session.poll()) != null) {
+                            writing[count++] = ByteBuffer.wrap(frame);
+                        }
+                        if (count == 0) {
+                            break;
+                        }
+                        connection.writingFrom = 0;
+                        connection.writingTo = count;
+                    }
+                    Metrics.bytesOut.add(connection.channel.write(writing, connection.writingFrom,
+                            connection.writingTo - connection.writingFrom));
+                    while (connection.writingFrom < connection.writingTo
+                            && !writing[connection.writingFrom].hasRemaining()) {
+                        writing[connection.writingFrom++] = null;
+                    }
+                    if (connection.writingFrom < connection.writingTo) {
+                        // Socket buffer full, wait for OP_WRITE
+                        connection.updateInterest();
+                        return;
+                    }
+                }
+                connection.updateInterest();
+            } catch (IOException | CancelledKeyException e) {
+                connection.session.close();
+                return;
+            }
+            connection.session.writeDone();
+        }
+    }
+
+    /**
+     * A client connection with its own read remainder, its outbound queue is owned by the session
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final Session session;
+        private SelectionKey key;
+        private ByteBuffer partial;  // Incomplete line or frame, only allocated when a read ends mid-message
+        // Frames being written, [writingFrom, writingTo) not fully written yet, only touched by the loop thread
+        private final ByteBuffer[] writing = new ByteBuffer[WRITE_BATCH];
+        private int writingFrom;
+        private int writingTo;
+        private boolean paused;  // Over its rate limits, not read until resumeAt
+        private long resumeAt;
+
+        Connection(SelectorLoop loop, SocketChannel channel) {
+            this.channel = channel;
+            this.session = new Session(this::closeChannel, s -> loop.requestWrite(this));
+        }
+
+        /**
+         * Append newly read bytes to the incomplete line
+         *
+         * @param buffer newly read bytes
+         * @return buffer holding the whole remainder, null if the line is too long
+         */
+        ByteBuffer appendPartial(ByteBuffer buffer) {
+            int needed = partial.remaining() + buffer.remaining();
+            if (needed > MAX_LINE_LENGTH) {
+                return null;
+            }
+            if (partial.capacity() - partial.limit() < buffer.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, partial.capacity() * 2));
+                grown.put(partial);
+                grown.flip();
+                partial = grown;
+            }
+            int position = partial.position();
+            partial.position(partial.limit());
+            partial.limit(partial.limit() + buffer.remaining());
+            partial.put(buffer);
+            partial.position(position);
+            return partial;
+        }
+
+        /**
+         * Read unless paused, write while frames are left to write
+         */
+        void updateInterest() {
+            key.interestOps((paused ? 0 : SelectionKey.OP_READ)
+                    | (writingFrom < writingTo ? SelectionKey.OP_WRITE : 0));
+        }
+
+        /**
+         * Keep the unread remainder for the next read, or drop it if empty.
+         * A paused connection may keep several requests, they are handled when it resumes.
+         *
+         * @param source buffer positioned at the remainder
+         */
+        void keepPartial(ByteBuffer source) {
+            if (!source.hasRemaining()) {
+                partial = null;
+                return;
+            }
+            if (!paused && source.remaining() > MAX_LINE_LENGTH) {
+                logger.error("Line too long, client dropped");
+                session.close();
+                return;
+            }
+            if (source == partial) {
+                partial.compact();
+                partial.flip();
+                return;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(Math.max(source.remaining() * 2, 256));
+            copy.put(source);
+            copy.flip();
+            partial = copy;
+        }
+
+        /**
+         * Close the channel, called once by the session
+         *
+         * @throws IOException close failed
+         */
+        void closeChannel() throws IOException {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        }
+    }
+}
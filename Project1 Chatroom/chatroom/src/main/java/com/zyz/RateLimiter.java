@@ -0,0 +1,177 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets limiting the requests of one client, one bucket for requests and one for bytes.
+ * A request always goes through and may leave a bucket in debt, the reader then pauses reading the client
+ * until the debt is paid back, so a fast client is held back by TCP instead of by a growing queue.
+ * Only the thread reading the client uses the buckets. The limits are switched by whichever thread moves
+ * the client to another room, the reader takes them up with its next request.
+ */
+final class RateLimiter {
+    private static final Logger logger = LogManager.getLogger(RateLimiter.class);
+    private static final LongAdder throttled = new LongAdder();  // Pauses of every client
+    private volatile Limits limits = Limits.DEFAULT;  // Set by any thread
+    private Limits applied = Limits.DEFAULT;  // Limits the buckets were last clamped to, by the reader
+    private double messages = Limits.DEFAULT.messageBurst;
+    private double bytes = Limits.DEFAULT.byteBurst;
+    private long last = System.nanoTime();
+    private long count;  // Pauses of this client
+
+    /**
+     * Rates of the clients in a room, from system properties, chatroom.rate.* for every room and
+     * chatroom.room.&lt;name&gt;.rate.* for one room. A rate of 0 or less is not limited.
+     */
+    static final class Limits {
+        // Requests per second and burst, system properties chatroom.rate.messages and chatroom.rate.messages.burst
+        // Bytes per second and burst, system properties chatroom.rate.bytes and chatroom.rate.bytes.burst
+        static final Limits DEFAULT = new Limits("default",
+                doubleProperty("chatroom.rate.messages", 20),
+                doubleProperty("chatroom.rate.messages.burst", 40),
+                doubleProperty("chatroom.rate.bytes", 256 * 1024),
+                doubleProperty("chatroom.rate.bytes.burst", BinaryProtocol.MAX_FRAME_LENGTH));
+        // Links between nodes, their clients are limited by the node they are connected to
+        static final Limits NONE = new Limits("none", 0, 0, 0, 0);
+        private static final ConcurrentHashMap<String, Limits> byRoom = new ConcurrentHashMap<>();
+        final String name;
+        final double messageRate;
+        final double messageBurst;
+        final double byteRate;
+        final double byteBurst;
+        private final LongAdder throttled = new LongAdder();
+
+        private Limits(String name, double messageRate, double messageBurst, double byteRate, double byteBurst) {
+            this.name = name;
+            this.messageRate = messageRate;
+            this.messageBurst = Math.max(1, messageBurst);
+            this.byteRate = byteRate;
+            this.byteBurst = Math.max(1, byteBurst);
+        }
+
+        /**
+         * Limits of a room, read once per room that has its own, only those are kept
+         *
+         * @param room room name
+         * @return limits, the defaults if the room has none of its own
+         */
+        static Limits forRoom(String room) {
+            Limits known = byRoom.get(room);
+            if (known != null) {
+                return known;
+            }
+            String prefix = "chatroom.room." + room + ".rate.";
+            if (System.getProperties().stringPropertyNames().stream().noneMatch(p -> p.startsWith(prefix))) {
+                return DEFAULT;
+            }
+            return byRoom.computeIfAbsent(room, name -> {
+                Limits limits = new Limits(name,
+                        doubleProperty(prefix + "messages", DEFAULT.messageRate),
+                        doubleProperty(prefix + "messages.burst", DEFAULT.messageBurst),
+                        doubleProperty(prefix + "bytes", DEFAULT.byteRate),
+                        doubleProperty(prefix + "bytes.burst", DEFAULT.byteBurst));
+                logger.info("Rate limits of room " + name + ": " + limits);
+                return limits;
+            });
+        }
+
+        /**
+         * Number of times clients under these limits were paused
+         *
+         * @return throttle count
+         */
+        long getThrottledCount() {
+            return throttled.sum();
+        }
+
+        @Override
+        public String toString() {
+            return messageRate + " requests/s (burst " + messageBurst + "), "
+                    + byteRate + " bytes/s (burst " + byteBurst + ")";
+        }
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Invalid " + name + ": " + value + ", use " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Number of times any client was paused
+     *
+     * @return throttle count
+     */
+    static long getTotalThrottledCount() {
+        return throttled.sum();
+    }
+
+    /**
+     * Switch to the limits of another room, from any thread. The buckets keep what they hold up to the new
+     * bursts, clamped by the reader with the next request.
+     *
+     * @param limits limits
+     */
+    void setLimits(Limits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Take the tokens of one request
+     *
+     * @param length bytes of the request as read
+     * @return nanoseconds to pause reading before the next request, 0 to go on
+     */
+    long acquire(int length) {
+        Limits current = limits;
+        if (current != applied) {
+            applied = current;
+            messages = Math.min(messages, current.messageBurst);
+            bytes = Math.min(bytes, current.byteBurst);
+        }
+        long now = System.nanoTime();
+        double elapsed = (now - last) / (double) TimeUnit.SECONDS.toNanos(1);
+        last = now;
+        double wait = 0;
+        if (current.messageRate > 0) {
+            messages = Math.min(current.messageBurst, messages + elapsed * current.messageRate) - 1;
+            if (messages < 0) {
+                wait = -messages / current.messageRate;
+            }
+        }
+        if (current.byteRate > 0) {
+            bytes = Math.min(current.byteBurst, bytes + elapsed * current.byteRate) - length;
+            if (bytes < 0) {
+                wait = Math.max(wait, -bytes / current.byteRate);
+            }
+        }
+        if (wait <= 0) {
+            return 0;
+        }
+        count++;
+        current.throttled.increment();
+        throttled.increment();
+        return (long) (wait * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Number of times this client was paused
+     *
+     * @return throttle count
+     */
+    long getThrottledCount() {
+        return count;
+    }
+}
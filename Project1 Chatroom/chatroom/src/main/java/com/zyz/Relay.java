@@ -0,0 +1,496 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Relay of client sessions between the nodes of a cluster, see Cluster.
+ * <p>
+ * A node relays a client whose room another node serves over one persistent link to that node, shared by
+ * all such clients. Every message on the link is a relay frame (see BinaryProtocol) carrying the id of the
+ * session and the text line or frame as the client sent it or is to receive it, an empty one ends the session.
+ * The node serving the room runs a session per relayed client and handles its requests like any other,
+ * its frames are already encoded in the protocol of the client, the relaying node only copies them.
+ * Compression stays between the client and the node it is connected to, the link carries plain messages.
+ */
+final class Relay {
+    private static final Logger logger = LogManager.getLogger(Relay.class);
+    private static final byte[] END = new byte[0];
+
+    private Relay() {
+    }
+
+    /**
+     * Whether a request of a relayed client goes to the node serving its room.
+     * Logins and room changes are routed by the node the client is connected to, rooms are listed there.
+     *
+     * @param api api of the request
+     * @return true to relay the request
+     */
+    static boolean isRelayed(String api) {
+        switch (api) {
+            case "login":
+            case "joinRoom":
+            case "leaveRoom":
+            case "listRooms":
+            case "nodeLink":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Link from this node to the node serving the rooms of the clients relayed over it
+     */
+    static final class Outbound implements Runnable {
+        private final Cluster cluster;
+        private final String node;
+        private final Socket socket;
+        private final MessageReader in;
+        private final OutputStream out;
+        private final ExecutorService writer;  // Drains the queue of the link
+        private final Session link;  // Queue of what is sent over the link
+        private final ConcurrentHashMap<Long, Relayed> relayed = new ConcurrentHashMap<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Outbound(Cluster cluster, String node, Socket socket) throws IOException {
+            this.cluster = cluster;
+            this.node = node;
+            this.socket = socket;
+            this.in = new MessageReader(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.writer = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "relay-writer-" + node);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.link = new Session(socket, s -> requestWrite(), Cluster.LINK_CAPACITY,
+                    Session.SlowConsumerPolicy.DISCONNECT);
+        }
+
+        /**
+         * Connect to a node and start reading what it sends back
+         *
+         * @param cluster cluster of this node
+         * @param node    node name, host:port of its client port
+         * @return link
+         * @throws IOException the node can not be reached
+         */
+        static Outbound connect(Cluster cluster, String node) throws IOException {
+            int colon = node.lastIndexOf(':');
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(node.substring(0, colon),
+                        Integer.parseInt(node.substring(colon + 1))), Cluster.CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                throw new IOException("Connect to node " + node + " failed: " + e.getMessage());
+            }
+            Outbound link = new Outbound(cluster, node, socket);
+            link.link.send(new JSONObject().put("api", "nodeLink")
+                    .put("data", new JSONObject().put("node", cluster.getSelf()).put("secret", cluster.getSecret())),
+                    null);
+            Thread reader = new Thread(link, "relay-" + node);
+            reader.setDaemon(true);
+            reader.start();
+            logger.info("Linked to node " + node);
+            return link;
+        }
+
+        String getNode() {
+            return node;
+        }
+
+        boolean isClosed() {
+            return closed.get();
+        }
+
+        /**
+         * Number of clients relayed over the link
+         *
+         * @return session count
+         */
+        int getSessionCount() {
+            return relayed.size();
+        }
+
+        /**
+         * Relay a client to the node serving its room, the login is sent in its name.
+         * Its frames arrive encoded by that node from now on and are written as they are.
+         *
+         * @param client    session of the client
+         * @param login     login request for the room, without compression
+         * @param binary    the client speaks the binary protocol
+         * @param acks      the client acks the messages it receives
+         * @param compress  compress for the client once logged in
+         * @param resultApi api the login result is answered to the client with
+         */
+        void attach(Session client, JSONObject login, boolean binary, boolean acks, boolean compress,
+                    String resultApi) {
+            relayed.put(client.getId(), new Relayed(client, binary, acks, compress, resultApi));
+            client.setBinary(false);
+            client.setRelay(this);
+            forward(client, login);
+            if (closed.get() && relayed.remove(client.getId()) != null) {
+                // Closed meanwhile, the client has to reconnect
+                client.close();
+            }
+        }
+
+        /**
+         * Relay a request read from the client
+         *
+         * @param client session of the client
+         * @param buffer buffer holding the request, not moved
+         * @param start  first byte
+         * @param end    end of the line without its separator, or end of the frame
+         */
+        void forward(Session client, ByteBuffer buffer, int start, int end) {
+            link.offer(Frame.wrap(BinaryProtocol.relay(client.getId(), buffer, start, end)), null);
+        }
+
+        /**
+         * Relay a request on behalf of the client
+         *
+         * @param client  session of the client
+         * @param request request with 'api'
+         */
+        void forward(Session client, JSONObject request) {
+            byte[] line = (request + "\n").getBytes(StandardCharsets.UTF_8);
+            link.offer(Frame.wrap(BinaryProtocol.relay(client.getId(), line, 0, line.length)), null);
+        }
+
+        /**
+         * Stop relaying a client, its session on the other node is closed
+         *
+         * @param client   session of the client
+         * @param announce the room sees the user leave, otherwise the user just disconnected
+         * @return what the client negotiated, null if it was not relayed here
+         */
+        Relayed detach(Session client, boolean announce) {
+            Relayed entry = relayed.remove(client.getId());
+            if (entry == null) {
+                return null;
+            }
+            client.setRelay(null);
+            if (announce) {
+                forward(client, new JSONObject().put("api", "close"));
+            }
+            link.offer(Frame.wrap(BinaryProtocol.relay(client.getId(), END, 0, 0)), null);
+            client.setBinary(entry.binary);
+            return entry;
+        }
+
+        /**
+         * Read what the other node sends until the link is closed
+         */
+        @Override
+        public void run() {
+            ChatCodec codec = in.codec();
+            long counted = 0;
+            try {
+                while (in.next()) {
+                    Metrics.bytesIn.add(in.getBytesRead() - counted);
+                    counted = in.getBytesRead();
+                    ByteBuffer buffer = in.buffer();
+                    if (buffer.get(in.start()) == BinaryProtocol.RELAY) {
+                        deliver(buffer, in.start(), in.end(), codec);
+                        continue;
+                    }
+                    JSONObject message = codec.readJSON(buffer, in.start(), in.end());
+                    switch (message.optString("api")) {
+                        case "ping": {
+                            link.send("{\"api\":\"pong\"}", null);
+                            break;
+                        }
+                        case "nodeLinkResult": {
+                            logger.info("Node " + node + " accepted the link: " + message);
+                            break;
+                        }
+                        default: {
+                            logger.info("Node " + node + ": " + message);
+                            break;
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error("Link to node " + node + " lost: " + e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Hand a relayed frame to its client
+         */
+        private void deliver(ByteBuffer buffer, int start, int end, ChatCodec codec) throws IOException {
+            long id = BinaryProtocol.relaySession(buffer, start, end);
+            int from = BinaryProtocol.relayMessageStart(buffer, start);
+            Relayed entry = relayed.get(id);
+            if (entry == null) {
+                // Detached already, what was still on the way is dropped
+                return;
+            }
+            Session client = entry.client;
+            if (from == end) {
+                // Closed by the other node, e.g. the client sent close
+                if (relayed.remove(id, entry)) {
+                    client.setRelay(null);
+                    client.closeGracefully();
+                }
+                return;
+            }
+            if (entry.resultApi != null && buffer.get(from) == '{') {
+                int lineEnd = end;
+                while (lineEnd > from && (buffer.get(lineEnd - 1) == '\n' || buffer.get(lineEnd - 1) == '\r')) {
+                    lineEnd--;
+                }
+                JSONObject result = codec.readJSON(buffer, from, lineEnd);
+                if ("loginResult".equals(result.optString("api"))) {
+                    answer(entry, result);
+                    return;
+                }
+            }
+            byte[] data = new byte[end - from];
+            buffer.get(from, data);
+            client.offer(Frame.wrap(data), null);
+        }
+
+        /**
+         * Answer the login made on behalf of the client, as the login or room change the client asked for
+         *
+         * @param entry  relayed client
+         * @param result loginResult of the other node
+         */
+        private void answer(Relayed entry, JSONObject result) {
+            String api = entry.resultApi;
+            entry.resultApi = null;
+            boolean success = "success".equals(result.optString("status"));
+            if ("loginResult".equals(api)) {
+                result.put("compression", success && entry.compress ? Compression.NAME : "none");
+            } else {
+                result.put("api", api);
+                result.remove("protocol");
+                result.remove("compression");
+            }
+            entry.client.send(result, null);
+            if (!success) {
+                detach(entry.client, false);
+            } else if (entry.compress && "loginResult".equals(api)) {
+                entry.client.startCompressing();
+            }
+        }
+
+        private void requestWrite() {
+            try {
+                writer.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                link.close();
+            }
+        }
+
+        /**
+         * Write everything queued on the link with a single flush
+         */
+        private void drain() {
+            try {
+                byte[] frame;
+                while ((frame = link.poll()) != null) {
+                    out.write(frame);
+                    Metrics.bytesOut.add(frame.length);
+                }
+                out.flush();
+            } catch (IOException e) {
+                logger.error("Write to node " + node + " failed: " + e.getMessage());
+                link.close();
+                return;
+            }
+            link.writeDone();
+        }
+
+        /**
+         * Close the link, the clients relayed over it are closed and reconnect, safe to call more than once
+         */
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            cluster.removed(this);
+            link.close();
+            writer.shutdown();
+            for (Relayed entry : relayed.values()) {
+                if (relayed.remove(entry.client.getId(), entry)) {
+                    entry.client.setRelay(null);
+                    entry.client.close();
+                }
+            }
+            logger.info("Link to node " + node + " closed");
+        }
+    }
+
+    /**
+     * A client relayed over an outbound link, with what it negotiated at login
+     */
+    static final class Relayed {
+        private final Session client;
+        final boolean binary;
+        final boolean acks;
+        private final boolean compress;
+        private volatile String resultApi;  // Api to answer the pending login with, null once answered
+
+        Relayed(Session client, boolean binary, boolean acks, boolean compress, String resultApi) {
+            this.client = client;
+            this.binary = binary;
+            this.acks = acks;
+            this.compress = compress;
+            this.resultApi = resultApi;
+        }
+    }
+
+    /**
+     * Link from another node, with a session for each client it relays here
+     */
+    static final class Inbound {
+        private final Session link;
+        private final int maxSessions;
+        private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+
+        /**
+         * Link from another node
+         *
+         * @param link        connection of the link
+         * @param maxSessions sessions the other node may relay over it at most
+         */
+        Inbound(Session link, int maxSessions) {
+            this.link = link;
+            this.maxSessions = maxSessions;
+        }
+
+        /**
+         * Handle a relay frame read from the link
+         *
+         * @param buffer buffer holding the frame, not moved
+         * @param start  position of the opcode
+         * @param end    position after the frame
+         * @param codec  codec of the reading thread or connection
+         * @throws IOException malformed relay frame
+         */
+        void dispatch(ByteBuffer buffer, int start, int end, ChatCodec codec) throws IOException {
+            long id = BinaryProtocol.relaySession(buffer, start, end);
+            int from = BinaryProtocol.relayMessageStart(buffer, start);
+            if (from == end) {
+                Session session = sessions.remove(id);
+                if (session != null) {
+                    session.close();
+                }
+                return;
+            }
+            Session session = sessions.get(id);
+            if (session == null) {
+                if (sessions.size() >= maxSessions) {
+                    // Ended at once, the other node closes its client
+                    logger.warn("Link full, " + maxSessions + " sessions, relayed session " + id + " refused");
+                    link.offer(Frame.wrap(BinaryProtocol.relay(id, END, 0, 0)), null);
+                    return;
+                }
+                session = open(id);
+            }
+            session.touchRead();
+            int to = end;
+            if (!BinaryProtocol.isOpcode(buffer.get(from))) {
+                while (to > from && (buffer.get(to - 1) == '\n' || buffer.get(to - 1) == '\r')) {
+                    to--;
+                }
+                if (to == from) {
+                    return;
+                }
+            }
+            try {
+                CreatingServer.ClientHandler.handlingClientRequest(buffer, from, to, codec, session);
+            } catch (IOException e) {
+                logger.error("Bad relayed frame, session dropped: " + e.getMessage());
+                session.close();
+            } catch (RuntimeException e) {
+                // The bad request is consumed, the link goes on
+                logger.error("Relayed request error: " + e.getMessage());
+            }
+        }
+
+        private Session open(long id) {
+            Remote remote = new Remote(id);
+            Session session = new Session(remote, remote);
+            remote.session = session;
+            sessions.put(id, session);
+            CreatingServer.clientConnected(session);
+            return session;
+        }
+
+        /**
+         * Number of sessions relayed here over the link
+         *
+         * @return session count
+         */
+        int getSessionCount() {
+            return sessions.size();
+        }
+
+        /**
+         * The link was closed, close every session relayed over it
+         */
+        void closeAll() {
+            for (Long id : sessions.keySet()) {
+                Session session = sessions.remove(id);
+                if (session != null) {
+                    session.close();
+                }
+            }
+        }
+
+        /**
+         * Transport of a relayed session: its frames are queued on the link as they are queued for it
+         */
+        private class Remote implements Closeable, Consumer<Session> {
+            private final long id;
+            private Session session;
+
+            Remote(long id) {
+                this.id = id;
+            }
+
+            @Override
+            public void accept(Session session) {
+                byte[] frame;
+                while ((frame = session.poll()) != null) {
+                    link.offer(Frame.wrap(BinaryProtocol.relay(id, frame, 0, frame.length)), null);
+                }
+                session.writeDone();
+            }
+
+            @Override
+            public void close() {
+                // Not when the other node ended the session itself
+                if (sessions.remove(id, session)) {
+                    link.offer(Frame.wrap(BinaryProtocol.relay(id, END, 0, 0)), null);
+                }
+            }
+        }
+    }
+}
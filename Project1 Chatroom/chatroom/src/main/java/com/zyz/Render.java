@@ -8,10 +8,7 @@ import org.apache.logging.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
 
 public class Render extends Application {
     private static final Logger logger = LogManager.getLogger(Render.class);
@@ -24,7 +21,7 @@ public class Render extends Application {
     public static boolean serverMode = false;
 
     /**
-     * Returns the isServerMode.
+     * Returns the isServerMode, whether this app also runs the server it is logged in to.
      *
      * @return the isServerMode
      */
@@ -38,13 +35,6 @@ public class Render extends Application {
      * @param message the message JSON string
      */
     public static void sendMsg(String message) {
-        if (serverMode) {
-            JSONObject json = new JSONObject();
-            json.put("message", message);
-            json.put("user", user);
-            ipc.serverSendMsg(json.toString());
-            return;
-        }
         JSONObject data = new JSONObject();
         data.put("user", user);
         data.put("message", message);
@@ -84,7 +74,7 @@ public class Render extends Application {
     }
 
     /**
-     * User create server.
+     * User create server, the host then joins it as an ordinary client.
      *
      * @param port the server port
      * @param username the username
@@ -96,11 +86,11 @@ public class Render extends Application {
         try {
             ipc.createServer(data, res -> {
                 if (res.equals("success")) {
+                    // Logged in by now, like after login
                     ChatPage.historyMode = false;
                     serverMode = true;
                     uiManager.switchToPage(new ChatPage());
                     logger.info("create server success");
-                    setUser(username);
                 } else {
                     logger.error("create server failed: " + res);
                     ConnectPage.showError(res);
@@ -125,11 +115,32 @@ public class Render extends Application {
     }
 
     /**
-     * Get history data.
+     * Receive messages that arrived together from server, shown at once.
+     *
+     * @param messages the messages in order
+     */
+    public static void receiveMsgs(List<ChatMessage> messages) {
+        logger.info("receive " + messages.size() + " messages");
+        ChatPage.receiveMsgs(messages);
+    }
+
+    /**
+     * Show history data the client already has.
+     *
+     * @param historyData history data
+     */
+    public static void loadHistoryData(JSONArray historyData) {
+        ChatPage.loadHistoryData(historyData);
+    }
+
+    /**
+     * Get the latest page of history data.
      */
     public static void getHistoryData() {
         try {
-            ipc.getHistoryData(null, res -> {
+            JSONObject page = new JSONObject();
+            page.put("limit", CreatingServer.DEFAULT_HISTORY_PAGE);
+            ipc.getHistoryData(page, res -> {
                 JSONArray historyData = new JSONArray(res);
                 ChatPage.loadHistoryData(historyData);
             });
@@ -147,40 +158,22 @@ public class Render extends Application {
         ChatPage.messageCount = 1;
         Render.user = user;
         ChatPage.setUser(user);
-        updateServerInfo.startUpdating();
     }
 
     /**
-     * Update header.
+     * Update header, the server pushes its info whenever the members of the room change.
+     *
+     * @param info server info with userNumber and host
      */
-    public static void updateHeader(){
-        final int[] userNumber = {0};
-        // 同步服务器信息
-        ipc.getServerInfo(res -> {
-            JSONObject json = new JSONObject(res);
-            int newUserNumber = Integer.parseInt(json.get("userNumber").toString());
-            if (newUserNumber == -1) {
-                ConnectionLost();
-                return;
-            }
-            if (newUserNumber == userNumber[0]) return;
-            else userNumber[0] = newUserNumber;
-            String host;
-            if (serverMode) {
-                host = Render.user;
-            } else {
-                host = json.get("host").toString();
-            }
-            String header = "Online: " + newUserNumber + " users";
-            ChatPage.updateServerInfo(header, host);
-        });
+    public static void updateHeader(JSONObject info) {
+        String header = "Online: " + info.get("userNumber") + " users";
+        ChatPage.updateServerInfo(header, info.optString("host", "--"));
     }
 
     /**
      * Connection lost, switch to ConnectPage.
      */
     public static void ConnectionLost() {
-        updateServerInfo.stopUpdating();
         ipc.leaveRoom(null);
         logger.error("connection lost");
         uiManager.switchToPage(new ConnectPage());
@@ -218,40 +211,6 @@ public class Render extends Application {
         });
     }
 
-    /**
-     * The updateServerInfo Thread to fetch server info every second.
-     */
-    public static class updateServerInfo implements Runnable {
-        private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-
-        public static void startUpdating() {
-            // Run the updateServerInfo Thread every second
-            if (scheduler.isShutdown() || scheduler.isTerminated()) {
-                scheduler = Executors.newScheduledThreadPool(1);
-            }
-            // Try to submit the task to the scheduler
-            try {
-                scheduler.scheduleAtFixedRate(new updateServerInfo(), 0, 1, TimeUnit.SECONDS);
-            } catch (RejectedExecutionException e) {
-                logger.error("Failed to run task to scheduler: " + e.getMessage());
-            }
-        }
-
-        public static void stopUpdating() {
-            scheduler.shutdown();
-        }
-
-        @Override
-        public void run() {
-            try {
-                updateHeader();
-            } catch (Exception e) {
-                logger.error("Update server info failed: " + e.getMessage());
-                scheduler.shutdown();
-            }
-        }
-    }
-
     /**
      * The main method.
      *
@@ -0,0 +1,601 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * One chat room with its own members, history and message order.
+ * A room owns no thread: its fan-out and its history log run on the executor shared by all rooms,
+ * and the history log is only open while the room has members, so an empty room is a few small objects.
+ * Opening and closing the history log read and force files, both run on the executor, never on the thread
+ * handling a request and never with the sequencer held.
+ */
+class Room {
+    private static final Logger logger = LogManager.getLogger(Room.class);
+    static final String PRESENCE_KEY = "serverInfo";  // A newer serverInfo replaces one still queued to a member
+    // Least time between two serverInfo pushes of a room in milliseconds, system property chatroom.presence.interval
+    static final long PRESENCE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Math.max(0, Long.getLong("chatroom.presence.interval", 250)));
+    private final String name;
+    private final Path historyDir;
+    private final boolean hosted;  // Room of the host, never idle
+    private final ScheduledExecutorService executor;
+    private final SessionRegistry members;
+    private final FanOut fanOut;
+    private final RateLimiter.Limits limits;  // Rate limits of the members
+    private final HistoryCache.Budget historyBudget;  // Memory for the latest messages of the history
+    // One sequencer per room, its messages are stored and broadcast in the order of their sequence numbers
+    final ReentrantLock sequencer = new ReentrantLock();
+    private final ReentrantLock historyLock = new ReentrantLock();
+    private final Condition historySettled = historyLock.newCondition();  // Opening or closing done
+    private volatile HistoryLog log;  // Null until a member joins and again once the room is empty
+    private volatile boolean closed;
+    // Under historyLock
+    private boolean opening;  // The log is being opened on the executor
+    private boolean closing;  // The log is being closed on the executor, opened again after if anyone waits
+    private final List<Consumer<Boolean>> openWaiters = new ArrayList<>();
+    // Presence, pushed to the members when the membership changed, at most once per interval
+    private final AtomicBoolean presenceScheduled = new AtomicBoolean();
+    private volatile long lastPresence = System.nanoTime() - PRESENCE_INTERVAL_NANOS;
+    private final ReentrantLock presenceLock = new ReentrantLock();  // Keeps pushes in order
+    private int pushedUsers = -1;  // User number of the last push, under presenceLock
+
+    /**
+     * Create a room, its history is opened on first use
+     *
+     * @param name       room name
+     * @param historyDir directory of its history log
+     * @param hosted     room of the host
+     * @param executor   executor shared by all rooms
+     */
+    Room(String name, Path historyDir, boolean hosted, ScheduledExecutorService executor) {
+        this.name = name;
+        this.historyDir = historyDir;
+        this.hosted = hosted;
+        this.executor = executor;
+        this.members = new SessionRegistry(FanOut.defaultShardCount());
+        this.fanOut = new FanOut(members, executor);
+        this.limits = RateLimiter.Limits.forRoom(name);
+        this.historyBudget = HistoryCache.Budget.forRoom(name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    boolean isHosted() {
+        return hosted;
+    }
+
+    SessionRegistry getMembers() {
+        return members;
+    }
+
+    FanOut getFanOut() {
+        return fanOut;
+    }
+
+    RateLimiter.Limits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Number of users in the room, the host counts once logged in like everyone else
+     *
+     * @return user number
+     */
+    public int getUserNumber() {
+        return members.getUserNumber();
+    }
+
+    /**
+     * Run a task with the sequencer held once the history log is open, at once if it is. Otherwise the log
+     * is opened on the executor and the task runs there when it is, the caller does not wait.
+     * If the log can not be opened the task runs all the same and the room keeps no history.
+     *
+     * @param task task, e.g. entering the room
+     */
+    void whenOpen(Runnable task) {
+        whenOpen(task, true);
+    }
+
+    private void whenOpen(Runnable task, boolean open) {
+        sequencer.lock();
+        try {
+            // A room closing its log takes it away with the sequencer held, so it stays open for the task
+            if (log != null || closed || !open) {
+                task.run();
+                return;
+            }
+        } finally {
+            sequencer.unlock();
+        }
+        // Not open, or closed again before the task got the sequencer, open it unless that just failed
+        openHistory(opened -> whenOpen(task, opened));
+    }
+
+    /**
+     * Add a logged in session, called with the sequencer held
+     *
+     * @param session  session
+     * @param username username of the session
+     */
+    void enter(Session session, String username) {
+        members.add(session);
+        members.login(session, username);
+        session.setRoom(this);
+        session.getLimiter().setLimits(limits);
+        presenceChanged();
+    }
+
+    /**
+     * Remove a session, the history is closed once the last member is gone
+     *
+     * @param session session
+     * @return true if the session was a member
+     */
+    boolean leave(Session session) {
+        boolean member = members.remove(session);
+        session.setRoom(null);
+        if (member) {
+            presenceChanged();
+        }
+        if (members.getUserNumber() == 0 && !hosted) {
+            requestClose();
+        }
+        return member;
+    }
+
+    /* ----------------- Presence ----------------- */
+
+    /**
+     * The membership changed, schedule a serverInfo push unless one is scheduled already.
+     * Changes within an interval of the last push are coalesced into the next one.
+     */
+    private void presenceChanged() {
+        if (!presenceScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = lastPresence + PRESENCE_INTERVAL_NANOS - System.nanoTime();
+        try {
+            if (delay > 0) {
+                executor.schedule(this::pushPresence, delay, TimeUnit.NANOSECONDS);
+            } else {
+                executor.execute(this::pushPresence);
+            }
+        } catch (RejectedExecutionException e) {
+            // Server shutting down, nobody is left to tell
+            presenceScheduled.set(false);
+        }
+    }
+
+    /**
+     * Push serverInfo to every member if the user number differs from the last push
+     */
+    private void pushPresence() {
+        lastPresence = System.nanoTime();
+        // Cleared before reading, a change from now on schedules another push
+        presenceScheduled.set(false);
+        presenceLock.lock();
+        try {
+            int users = getUserNumber();
+            if (users == pushedUsers || closed) {
+                return;
+            }
+            pushedUsers = users;
+            fanOut.broadcast(Frame.message(CreatingServer.serverInfo(this), -1), null, PRESENCE_KEY);
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    /* ----------------- Messages ----------------- */
+
+    /**
+     * Store a message in the history and broadcast it to every member. A message the history does not keep
+     * is broadcast without a sequence number, clients neither ack it nor ask for it again.
+     *
+     * @param user    sender, system for room events
+     * @param message message
+     * @param count   message count of the sender, 0 for room events
+     * @param except  username not to send to, null to send to everyone
+     * @return stored message with its sequence number
+     */
+    ChatMessage publish(String user, String message, int count, String except) {
+        ChatMessage data = new ChatMessage(user, message, LocalTime.now().toString(), count);
+        sequencer.lock();
+        try {
+            addHistory(data);
+            broadcast(Frame.chat(data), except);
+        } finally {
+            sequencer.unlock();
+        }
+        logger.debug("Published in {}: {}", name, data);
+        return data;
+    }
+
+    /**
+     * Broadcast a frame to every member, each gets it in its own protocol
+     *
+     * @param frame  frame, shared by every recipient
+     * @param except username not to send to, null to send to everyone
+     */
+    void broadcast(Frame frame, String except) {
+        fanOut.broadcast(frame, except);
+    }
+
+    /**
+     * Publish a room event from the system
+     *
+     * @param message event text
+     * @param except  username not to send to, null to send to everyone
+     */
+    private void publishEvent(String message, String except) {
+        publish("system", message, 0, except);
+    }
+
+    void newUser(String username) {
+        publishEvent(username + " joined the room", username);
+    }
+
+    void userLeft(String username) {
+        publishEvent(username + " left the room", username);
+    }
+
+    void createdRoom(String username) {
+        logger.info("room " + name + " created by: " + username);
+        publishEvent(username + " created the room", null);
+    }
+
+    /**
+     * A chat message from a member or the host
+     *
+     * @param username sender
+     * @param msg      message
+     * @param count    message count of the sender
+     * @return stored message
+     */
+    ChatMessage newMsgFrom(String username, String msg, int count) {
+        return publish(username, msg, count, username);
+    }
+
+    /* ----------------- History ----------------- */
+
+    /**
+     * History log of the room, open while it has members
+     *
+     * @return log, null if it is not open, can not be opened or the room is closed
+     */
+    private HistoryLog history() {
+        return log;
+    }
+
+    /**
+     * Open the history log on the executor unless it is open, called back once it is
+     *
+     * @param then called with true if the log is open, on the executor unless it was open already
+     */
+    private void openHistory(Consumer<Boolean> then) {
+        historyLock.lock();
+        try {
+            if (log == null && !closed) {
+                openWaiters.add(then);
+                if (opening || closing) {
+                    // Opened by the opening, or once the closing is done
+                    return;
+                }
+                opening = true;
+                then = null;
+            }
+        } finally {
+            historyLock.unlock();
+        }
+        if (then != null) {
+            then.accept(!closed);
+        } else {
+            startOpening();
+        }
+    }
+
+    private void startOpening() {
+        try {
+            executor.execute(this::open);
+        } catch (RejectedExecutionException e) {
+            // Server shutting down, the waiters go on without history
+            historyLock.lock();
+            try {
+                opening = false;
+                historySettled.signalAll();
+            } finally {
+                historyLock.unlock();
+            }
+            notifyOpen(false);
+        }
+    }
+
+    /**
+     * Open the history log, on the executor, then run what waited for it
+     */
+    private void open() {
+        HistoryLog opened = null;
+        try {
+            opened = HistoryLog.open(historyDir, executor, historyBudget);
+        } catch (IOException e) {
+            logger.error("failed to open history of room " + name + ", history is not kept: " + e.getMessage());
+        }
+        boolean keep;
+        historyLock.lock();
+        try {
+            opening = false;
+            keep = !closed;
+            if (keep) {
+                log = opened;
+            }
+            historySettled.signalAll();
+        } finally {
+            historyLock.unlock();
+        }
+        if (!keep && opened != null) {
+            // The server closed meanwhile
+            opened.close();
+        }
+        notifyOpen(keep && opened != null);
+    }
+
+    private void notifyOpen(boolean opened) {
+        List<Consumer<Boolean>> waiters;
+        historyLock.lock();
+        try {
+            waiters = new ArrayList<>(openWaiters);
+            openWaiters.clear();
+        } finally {
+            historyLock.unlock();
+        }
+        for (Consumer<Boolean> waiter : waiters) {
+            try {
+                waiter.accept(opened);
+            } catch (RuntimeException e) {
+                logger.error("Task waiting for the history of room " + name + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Add a chat message, appended to the history log in the background, which adds it to the search index.
+     * The message is stamped with its sequence number, its number in the history log of the room.
+     *
+     * @param message message, not modified afterwards, stamped only if the log takes it
+     * @return sequence number, -1 if no history is kept
+     */
+    long addHistory(ChatMessage message) {
+        HistoryLog current = history();
+        if (current == null) {
+            return -1;
+        }
+        return current.appendRecord(seq -> {
+            message.seq = seq;
+            return ChatCodec.record(message);
+        });
+    }
+
+    /**
+     * Read the history for a request on the executor, loading the index of a segment or reading its records
+     * may wait for the disk and must not hold up the thread that handles the requests of many clients.
+     * If the log is closed meanwhile the task finds no history.
+     *
+     * @param task task reading the history and sending the response
+     */
+    void readHistory(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Search the history, one page of the newest matches ranked by score, then newest first
+     *
+     * @param query  words, each matches the words starting with it
+     * @param before only messages before this sequence number, Long.MAX_VALUE for the newest
+     * @param limit  page size
+     * @param hits   list to add the messages found to, each with its score
+     * @return sequence number to search before for the next page, -1 if this is the last page
+     */
+    long search(String query, long before, int limit, List<JSONObject> hits) {
+        HistoryLog current = history();
+        if (current == null) {
+            return -1;
+        }
+        List<HistoryIndex.Hit> found = current.index().search(query, before, limit);
+        long next = -1;
+        if (found.size() > limit) {
+            found = found.subList(0, limit);
+            next = found.get(limit - 1).seq;
+        }
+        List<HistoryIndex.Hit> ranked = new ArrayList<>(found);
+        ranked.sort((a, b) -> a.score != b.score ? Integer.compare(b.score, a.score) : Long.compare(b.seq, a.seq));
+        for (HistoryIndex.Hit hit : ranked) {
+            List<ChatMessage> messages = getMessages(hit.seq, hit.seq + 1);
+            if (!messages.isEmpty()) {
+                hits.add(messages.get(0).toJSON().put("score", hit.score));
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Number of messages in the history
+     *
+     * @return message count
+     */
+    long getHistorySize() {
+        HistoryLog current = history();
+        return current == null ? 0 : current.size();
+    }
+
+    /**
+     * Get a range of messages, read from the mapped history segments
+     *
+     * @param from number of the first message, counted from 0
+     * @param to   end, exclusive
+     * @return history data
+     */
+    JSONArray getHistoryData(long from, long to) {
+        JSONArray data = new JSONArray();
+        HistoryLog current = history();
+        if (current != null) {
+            current.read(from, to, record -> {
+                try {
+                    data.put(new JSONObject(new String(record, StandardCharsets.UTF_8)));
+                } catch (JSONException e) {
+                    logger.error("parse history record failed: " + e.getMessage());
+                }
+            });
+        }
+        return data;
+    }
+
+    /**
+     * Get a range of messages, read by the codec without building JSON
+     *
+     * @param from number of the first message, counted from 0
+     * @param to   end, exclusive
+     * @return messages
+     */
+    List<ChatMessage> getMessages(long from, long to) {
+        List<ChatMessage> messages = new ArrayList<>();
+        HistoryLog current = history();
+        if (current != null) {
+            // One per read, a thread-local one would stay behind on every virtual thread of a client
+            ChatCodec codec = new ChatCodec();
+            current.read(from, to, record -> {
+                if (codec.read(ByteBuffer.wrap(record), 0, record.length) == ChatCodec.NO_API) {
+                    messages.add(codec.message().copy());
+                } else {
+                    logger.error("parse history record failed: " + new String(record, StandardCharsets.UTF_8));
+                }
+            });
+        }
+        return messages;
+    }
+
+    /**
+     * Make sure the history is on disk
+     */
+    void flushHistory() {
+        HistoryLog current = log;
+        if (current != null) {
+            current.flush();
+        }
+    }
+
+    /**
+     * The room is empty, close the history log on the executor, it is opened again when someone joins
+     */
+    private void requestClose() {
+        historyLock.lock();
+        try {
+            if (log == null || opening || closing) {
+                return;
+            }
+            closing = true;
+        } finally {
+            historyLock.unlock();
+        }
+        try {
+            executor.execute(this::closeIfIdle);
+        } catch (RejectedExecutionException e) {
+            // Server shutting down, close() flushes the log
+            historyLock.lock();
+            try {
+                closing = false;
+                historySettled.signalAll();
+            } finally {
+                historyLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Flush and close the history log if the room is still empty, on the executor.
+     * Joins that came meanwhile open it again once it is closed.
+     */
+    private void closeIfIdle() {
+        HistoryLog current = null;
+        sequencer.lock();
+        try {
+            // Nobody joined meanwhile, a join holds the sequencer
+            if (members.getUserNumber() == 0) {
+                historyLock.lock();
+                try {
+                    current = log;
+                    log = null;
+                } finally {
+                    historyLock.unlock();
+                }
+            }
+        } finally {
+            sequencer.unlock();
+        }
+        if (current != null) {
+            current.close();
+        }
+        boolean reopen;
+        historyLock.lock();
+        try {
+            closing = false;
+            reopen = !openWaiters.isEmpty() && log == null && !closed;
+            opening = reopen;
+            historySettled.signalAll();
+        } finally {
+            historyLock.unlock();
+        }
+        if (reopen) {
+            startOpening();
+        } else {
+            // Still open if someone joined, otherwise the server closed
+            notifyOpen(log != null);
+        }
+    }
+
+    /**
+     * Close the room with the server, its history is flushed and not opened again
+     */
+    void close() {
+        HistoryLog current;
+        historyLock.lock();
+        try {
+            closed = true;
+            // An opening or closing on the executor finishes first, they share the files
+            while (opening || closing) {
+                historySettled.await(100, TimeUnit.MILLISECONDS);
+            }
+            current = log;
+            log = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            current = log;
+            log = null;
+        } finally {
+            historyLock.unlock();
+        }
+        if (current != null) {
+            current.close();
+        }
+    }
+}
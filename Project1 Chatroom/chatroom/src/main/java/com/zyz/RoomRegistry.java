@@ -0,0 +1,138 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Pattern;
+
+/**
+ * Rooms of a server by name, in name order so they can be listed page by page.
+ * The default room keeps its history in the history directory itself, so a server that had a single room
+ * keeps its history, every other room has a directory under rooms/.
+ * Rooms found on disk are listed at startup, their history is only opened when someone joins.
+ */
+class RoomRegistry {
+    private static final Logger logger = LogManager.getLogger(RoomRegistry.class);
+    // Name of the room clients join at login, system property chatroom.room.default
+    static final String DEFAULT_ROOM = System.getProperty("chatroom.room.default", "main");
+    // Most rooms a server holds, system property chatroom.rooms.max
+    static final int MAX_ROOMS = Integer.getInteger("chatroom.rooms.max", 10_000);
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+    private final ConcurrentSkipListMap<String, Room> rooms = new ConcurrentSkipListMap<>();
+    private final Path roomsDir;
+    private final ScheduledExecutorService executor;
+    private final Room defaultRoom;
+
+    /**
+     * Create the registry with the default room and the rooms found on disk
+     *
+     * @param historyDir history directory of the server
+     * @param executor   executor shared by all rooms
+     */
+    RoomRegistry(Path historyDir, ScheduledExecutorService executor) {
+        this.roomsDir = historyDir.resolve("rooms");
+        this.executor = executor;
+        defaultRoom = new Room(DEFAULT_ROOM, historyDir, true, executor);
+        rooms.put(DEFAULT_ROOM, defaultRoom);
+        if (Files.isDirectory(roomsDir)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(roomsDir)) {
+                for (Path dir : stream) {
+                    String name = dir.getFileName().toString();
+                    if (Files.isDirectory(dir) && isValidName(name) && rooms.size() < MAX_ROOMS) {
+                        rooms.putIfAbsent(name, new Room(name, dir, false, executor));
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("failed to list rooms: " + e.getMessage());
+            }
+        }
+        logger.info(rooms.size() + " rooms, default room: " + DEFAULT_ROOM);
+    }
+
+    static boolean isValidName(String name) {
+        return name != null && NAME.matcher(name).matches();
+    }
+
+    Room getDefault() {
+        return defaultRoom;
+    }
+
+    /**
+     * Get a room by name
+     *
+     * @param name room name
+     * @return room, null if there is none
+     */
+    Room get(String name) {
+        return name == null ? null : rooms.get(name);
+    }
+
+    /**
+     * Get a room, create it if there is none
+     *
+     * @param name room name, letters, digits, '_' and '-', at most 32
+     * @return room
+     * @throws IllegalArgumentException invalid name or too many rooms
+     */
+    Room getOrCreate(String name) {
+        Room room = get(name);
+        if (room != null) {
+            return room;
+        }
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("Invalid room name: " + name);
+        }
+        if (rooms.size() >= MAX_ROOMS) {
+            throw new IllegalArgumentException("Too many rooms");
+        }
+        return rooms.computeIfAbsent(name, n -> new Room(n, roomsDir.resolve(n), false, executor));
+    }
+
+    /**
+     * One page of rooms in name order
+     *
+     * @param after name the page starts after, null for the first page
+     * @param limit most rooms in the page
+     * @return rooms
+     */
+    List<Room> list(String after, int limit) {
+        List<Room> page = new ArrayList<>(Math.min(limit, 64));
+        for (Room room : (after == null ? rooms : rooms.tailMap(after, false)).values()) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(room);
+        }
+        return page;
+    }
+
+    int size() {
+        return rooms.size();
+    }
+
+    /**
+     * Close every room, their history is flushed
+     */
+    void close() {
+        for (Room room : rooms.values()) {
+            room.close();
+        }
+    }
+
+    /**
+     * Make sure the history of every open room is on disk
+     */
+    void flush() {
+        for (Room room : rooms.values()) {
+            room.flushHistory();
+        }
+    }
+}
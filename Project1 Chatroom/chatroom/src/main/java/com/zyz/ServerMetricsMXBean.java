@@ -0,0 +1,67 @@
+package com.zyz;
+
+import java.util.Map;
+
+/**
+ * Metrics of the chat server over JMX, see Metrics.
+ * Public because the platform MBean server only reads public interfaces.
+ */
+public interface ServerMetricsMXBean {
+    int getConnectedSessions();
+
+    int getLoggedInUsers();
+
+    int getRooms();
+
+    long getQueuedFrames();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getThrottled();
+
+    /**
+     * History records read from the caches of the rooms
+     *
+     * @return record count
+     */
+    long getHistoryCacheHits();
+
+    /**
+     * History records read from disk because they were no longer cached
+     *
+     * @return record count
+     */
+    long getHistoryCacheMisses();
+
+    long getHistoryCacheEvictions();
+
+    /**
+     * Bytes of history records cached by every room
+     *
+     * @return bytes
+     */
+    long getHistoryCacheBytes();
+
+    /**
+     * Requests handled per api
+     *
+     * @return count by api
+     */
+    Map<String, Long> getRequestCounts();
+
+    /**
+     * 99th percentile of the handling time per api
+     *
+     * @return nanoseconds by api
+     */
+    Map<String, Long> getRequestP99Nanos();
+
+    /**
+     * Every metric as the getServerMetrics api returns it
+     *
+     * @return JSON
+     */
+    String getSnapshot();
+}
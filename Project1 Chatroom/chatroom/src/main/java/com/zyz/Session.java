@@ -0,0 +1,750 @@
+package com.zyz;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A connected client, independent of how the server reads and writes its connection.
+ * Everything sent to the client goes through a bounded outbound queue drained by a writer,
+ * so a client that stops reading never blocks the thread that sends to it.
+ */
+class Session {
+    private static final Logger logger = LogManager.getLogger(Session.class);
+    private static final AtomicLong nextId = new AtomicLong(1);
+    static final int DEFAULT_CAPACITY = Integer.getInteger("chatroom.outbound.capacity", 1024);
+    static final SlowConsumerPolicy DEFAULT_POLICY =
+            SlowConsumerPolicy.parse(System.getProperty("chatroom.outbound.policy"));
+    static final int RETRANSMIT_CAPACITY = Integer.getInteger("chatroom.retransmit.capacity", 256);
+    static final String PING_KEY = "ping";
+    private final long id;
+    private final PrintWriter out;
+    private final Closeable transport;  // Closing it ends the reading loop of the client
+    private final Consumer<Session> writeRequest;  // Wakes the writer when the queue becomes non-empty
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private volatile String username;  // Null until login
+    private volatile long lastRead;
+    private volatile long lastWrite;
+    private volatile long joinedBroadcast;  // Last broadcast issued before login, see FanOut
+    private volatile boolean binary;  // Client speaks the binary protocol, negotiated at login
+    private volatile Compression.Deflate deflate;  // Compresses frames queued once negotiated at login
+    private volatile Compression.Inflate inflate;  // Inflates compressed requests, null until negotiated
+    private volatile Room room;  // Room the user is in, null until login, one at a time
+    private volatile Relay.Outbound relay;  // Link to the node owning the room of the user, null if local
+    private volatile Relay.Inbound link;  // Sessions relayed by another node over this connection, null for clients
+    private final RateLimiter limiter = new RateLimiter();  // Used by the thread reading the client
+
+    // Outbound queue
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final Map<String, Entry> queuedByKey = new HashMap<>();  // Coalescible frames still queued
+    private boolean pingQueued;  // A ping waits to be written, guarded by queueLock
+    private int capacity;  // Guarded by queueLock
+    private SlowConsumerPolicy policy;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closeAfterFlush;
+
+    // Retransmit ring, only for clients that ack, guarded by queueLock
+    private final ArrayDeque<Sent> unacked = new ArrayDeque<>();
+    private volatile boolean acking;
+    private long acked;  // Cumulative ack, every message up to this sequence number arrived
+
+    /**
+     * What to do when a client does not read fast enough and its queue is full
+     */
+    enum SlowConsumerPolicy {
+        DROP_OLDEST,  // Drop the oldest queued frame to make room
+        COALESCE,     // A frame with a coalesce key replaces the queued one with the same key, otherwise drop oldest
+        DISCONNECT;   // Close the session
+
+        static SlowConsumerPolicy parse(String name) {
+            if (name == null) {
+                return DROP_OLDEST;
+            }
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.error("Unknown slow consumer policy: " + name + ", use drop oldest");
+                return DROP_OLDEST;
+            }
+        }
+    }
+
+    /**
+     * Create a session with the default queue capacity and policy
+     *
+     * @param transport    underlying connection
+     * @param writeRequest called when the writer has to drain the queue
+     */
+    Session(Closeable transport, Consumer<Session> writeRequest) {
+        this(transport, writeRequest, DEFAULT_CAPACITY, DEFAULT_POLICY);
+    }
+
+    /**
+     * Create a session
+     *
+     * @param transport    underlying connection
+     * @param writeRequest called when the writer has to drain the queue
+     * @param capacity     maximum number of queued frames
+     * @param policy       slow consumer policy
+     */
+    Session(Closeable transport, Consumer<Session> writeRequest, int capacity, SlowConsumerPolicy policy) {
+        this.id = nextId.getAndIncrement();
+        this.out = new PrintWriter(new QueueWriter(), true);
+        this.transport = transport;
+        this.writeRequest = writeRequest;
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        long now = System.currentTimeMillis();
+        this.lastRead = now;
+        this.lastWrite = now;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    void setUsername(String username) {
+        this.username = username;
+    }
+
+    /**
+     * Room of the session, sequence numbers, acks and missed messages refer to its history
+     *
+     * @return room, null before login and after leaving
+     */
+    Room getRoom() {
+        return room;
+    }
+
+    void setRoom(Room room) {
+        this.room = room;
+    }
+
+    /**
+     * Link the requests of the session are relayed over, its room is owned by another node
+     *
+     * @return link, null if the session is served here
+     */
+    Relay.Outbound getRelay() {
+        return relay;
+    }
+
+    void setRelay(Relay.Outbound relay) {
+        this.relay = relay;
+    }
+
+    /**
+     * Sessions relayed by another node of the cluster over this connection
+     *
+     * @return link, null for an ordinary client
+     */
+    Relay.Inbound getLink() {
+        return link;
+    }
+
+    /**
+     * Make this connection a link from another node, its queue carries the frames of many sessions
+     *
+     * @param link     relayed sessions
+     * @param capacity maximum number of queued frames
+     */
+    void setLink(Relay.Inbound link, int capacity) {
+        queueLock.lock();
+        try {
+            this.capacity = Math.max(1, capacity);
+            // Dropping a frame would drop it for one of many sessions, closing the link closes them all
+            this.policy = SlowConsumerPolicy.DISCONNECT;
+        } finally {
+            queueLock.unlock();
+        }
+        limiter.setLimits(RateLimiter.Limits.NONE);
+        this.link = link;
+    }
+
+    /**
+     * Rate limits of the requests of the client, set to those of its room
+     *
+     * @return rate limiter
+     */
+    RateLimiter getLimiter() {
+        return limiter;
+    }
+
+    long getJoinedBroadcast() {
+        return joinedBroadcast;
+    }
+
+    void setJoinedBroadcast(long joinedBroadcast) {
+        this.joinedBroadcast = joinedBroadcast;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Switch the protocol of frames queued from now on, frames already queued keep theirs
+     *
+     * @param binary true for the binary protocol
+     */
+    void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Accept compressed requests and compress every frame queued from now on, the client offered compression
+     * at login. Frames already queued are written as they are. A second login keeps the running contexts,
+     * the client inflates with them.
+     */
+    void startCompressing() {
+        queueLock.lock();
+        try {
+            if (inflate == null) {
+                inflate = new Compression.Inflate();
+            }
+            if (deflate == null) {
+                deflate = new Compression.Deflate();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+        if (closed.get()) {
+            // Closed meanwhile, its contexts may have been freed before these were made
+            endCompression();
+        }
+    }
+
+    /**
+     * Compression of what is written
+     *
+     * @return deflate context, null if not compressing
+     */
+    public Compression.Deflate getDeflate() {
+        return deflate;
+    }
+
+    /**
+     * Context to inflate compressed requests with, called by the reader only
+     *
+     * @return inflate context, null if compression was not negotiated
+     */
+    Compression.Inflate getInflate() {
+        return inflate;
+    }
+
+    /**
+     * Output stream handed to the request handlers, every line becomes one queued frame
+     *
+     * @return print writer
+     */
+    public PrintWriter getOut() {
+        return out;
+    }
+
+    /**
+     * Record that data was read from the client
+     */
+    public void touchRead() {
+        lastRead = System.currentTimeMillis();
+    }
+
+    public long getLastRead() {
+        return lastRead;
+    }
+
+    public long getLastWrite() {
+        return lastWrite;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Number of frames waiting to be written
+     *
+     * @return queue depth
+     */
+    public int getQueueDepth() {
+        queueLock.lock();
+        try {
+            return queue.size();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Number of frames dropped or replaced because the client did not keep up
+     *
+     * @return drop count
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Queue a line for the client, never blocks
+     *
+     * @param line        line without the line separator
+     * @param coalesceKey frames with the same key may replace each other, null if not coalescible
+     */
+    public void send(String line, String coalesceKey) {
+        offer(Frame.text(line), coalesceKey);
+    }
+
+    /**
+     * Queue a message for the client, encoded in the protocol of the client, never blocks
+     *
+     * @param message     message with 'api', must not be modified afterwards
+     * @param coalesceKey frames with the same key may replace each other, null if not coalescible
+     */
+    public void send(JSONObject message, String coalesceKey) {
+        offer(Frame.message(message, -1), coalesceKey);
+    }
+
+    /**
+     * Queue a ping unless one still waits to be written, under any policy a client that does not read
+     * gets only one and its queued messages are not pushed out by more
+     *
+     * @param line ping frame
+     */
+    void ping(String line) {
+        if (closed.get() || closeAfterFlush) {
+            return;
+        }
+        boolean queued;
+        queueLock.lock();
+        try {
+            if (pingQueued) {
+                return;
+            }
+            queued = enqueue(Frame.text(line), PING_KEY, false);
+            pingQueued = queued;
+        } finally {
+            queueLock.unlock();
+        }
+        if (!queued) {
+            disconnectSlow();
+            return;
+        }
+        requestWrite();
+    }
+
+    /**
+     * Queue an encoded frame for the client, apply the slow consumer policy when full.
+     * A chat message to a client that acks is kept until acked.
+     *
+     * @param frame       encoded frame, may be shared with other sessions
+     * @param coalesceKey frames with the same key may replace each other, null if not coalescible
+     */
+    void offer(Frame frame, String coalesceKey) {
+        offer(frame, coalesceKey, true);
+    }
+
+    /**
+     * Queue a batch of broadcast frames at once, the writer is woken once for all of them
+     *
+     * @param frames encoded frames in order, may be shared with other sessions
+     */
+    void offer(List<Frame> frames) {
+        if (closed.get() || closeAfterFlush) {
+            return;
+        }
+        boolean disconnect = false;
+        queueLock.lock();
+        try {
+            for (Frame frame : frames) {
+                if (!enqueue(frame, null, true)) {
+                    disconnect = true;
+                    break;
+                }
+            }
+        } finally {
+            queueLock.unlock();
+        }
+        if (disconnect) {
+            disconnectSlow();
+            return;
+        }
+        requestWrite();
+    }
+
+    private void offer(Frame frame, String coalesceKey, boolean track) {
+        if (closed.get() || closeAfterFlush) {
+            return;
+        }
+        boolean queued;
+        queueLock.lock();
+        try {
+            queued = enqueue(frame, coalesceKey, track);
+        } finally {
+            queueLock.unlock();
+        }
+        if (!queued) {
+            disconnectSlow();
+            return;
+        }
+        requestWrite();
+    }
+
+    /**
+     * Add a frame to the queue, called with queueLock held
+     *
+     * @param frame       encoded frame
+     * @param coalesceKey coalesce key, null if not coalescible
+     * @param track       keep a chat message until acked
+     * @return false if the queue is full and the policy is to disconnect
+     */
+    private boolean enqueue(Frame frame, String coalesceKey, boolean track) {
+        Entry queued = coalesceKey == null || policy != SlowConsumerPolicy.COALESCE
+                ? null : queuedByKey.get(coalesceKey);
+        if (queued != null) {
+            // Replace in place, the client only needs the latest one
+            queued.frame = frame;
+            queued.binary = binary;
+            queued.compressed = deflate != null;
+            dropped.incrementAndGet();
+        } else if (queue.size() >= capacity && policy == SlowConsumerPolicy.DISCONNECT) {
+            return false;
+        } else {
+            if (queue.size() >= capacity) {
+                Entry oldest = queue.poll();
+                if (oldest != null && oldest.key != null) {
+                    queuedByKey.remove(oldest.key, oldest);
+                    forgetPing(oldest);
+                }
+                dropped.incrementAndGet();
+            }
+            Entry entry = new Entry(frame, coalesceKey, binary, deflate != null);
+            queue.add(entry);
+            if (coalesceKey != null && policy == SlowConsumerPolicy.COALESCE) {
+                queuedByKey.put(coalesceKey, entry);
+            }
+        }
+        if (track && acking && frame.getSeq() > acked) {
+            track(frame);
+        }
+        return true;
+    }
+
+    private void forgetPing(Entry entry) {
+        if (entry.key.equals(PING_KEY)) {
+            pingQueued = false;
+        }
+    }
+
+    private void disconnectSlow() {
+        logger.warn("Slow client disconnected, session " + id + ", " + capacity + " frames queued");
+        close();
+    }
+
+    /**
+     * Keep a sent chat message until acked, in sequence order.
+     * When the ring is full the oldest is dropped, it is resent from the history instead.
+     *
+     * @param frame frame with a sequence number
+     */
+    private void track(Frame frame) {
+        Sent last = unacked.peekLast();
+        if (last != null && last.frame.getSeq() >= frame.getSeq()) {
+            return;
+        }
+        if (unacked.size() >= RETRANSMIT_CAPACITY) {
+            unacked.poll();
+        }
+        unacked.add(new Sent(frame, System.currentTimeMillis()));
+    }
+
+    /**
+     * The client acks chat messages from now on
+     *
+     * @param seq sequence number of the last message the client already has
+     */
+    void startAcking(long seq) {
+        queueLock.lock();
+        try {
+            acked = seq;
+            unacked.clear();
+            acking = true;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * The client acks somewhere else from now on, its room moved to another node
+     */
+    void stopAcking() {
+        queueLock.lock();
+        try {
+            acking = false;
+            unacked.clear();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    public boolean isAcking() {
+        return acking;
+    }
+
+    /**
+     * Cumulative ack from the client, forget the messages it has
+     *
+     * @param seq every message up to this sequence number arrived
+     */
+    void ack(long seq) {
+        queueLock.lock();
+        try {
+            if (seq <= acked) {
+                return;
+            }
+            acked = seq;
+            while (!unacked.isEmpty() && unacked.peek().frame.getSeq() <= seq) {
+                unacked.poll();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Number of chat messages sent and not acked yet
+     *
+     * @return unacked count
+     */
+    public int getUnackedCount() {
+        queueLock.lock();
+        try {
+            return unacked.size();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Resend the chat messages not acked within the timeout
+     *
+     * @param now           current time
+     * @param timeoutMillis resend a message after this long without an ack
+     * @param missing       called with the range [from, to) of unacked messages no longer in the ring
+     * @return number of messages resent from the ring
+     */
+    int retransmit(long now, long timeoutMillis, BiConsumer<Long, Long> missing) {
+        List<Frame> resend = new ArrayList<>();
+        long gapFrom;
+        long gapTo;
+        queueLock.lock();
+        try {
+            Sent head = unacked.peek();
+            if (!acking || head == null || now - head.time < timeoutMillis) {
+                return 0;
+            }
+            gapFrom = acked + 1;
+            gapTo = head.frame.getSeq();
+            for (Sent sent : unacked) {
+                if (now - sent.time < timeoutMillis) {
+                    break;
+                }
+                sent.time = now;
+                resend.add(sent.frame);
+            }
+        } finally {
+            queueLock.unlock();
+        }
+        if (gapFrom < gapTo) {
+            missing.accept(gapFrom, gapTo);
+        }
+        for (Frame frame : resend) {
+            offer(frame, null, false);
+        }
+        return resend.size();
+    }
+
+    /**
+     * Take the next frame to write, called by the writer only
+     *
+     * @return frame data, null if the queue is empty
+     */
+    byte[] poll() {
+        Frame frame;
+        boolean binaryFrame;
+        boolean compressed;
+        queueLock.lock();
+        try {
+            Entry entry = queue.poll();
+            if (entry == null) {
+                return null;
+            }
+            if (entry.key != null) {
+                queuedByKey.remove(entry.key, entry);
+                forgetPing(entry);
+            }
+            lastWrite = System.currentTimeMillis();
+            frame = entry.frame;
+            binaryFrame = entry.binary;
+            compressed = entry.compressed;
+        } finally {
+            queueLock.unlock();
+        }
+        // Encoding and compressing outside the lock, the writer is the only one polling
+        byte[] data = frame.getData(binaryFrame);
+        return compressed ? deflate.compress(data) : data;
+    }
+
+    /**
+     * The writer drained the queue, wake it again if something was queued meanwhile
+     */
+    void writeDone() {
+        writeScheduled.set(false);
+        if (getQueueDepth() > 0) {
+            requestWrite();
+        } else if (closeAfterFlush) {
+            close();
+        }
+    }
+
+    private void requestWrite() {
+        if (!closed.get() && writeScheduled.compareAndSet(false, true)) {
+            writeRequest.accept(this);
+        }
+    }
+
+    /**
+     * Close once everything queued so far is written
+     */
+    public void closeGracefully() {
+        closeAfterFlush = true;
+        if (writeScheduled.compareAndSet(false, true)) {
+            writeRequest.accept(this);
+        }
+    }
+
+    /**
+     * Close the connection and forget the client, safe to call more than once
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            transport.close();
+        } catch (IOException e) {
+            logger.error("Close client connection error: " + e.getMessage());
+        }
+        queueLock.lock();
+        try {
+            queue.clear();
+            queuedByKey.clear();
+            pingQueued = false;
+            unacked.clear();
+        } finally {
+            queueLock.unlock();
+        }
+        endCompression();
+        CreatingServer.clientDisconnected(this);
+    }
+
+    /**
+     * Report what compression saved and cost on this connection, then free its contexts
+     */
+    private void endCompression() {
+        Compression.Deflate out = deflate;
+        Compression.Inflate in = inflate;
+        if (out == null && in == null) {
+            return;
+        }
+        logger.info("Session " + id + " compression, sent: " + (out != null ? out : "none")
+                + ", received: " + (in != null ? in : "none"));
+        if (out != null) {
+            out.end();
+        }
+        if (in != null) {
+            in.end();
+        }
+    }
+
+    /**
+     * Queued frame with its coalesce key, the protocol it is written in and whether it is compressed
+     */
+    private static class Entry {
+        private Frame frame;
+        private final String key;
+        private boolean binary;
+        private boolean compressed;
+
+        Entry(Frame frame, String key, boolean binary, boolean compressed) {
+            this.frame = frame;
+            this.key = key;
+            this.binary = binary;
+            this.compressed = compressed;
+        }
+    }
+
+    /**
+     * Chat message sent to a client that acks, with the time it was last sent
+     */
+    private static class Sent {
+        private final Frame frame;
+        private long time;
+
+        Sent(Frame frame, long time) {
+            this.frame = frame;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Writer behind the PrintWriter, each flush queues what was written since the last one
+     */
+    private class QueueWriter extends Writer {
+        private final StringBuilder pending = new StringBuilder();
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (closed.get()) {
+                throw new IOException("Connection closed");
+            }
+            pending.append(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed.get()) {
+                throw new IOException("Connection closed");
+            }
+            if (pending.length() == 0) {
+                return;
+            }
+            byte[] data = pending.toString().getBytes(StandardCharsets.UTF_8);
+            pending.setLength(0);
+            offer(Frame.wrap(data), null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            closeGracefully();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.zyz;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe registry of connected sessions, indexed by connection id and by username.
+ * Lookups, joins and leaves are O(1), reads never take a lock.
+ * Logged in sessions are also partitioned into shards by connection id for the broadcast fan-out.
+ */
+class SessionRegistry {
+    private final ConcurrentHashMap<Long, Session> byId = new ConcurrentHashMap<>();  // Every connection
+    private final ConcurrentHashMap<String, Session> byUser = new ConcurrentHashMap<>();  // Logged in only
+    private final ConcurrentHashMap<String, AtomicInteger> msgCounts = new ConcurrentHashMap<>();  // Logged in only
+    private final List<Set<Session>> shards;
+
+    /**
+     * Create a registry
+     *
+     * @param shardCount number of shards logged in sessions are partitioned into
+     */
+    SessionRegistry(int shardCount) {
+        int count = Math.max(1, shardCount);
+        shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    /**
+     * Register a new connection
+     *
+     * @param session session
+     */
+    void add(Session session) {
+        byId.put(session.getId(), session);
+    }
+
+    /**
+     * Bind a username to a session. A session already holding the name is returned
+     * so the caller can close it, the newest login wins.
+     *
+     * @param session  session
+     * @param username username
+     * @return previous session of the user, null if none
+     */
+    Session login(Session session, String username) {
+        String previousName = session.getUsername();
+        if (previousName != null && !previousName.equals(username)) {
+            byUser.remove(previousName, session);
+        }
+        session.setUsername(username);
+        shardOf(session).add(session);
+        Session previous = byUser.put(username, session);
+        return previous == session ? null : previous;
+    }
+
+    /**
+     * Forget a connection, its username and the message count of the user, safe to call more than once
+     *
+     * @param session session
+     * @return true if the session was still registered
+     */
+    boolean remove(Session session) {
+        String username = session.getUsername();
+        if (username != null && byUser.remove(username, session)) {
+            // Only if no newer session took the name meanwhile, it keeps counting. Checked within the update
+            // of the count, so a count of a session that logged in since is never dropped.
+            msgCounts.computeIfPresent(username, (user, count) -> byUser.containsKey(user) ? count : null);
+        }
+        shardOf(session).remove(session);
+        return byId.remove(session.getId(), session);
+    }
+
+    private Set<Session> shardOf(Session session) {
+        return shards.get((int) (session.getId() % shards.size()));
+    }
+
+    int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Logged in sessions of one shard, weakly consistent
+     *
+     * @param shard shard index
+     * @return sessions
+     */
+    Collection<Session> users(int shard) {
+        return shards.get(shard);
+    }
+
+    /**
+     * Get a session by connection id
+     *
+     * @param id connection id
+     * @return session, null if not connected
+     */
+    Session get(long id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Get the session of a user
+     *
+     * @param username username
+     * @return session, null if the user is not logged in
+     */
+    Session getByUser(String username) {
+        return byUser.get(username);
+    }
+
+    boolean isUserExist(String username) {
+        return byUser.containsKey(username);
+    }
+
+    /**
+     * Sessions of all logged in users, weakly consistent
+     *
+     * @return sessions
+     */
+    Collection<Session> users() {
+        return byUser.values();
+    }
+
+    /**
+     * All connected sessions, including those not logged in yet
+     *
+     * @return sessions
+     */
+    Collection<Session> connections() {
+        return byId.values();
+    }
+
+    int getUserNumber() {
+        return byUser.size();
+    }
+
+    int getConnectionNumber() {
+        return byId.size();
+    }
+
+    /**
+     * Count a new message of the user
+     *
+     * @param username username
+     * @return count of the message, starting from 1
+     */
+    int nextMsgCount(String username) {
+        return msgCounts.computeIfAbsent(username, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * Number of messages the user has sent
+     *
+     * @param username username
+     * @return message count
+     */
+    int getMsgCount(String username) {
+        AtomicInteger count = msgCounts.get(username);
+        return count == null ? 0 : count.get();
+    }
+}
@@ -0,0 +1,200 @@
+package com.zyz;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The search index of a history log, written to one .terms file per segment, reopened and searched
+ */
+class HistoryIndexTest {
+    private static final int MESSAGES = 600;
+    private static final long SEGMENT_BYTES = 8192;  // Small, so the messages span several segments
+    private static final String[] WORDS = {"hello", "help", "world", "word", "java", "javafx", "chat", "room",
+            "你好", "世界", "聊天"};
+    private static final String[] QUERIES = {"hel", "hello", "java", "javafx wor", "你", "你好", "世界 hel",
+            "user3", "聊 jav"};
+    private static final int MAGIC = 0x43485349;
+
+    @TempDir
+    Path dir;
+    private ScheduledExecutorService executor;
+    private final List<ChatMessage> messages = new ArrayList<>();
+
+    @BeforeEach
+    void startExecutor() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    private HistoryLog open() throws IOException {
+        return new HistoryLog(dir, SEGMENT_BYTES, 0, executor, new HistoryCache.Budget(16, 4096));
+    }
+
+    /**
+     * Append messages of two or three words, like Room.addHistory does, and close the log
+     */
+    private void writeMessages() throws IOException {
+        try (HistoryLog log = open()) {
+            for (int i = 0; i < MESSAGES; i++) {
+                ChatMessage message = new ChatMessage("User" + i % 5,
+                        WORDS[i % WORDS.length] + " " + WORDS[i * 7 % WORDS.length]
+                                + (i % 3 == 0 ? WORDS[i * 5 % WORDS.length] : "") + " " + i,
+                        "10:00:00", i);
+                assertEquals(i, log.appendRecord(seq -> {
+                    message.seq = seq;
+                    return ChatCodec.record(message);
+                }));
+                messages.add(message);
+            }
+        }
+    }
+
+    private List<Path> files(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.toString().endsWith(suffix)).sorted().toList();
+        }
+    }
+
+    /**
+     * Sequence numbers of the messages containing every query term as a word or the start of one, newest first
+     */
+    private List<Long> scan(String query) {
+        Set<String> words = new LinkedHashSet<>();
+        HistoryIndex.tokenize(query, words);
+        List<Long> found = new ArrayList<>();
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            Set<String> terms = new LinkedHashSet<>();
+            HistoryIndex.tokenize(messages.get(i).message, terms);
+            HistoryIndex.tokenize(messages.get(i).user, terms);
+            if (words.stream().allMatch(word -> terms.stream().anyMatch(term -> term.startsWith(word)))) {
+                found.add(messages.get(i).seq);
+            }
+        }
+        return found;
+    }
+
+    private static List<Long> search(HistoryLog log, String query, long before) {
+        List<Long> found = new ArrayList<>();
+        for (HistoryIndex.Hit hit : log.index().search(query, before, MESSAGES)) {
+            found.add(hit.seq);
+        }
+        return found;
+    }
+
+    private void assertSearchesMatchScan() throws IOException {
+        try (HistoryLog log = open()) {
+            assertEquals(MESSAGES, log.index().indexed());
+            for (String query : QUERIES) {
+                List<Long> expected = scan(query);
+                assertFalse(expected.isEmpty(), query);
+                assertEquals(expected, search(log, query, Long.MAX_VALUE), query);
+                // A page before a message in the middle only has the older ones
+                long before = MESSAGES / 2;
+                List<Long> older = expected.stream().filter(seq -> seq < before).toList();
+                assertEquals(older, search(log, query, before), query);
+            }
+        }
+    }
+
+    private static int magic(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            channel.read(magic, channel.size() - 4);
+            return magic.flip().getInt();
+        }
+    }
+
+    @Test
+    void everySegmentGetsItsTermsFile() throws IOException {
+        writeMessages();
+        List<Path> segments = files(HistorySegment.SUFFIX);
+        List<Path> terms = files(HistoryIndex.SUFFIX);
+        assertTrue(segments.size() > 1, "messages span several segments");
+        assertEquals(segments.size(), terms.size());
+        for (Path file : terms) {
+            assertEquals(MAGIC, magic(file), file.toString());
+        }
+    }
+
+    @Test
+    void reopenedIndexFindsPrefixesAndChineseTerms() throws IOException {
+        writeMessages();
+        assertSearchesMatchScan();
+        // A second reopen reads the same files
+        assertSearchesMatchScan();
+    }
+
+    @Test
+    void wordScoresAbovePrefix() throws IOException {
+        writeMessages();
+        try (HistoryLog log = open()) {
+            for (HistoryIndex.Hit hit : log.index().search("hello", Long.MAX_VALUE, MESSAGES)) {
+                assertEquals(2, hit.score);
+            }
+            boolean prefixOnly = false;
+            for (HistoryIndex.Hit hit : log.index().search("hel", Long.MAX_VALUE, MESSAGES)) {
+                assertTrue(hit.score == 1 || hit.score == 2);
+                prefixOnly |= hit.score == 1;
+            }
+            assertTrue(prefixOnly, "help only starts with hel");
+        }
+    }
+
+    @Test
+    void corruptTrailerIsRebuilt() throws IOException {
+        writeMessages();
+        Path sealed = files(HistoryIndex.SUFFIX).get(0);
+        try (FileChannel channel = FileChannel.open(sealed, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0xDEADBEEF).flip(), channel.size() - 4);
+        }
+        assertSearchesMatchScan();
+        // Rebuilt from its segment and written again
+        assertEquals(MAGIC, magic(sealed));
+    }
+
+    @Test
+    void truncatedFileIsRebuilt() throws IOException {
+        writeMessages();
+        List<Path> terms = files(HistoryIndex.SUFFIX);
+        for (Path file : terms) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() / 2);
+            }
+        }
+        assertSearchesMatchScan();
+        for (Path file : terms.subList(0, terms.size() - 1)) {
+            assertEquals(MAGIC, magic(file), file.toString());
+        }
+    }
+
+    @Test
+    void missingFilesAreRebuilt() throws IOException {
+        writeMessages();
+        for (Path file : files(HistoryIndex.SUFFIX)) {
+            Files.delete(file);
+        }
+        assertSearchesMatchScan();
+    }
+}
@@ -0,0 +1,140 @@
+package com.zyz;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Replay of the history log after a crash left the tail of its last segment torn
+ */
+class HistoryLogTest {
+    private static final int RECORDS = 500;
+    private static final long SEGMENT_BYTES = 4096;  // Small, so the records span several segments
+
+    @TempDir
+    Path dir;
+    private ScheduledExecutorService executor;
+
+    @BeforeEach
+    void startExecutor() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    private HistoryLog open() throws IOException {
+        return new HistoryLog(dir, SEGMENT_BYTES, 0, executor, new HistoryCache.Budget(16, 4096));
+    }
+
+    private static String record(int number) {
+        return "{\"user\":\"u" + number % 7 + "\",\"message\":\"message " + number + "\",\"seq\":" + number + "}";
+    }
+
+    private static List<String> readAll(HistoryLog log) {
+        List<String> records = new ArrayList<>();
+        log.read(0, log.size(), record -> records.add(new String(record, StandardCharsets.UTF_8)));
+        return records;
+    }
+
+    private void writeRecords() throws IOException {
+        try (HistoryLog log = open()) {
+            for (int i = 0; i < RECORDS; i++) {
+                assertEquals(i, log.append(record(i)));
+            }
+            log.flush();
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.toString().endsWith(HistorySegment.SUFFIX)).sorted().toList();
+        }
+    }
+
+    private Path lastSegment() throws IOException {
+        List<Path> segments = segments();
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Every record written before the crash is read back in order and the next append continues after it
+     */
+    private void assertReplayed(int expected) throws IOException {
+        try (HistoryLog log = open()) {
+            assertEquals(expected, log.size());
+            List<String> records = readAll(log);
+            assertEquals(expected, records.size());
+            for (int i = 0; i < expected; i++) {
+                assertEquals(record(i), records.get(i));
+            }
+            assertEquals(expected, log.append(record(expected)));
+            log.flush();
+        }
+        try (HistoryLog log = open()) {
+            assertEquals(expected + 1, log.size());
+            assertEquals(record(expected), readAll(log).get(expected));
+        }
+    }
+
+    @Test
+    void cleanReopenKeepsEveryRecord() throws IOException {
+        writeRecords();
+        assertTrue(segments().size() > 1, "records span several segments");
+        assertReplayed(RECORDS);
+    }
+
+    @Test
+    void tornHeaderIsCutOff() throws IOException {
+        writeRecords();
+        try (FileChannel data = FileChannel.open(lastSegment(), StandardOpenOption.APPEND)) {
+            // Half of the header of a record that never made it
+            data.write(ByteBuffer.wrap(new byte[]{0, 0, 1}));
+        }
+        assertReplayed(RECORDS);
+    }
+
+    @Test
+    void tornPayloadIsCutOff() throws IOException {
+        writeRecords();
+        byte[] payload = record(RECORDS).getBytes(StandardCharsets.UTF_8);
+        try (FileChannel data = FileChannel.open(lastSegment(), StandardOpenOption.APPEND)) {
+            // The header claims the full record, only part of its payload is there
+            ByteBuffer torn = ByteBuffer.allocate(HistorySegment.HEADER_SIZE + payload.length / 2);
+            torn.putInt(payload.length).putInt(0).put(payload, 0, payload.length / 2).flip();
+            data.write(torn);
+        }
+        assertReplayed(RECORDS);
+    }
+
+    @Test
+    void corruptLastRecordIsCutOff() throws IOException {
+        writeRecords();
+        Path last = lastSegment();
+        long size = Files.size(last);
+        try (FileChannel data = FileChannel.open(last, StandardOpenOption.WRITE)) {
+            // Flip the last byte of the last record, its CRC no longer matches
+            ByteBuffer flipped = ByteBuffer.wrap(new byte[]{'#'});
+            data.write(flipped, size - 1);
+        }
+        assertReplayed(RECORDS - 1);
+    }
+}
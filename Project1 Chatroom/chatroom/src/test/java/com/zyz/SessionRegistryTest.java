@@ -0,0 +1,135 @@
+package com.zyz;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Stress test of the session registry, 1k threads join, send and leave at the same time
+ */
+class SessionRegistryTest {
+    private static final int CLIENTS = 1000;
+    private static final int USERS = 100;  // Sends are spread over fewer users so counters are contended
+    private static final int MESSAGES = 100;
+
+    private static Session newSession() {
+        return new Session(() -> {
+        }, session -> {
+        });
+    }
+
+    /**
+     * Run a task on every client thread, all of them released at once
+     *
+     * @param task called with the client index
+     */
+    private static void inParallel(ClientTask task) throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            CyclicBarrier start = new CyclicBarrier(CLIENTS);
+            List<Future<?>> done = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                int client = i;
+                done.add(threads.submit(() -> {
+                    start.await();
+                    task.run(client);
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    private interface ClientTask {
+        void run(int client) throws Exception;
+    }
+
+    @Test
+    void parallelJoinsSendsAndLeaves() throws Exception {
+        SessionRegistry registry = new SessionRegistry(8);
+        Session[] sessions = new Session[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            sessions[i] = newSession();
+        }
+
+        inParallel(client -> {
+            registry.add(sessions[client]);
+            assertNull(registry.login(sessions[client], "user" + client));
+        });
+        assertEquals(CLIENTS, registry.getConnectionNumber());
+        assertEquals(CLIENTS, registry.getUserNumber());
+        int sharded = 0;
+        for (int shard = 0; shard < registry.getShardCount(); shard++) {
+            sharded += registry.users(shard).size();
+        }
+        assertEquals(CLIENTS, sharded);
+        for (int i = 0; i < CLIENTS; i++) {
+            assertSame(sessions[i], registry.get(sessions[i].getId()));
+            assertSame(sessions[i], registry.getByUser("user" + i));
+        }
+
+        // Every count is handed out once per user, no increment is lost
+        Set<String> counted = ConcurrentHashMap.newKeySet();
+        inParallel(client -> {
+            String user = "user" + client % USERS;
+            for (int m = 0; m < MESSAGES; m++) {
+                assertTrue(counted.add(user + "#" + registry.nextMsgCount(user)));
+            }
+        });
+        for (int u = 0; u < USERS; u++) {
+            assertEquals(CLIENTS / USERS * MESSAGES, registry.getMsgCount("user" + u));
+        }
+
+        inParallel(client -> {
+            assertTrue(registry.remove(sessions[client]));
+            assertFalse(registry.remove(sessions[client]));
+        });
+        assertEquals(0, registry.getConnectionNumber());
+        assertEquals(0, registry.getUserNumber());
+        for (int shard = 0; shard < registry.getShardCount(); shard++) {
+            assertTrue(registry.users(shard).isEmpty());
+        }
+        for (int u = 0; u < USERS; u++) {
+            assertEquals(0, registry.getMsgCount("user" + u), "message count kept after the user left");
+        }
+    }
+
+    @Test
+    void parallelTakeoversKeepTheNewestSession() throws Exception {
+        SessionRegistry registry = new SessionRegistry(8);
+        // Two clients per name, each logs in, sends and leaves over and over
+        int rounds = 20;
+        inParallel(client -> {
+            String user = "user" + client / 2;
+            for (int r = 0; r < rounds; r++) {
+                Session session = newSession();
+                registry.add(session);
+                assertNotSame(session, registry.login(session, user));
+                registry.nextMsgCount(user);
+                Session current = registry.getByUser(user);
+                assertTrue(current == null || user.equals(current.getUsername()));
+                assertTrue(registry.remove(session));
+                assertNull(registry.get(session.getId()));
+            }
+        });
+        assertEquals(0, registry.getConnectionNumber());
+        assertEquals(0, registry.getUserNumber());
+        for (int shard = 0; shard < registry.getShardCount(); shard++) {
+            assertTrue(registry.users(shard).isEmpty());
+        }
+    }
+}